@@ -0,0 +1,281 @@
+package com.xlythe.view.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Recycles the large byte arrays that taking a picture needs (frames, encoded JPEGs), so that
+ * shooting continuously doesn't allocate several megabytes per picture and keep the GC busy.
+ *
+ * Requests are rounded up to a size class, in steps of a quarter of a power of two, so that
+ * pictures of roughly the same size share buffers while wasting at most a quarter of each one.
+ * Released buffers are held on to until the pool reaches its cap, at which point the oldest are let
+ * go. Memory is given back when the system asks for it through {@link #onTrimMemory(int)}.
+ */
+public class BufferPool implements ComponentCallbacks2 {
+    // Small buffers are cheap enough to allocate, and not worth tracking.
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    // The default cap, unless the heap is too small for it.
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static BufferPool sDefault;
+
+    /**
+     * Returns the pool shared by every CameraView. It's trimmed automatically when memory runs low.
+     */
+    public static synchronized BufferPool getDefault(@NonNull Context context) {
+        if (sDefault == null) {
+            sDefault = new BufferPool((int) Math.min(DEFAULT_MAX_SIZE, Runtime.getRuntime().maxMemory() / 8));
+            context.getApplicationContext().registerComponentCallbacks(sDefault);
+        }
+        return sDefault;
+    }
+
+    // Idle buffers, by size class.
+    private final Map<Integer, ArrayDeque<byte[]>> mBuffers = new HashMap<>();
+
+    // Idle buffers in the order they were released, so we know which to let go of first.
+    private final ArrayDeque<byte[]> mReleaseOrder = new ArrayDeque<>();
+
+    // The number of bytes held by idle buffers.
+    private long mSize;
+    private long mMaxSize;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param maxSize The most bytes to hold on to while buffers aren't in use.
+     */
+    public BufferPool(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size must not be negative, but was " + maxSize);
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a buffer at least minSize bytes long. Its contents are undefined. Hand it back with
+     * {@link #release(byte[])} once it's no longer needed.
+     */
+    @NonNull
+    public synchronized byte[] acquire(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Size must not be negative, but was " + minSize);
+        }
+        int size = getSizeClass(minSize);
+        ArrayDeque<byte[]> buffers = mBuffers.get(size);
+        if (buffers != null && !buffers.isEmpty()) {
+            byte[] buffer = buffers.removeLast();
+            mReleaseOrder.remove(buffer);
+            mSize -= buffer.length;
+            mHitCount++;
+            return buffer;
+        }
+        mMissCount++;
+        return new byte[size];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that didn't come from {@link #acquire(int)} are only
+     * kept if their length happens to be a size class.
+     */
+    public synchronized void release(@Nullable byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_BUFFER_SIZE || buffer.length > mMaxSize
+                || getSizeClass(buffer.length) != buffer.length) {
+            return;
+        }
+        trimToSize(mMaxSize - buffer.length);
+
+        ArrayDeque<byte[]> buffers = mBuffers.get(buffer.length);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            mBuffers.put(buffer.length, buffers);
+        }
+        buffers.addLast(buffer);
+        mReleaseOrder.addLast(buffer);
+        mSize += buffer.length;
+    }
+
+    /**
+     * Sets the most bytes to hold on to while buffers aren't in use, letting go of buffers if
+     * there are already more than that.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size must not be negative, but was " + maxSize);
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently held by buffers that aren't in use.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of times {@link #acquire(int)} was able to reuse a buffer.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #acquire(int)} had to allocate a new buffer.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void resetStatistics() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    /**
+     * Lets go of the oldest idle buffers until no more than size bytes are held.
+     */
+    public synchronized void trimToSize(long size) {
+        Iterator<byte[]> iterator = mReleaseOrder.iterator();
+        while (mSize > size && iterator.hasNext()) {
+            byte[] buffer = iterator.next();
+            iterator.remove();
+            mBuffers.get(buffer.length).remove(buffer);
+            mSize -= buffer.length;
+        }
+    }
+
+    /**
+     * Lets go of every idle buffer.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Either we're about to be killed, or the UI (and the camera with it) is gone.
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getMaxSize() / 4);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(getMaxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Rounds size up to the nearest size class: a power of two, or a quarter step between two.
+     */
+    static int getSizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        int step = Integer.highestOneBit(size - 1) / 4;
+        long rounded = ((long) size + step - 1) / step * step;
+        return (int) Math.min(rounded, Integer.MAX_VALUE);
+    }
+
+    /**
+     * An {@link OutputStream} that writes into buffers from a pool, rather than growing (and
+     * throwing away) arrays of its own like {@link java.io.ByteArrayOutputStream}. Closing the
+     * stream gives its buffer back to the pool.
+     */
+    public static class PooledOutputStream extends OutputStream {
+        private final BufferPool mPool;
+        private byte[] mBuffer;
+        private int mCount;
+
+        public PooledOutputStream(@NonNull BufferPool pool, int initialCapacity) {
+            mPool = pool;
+            mBuffer = pool.acquire(initialCapacity);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(mCount + 1);
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureCapacity(mCount + len);
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        /**
+         * Writes everything written so far to the given stream.
+         */
+        public void writeTo(@NonNull OutputStream out) throws IOException {
+            out.write(mBuffer, 0, mCount);
+        }
+
+        /**
+         * Returns the underlying buffer. Only the first {@link #size()} bytes are valid, and the
+         * buffer must not be used after the stream is closed.
+         */
+        @NonNull
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public void reset() {
+            mCount = 0;
+        }
+
+        @Override
+        public void close() {
+            if (mBuffer != null) {
+                mPool.release(mBuffer);
+                mBuffer = null;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mBuffer == null) {
+                throw new IllegalStateException("Stream is closed");
+            }
+            if (capacity <= mBuffer.length) {
+                return;
+            }
+            byte[] buffer = mPool.acquire(Math.max(capacity, mBuffer.length * 2));
+            System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+            mPool.release(mBuffer);
+            mBuffer = buffer;
+        }
+    }
+}
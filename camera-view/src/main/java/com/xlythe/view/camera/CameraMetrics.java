@@ -0,0 +1,132 @@
+package com.xlythe.view.camera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Tracks how long the camera takes to start up and to capture pictures. Milestones are grouped
+ * into flows (opening the camera, and taking a picture). For every milestone, we keep a
+ * {@link LatencyHistogram} of the time elapsed since the start of its flow.
+ */
+public class CameraMetrics {
+    private static final long NOT_SET = -1;
+
+    public enum Milestone {
+        /** {@link CameraView#open()} was called. Starts the open flow. */
+        OPEN_REQUESTED,
+        /** The camera device finished opening. */
+        CAMERA_OPENED,
+        /** The preview session (or its legacy equivalent) was configured. */
+        SESSION_CONFIGURED,
+        /** The first preview frame was produced. */
+        FIRST_FRAME,
+        /** {@link CameraView#takePicture(java.io.File)} was called. Starts the capture flow. */
+        TAKE_PICTURE,
+        /** The camera finished capturing the picture. */
+        CAPTURE_COMPLETED,
+        /** The picture's data was handed back to us. */
+        IMAGE_AVAILABLE,
+        /** A downscaled copy of the picture was shown for review, ahead of the saved file. */
+        REVIEW_SHOWN,
+        /** The picture's bytes were written to disk. */
+        JPEG_WRITTEN,
+        /** The picture's exif data was written to disk. */
+        EXIF_SAVED,
+        /** The picture was shown for confirmation (or handed to the listener, if confirmation is disabled). */
+        CONFIRMATION_SHOWN,
+        /** The picture was handed to its listener without going through confirmation (eg. as part of a burst). */
+        PICTURE_DELIVERED;
+
+        Milestone getStartOfFlow() {
+            switch (this) {
+                case OPEN_REQUESTED:
+                case CAMERA_OPENED:
+                case SESSION_CONFIGURED:
+                case FIRST_FRAME:
+                    return OPEN_REQUESTED;
+                default:
+                    return TAKE_PICTURE;
+            }
+        }
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Milestone.values().length];
+    private final long[] mFlowStartTimestamps = new long[Milestone.values().length];
+
+    @Nullable
+    private volatile CameraMetricsListener mListener;
+
+    public CameraMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+            mFlowStartTimestamps[i] = NOT_SET;
+        }
+    }
+
+    public void setListener(@Nullable CameraMetricsListener listener) {
+        mListener = listener;
+    }
+
+    @Nullable
+    public CameraMetricsListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Records that a milestone was reached just now.
+     */
+    public void record(@NonNull Milestone milestone) {
+        record(milestone, System.nanoTime());
+    }
+
+    /**
+     * Records that a milestone was reached at the given time, as measured by {@link System#nanoTime()}.
+     */
+    public void record(@NonNull Milestone milestone, long timestampNanos) {
+        Milestone start = milestone.getStartOfFlow();
+        synchronized (this) {
+            if (milestone == start) {
+                mFlowStartTimestamps[start.ordinal()] = timestampNanos;
+            } else if (mFlowStartTimestamps[start.ordinal()] != NOT_SET) {
+                mHistograms[milestone.ordinal()].record(timestampNanos - mFlowStartTimestamps[start.ordinal()]);
+            }
+        }
+
+        CameraMetricsListener l = mListener;
+        if (l != null) {
+            l.onMilestone(milestone, timestampNanos);
+        }
+    }
+
+    /**
+     * Returns the distribution of the time between the start of the milestone's flow (either
+     * {@link Milestone#OPEN_REQUESTED} or {@link Milestone#TAKE_PICTURE}) and the milestone itself.
+     * If multiple pictures are in flight at once, latencies are measured from the most recent
+     * {@link Milestone#TAKE_PICTURE}.
+     */
+    @NonNull
+    public LatencyHistogram getHistogram(@NonNull Milestone milestone) {
+        return mHistograms[milestone.ordinal()];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i].reset();
+            mFlowStartTimestamps[i] = NOT_SET;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CameraMetrics{");
+        for (Milestone milestone : Milestone.values()) {
+            if (milestone == milestone.getStartOfFlow()) {
+                continue;
+            }
+            builder.append(String.format(Locale.US, "%n  %s=%s", milestone, getHistogram(milestone)));
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -0,0 +1,14 @@
+package com.xlythe.view.camera;
+
+/**
+ * Notified as the camera reaches each {@link CameraMetrics.Milestone}. Callbacks are made on
+ * whichever thread reached the milestone (often a camera or encoding thread), so implementations
+ * should be quick and thread safe.
+ */
+public interface CameraMetricsListener {
+    /**
+     * @param milestone The milestone that was just reached.
+     * @param timestampNanos A monotonic timestamp, comparable with {@link System#nanoTime()}.
+     */
+    void onMilestone(CameraMetrics.Milestone milestone, long timestampNanos);
+}
@@ -4,12 +4,15 @@ import android.Manifest;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.UiThread;
@@ -32,6 +35,12 @@ import com.xlythe.view.camera.legacy.LegacyCameraModule;
 import com.xlythe.view.camera.v2.Camera2Module;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class CameraView extends FrameLayout {
     static final String TAG = CameraView.class.getSimpleName();
@@ -39,18 +48,27 @@ public class CameraView extends FrameLayout {
 
     public static final int INDEFINITE_VIDEO_DURATION = -1;
     public static final int INDEFINITE_VIDEO_SIZE = -1;
+    public static final int DEFAULT_JPEG_QUALITY = 100;
+    public static final int DEFAULT_THUMBNAIL_SIZE = -1;
 
     private static final String EXTRA_SUPER = "super";
     private static final String EXTRA_MODULE = "module";
     private static final String EXTRA_QUALITY = "quality";
-    private static final String EXTRA_ZOOM_LEVEL = "zoom_level";
+    private static final String EXTRA_ZOOM_RATIO = "zoom_ratio";
     private static final String EXTRA_PINCH_TO_ZOOM_ENABLED = "pinch_to_zoom_enabled";
     private static final String EXTRA_PINCH_TO_ZOOM_SCALE_FACTOR = "pinch_to_zoom_scale_factor";
     private static final String EXTRA_FLASH = "flash";
+    private static final String EXTRA_JPEG_QUALITY = "jpeg_quality";
+    private static final String EXTRA_THUMBNAIL_WIDTH = "thumbnail_width";
+    private static final String EXTRA_THUMBNAIL_HEIGHT = "thumbnail_height";
     private static final String EXTRA_MAX_VIDEO_DURATION = "max_video_duration";
     private static final String EXTRA_MAX_VIDEO_SIZE = "max_video_size";
+    private static final String EXTRA_VIDEO_SEGMENT_DURATION = "video_segment_duration";
+    private static final String EXTRA_VIDEO_SEGMENT_SIZE = "video_segment_size";
     private static final String EXTRA_CONFIRM_IMAGE = "confirm_image";
     private static final String EXTRA_CONFIRM_VIDEO = "confirm_video";
+    private static final String EXTRA_HYBRID_SESSION_ENABLED = "hybrid_session_enabled";
+    private static final String EXTRA_ZERO_SHUTTER_LAG_ENABLED = "zero_shutter_lag_enabled";
     private static final String EXTRA_PENDING_IMAGE_FILE_PATH = "pending_image_file_path";
     private static final String EXTRA_PENDING_VIDEO_FILE_PATH = "pending_video_file_path";
 
@@ -103,7 +121,12 @@ public class CameraView extends FrameLayout {
             synchronized (CameraView.this) {
                 if (getStatus() == Status.AWAITING_TEXTURE) {
                     setStatus(Status.OPEN);
-                    onOpen();
+                    if (mCameraModule.supportsDeferredSurfaceTexture()) {
+                        // The camera was already opened in parallel. It was only waiting on us.
+                        mCameraModule.onSurfaceTextureAvailable();
+                    } else {
+                        onOpen();
+                    }
                 }
             }
         }
@@ -141,6 +164,45 @@ public class CameraView extends FrameLayout {
 
     private ICameraModule mCameraModule;
 
+    private final CameraMetrics mCameraMetrics = new CameraMetrics();
+
+    // True while this view holds the shared LocationCache open.
+    private boolean mIsLocationCacheStarted;
+
+    // Pictures that have been requested but not yet saved.
+    private final CaptureQueue mCaptureQueue = new CaptureQueue(new CaptureQueue.Callback() {
+        @Override
+        public void onSubmit(@NonNull final CaptureQueue.Request request) {
+            // With BackpressurePolicy.BLOCK, requests are submitted from the background thread
+            // that was waiting for room.
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        submitPicture(request);
+                    }
+                });
+                return;
+            }
+
+            submitPicture(request);
+        }
+
+        @Override
+        public void onDropped(@NonNull final CaptureQueue.Request request) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyFailure(request);
+                }
+            });
+        }
+    });
+
+    // Pictures that were abandoned when the camera closed. If they finish saving anyway, we've
+    // already reported them as failed, so they're ignored.
+    private final Set<File> mAbandonedPictures = Collections.synchronizedSet(new HashSet<File>());
+
     private TextureView mCameraView;
     private ImageView mImagePreview;
     private VideoView mVideoPreview;
@@ -148,9 +210,15 @@ public class CameraView extends FrameLayout {
     private File mImagePendingConfirmation;
     private File mVideoPendingConfirmation;
 
+    // The picture that mImagePreview is showing a review bitmap for, if any
+    private File mImageReviewFile;
+
     private boolean mIsImageConfirmationEnabled;
     private boolean mIsVideoConfirmationEnabled;
 
+    // If true, the recording is split into segments and there's no video to confirm once it stops
+    private boolean mIsRecordingSegments;
+
     public CameraView(Context context) {
         this(context, null);
     }
@@ -181,6 +249,7 @@ public class CameraView extends FrameLayout {
             TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.CameraView, 0, 0);
             setQuality(Quality.fromId(a.getInteger(R.styleable.CameraView_quality, getQuality().id)));
             setFlash(Flash.fromId(a.getInteger(R.styleable.CameraView_flash, getFlash().id)));
+            setJpegQuality(a.getInteger(R.styleable.CameraView_jpegQuality, getJpegQuality()));
             setPinchToZoomEnabled(a.getBoolean(R.styleable.CameraView_pinchToZoomEnabled, isPinchToZoomEnabled()));
             if (a.hasValue(R.styleable.CameraView_maxVideoDuration)) {
                 setMaxVideoDuration(a.getInteger(R.styleable.CameraView_maxVideoDuration, INDEFINITE_VIDEO_DURATION));
@@ -188,8 +257,16 @@ public class CameraView extends FrameLayout {
             if (a.hasValue(R.styleable.CameraView_maxVideoSize)) {
                 setMaxVideoSize(a.getInteger(R.styleable.CameraView_maxVideoSize, INDEFINITE_VIDEO_SIZE));
             }
+            if (a.hasValue(R.styleable.CameraView_videoSegmentDuration)) {
+                setVideoSegmentDuration(a.getInteger(R.styleable.CameraView_videoSegmentDuration, INDEFINITE_VIDEO_DURATION));
+            }
+            if (a.hasValue(R.styleable.CameraView_videoSegmentSize)) {
+                setVideoSegmentSize(a.getInteger(R.styleable.CameraView_videoSegmentSize, INDEFINITE_VIDEO_SIZE));
+            }
             setImageConfirmationEnabled(a.getBoolean(R.styleable.CameraView_confirmImages, isImageConfirmationEnabled()));
             setVideoConfirmationEnabled(a.getBoolean(R.styleable.CameraView_confirmVideos, isVideoConfirmationEnabled()));
+            setHybridSessionEnabled(a.getBoolean(R.styleable.CameraView_hybridSessionEnabled, isHybridSessionEnabled()));
+            setZeroShutterLagEnabled(a.getBoolean(R.styleable.CameraView_zeroShutterLagEnabled, isZeroShutterLagEnabled()));
             a.recycle();
         }
 
@@ -219,14 +296,21 @@ public class CameraView extends FrameLayout {
         Bundle state = new Bundle();
         state.putParcelable(EXTRA_SUPER, super.onSaveInstanceState());
         state.putInt(EXTRA_QUALITY, getQuality().id);
-        state.putInt(EXTRA_ZOOM_LEVEL, getZoomLevel());
+        state.putFloat(EXTRA_ZOOM_RATIO, getZoomRatio());
         state.putBoolean(EXTRA_PINCH_TO_ZOOM_ENABLED, isPinchToZoomEnabled());
         state.putFloat(EXTRA_PINCH_TO_ZOOM_SCALE_FACTOR, mScaleDetector.getCumulativeScaleFactor());
         state.putInt(EXTRA_FLASH, getFlash().id);
+        state.putInt(EXTRA_JPEG_QUALITY, getJpegQuality());
+        state.putInt(EXTRA_THUMBNAIL_WIDTH, getThumbnailWidth());
+        state.putInt(EXTRA_THUMBNAIL_HEIGHT, getThumbnailHeight());
         state.putLong(EXTRA_MAX_VIDEO_DURATION, getMaxVideoDuration());
         state.putLong(EXTRA_MAX_VIDEO_SIZE, getMaxVideoSize());
+        state.putLong(EXTRA_VIDEO_SEGMENT_DURATION, getVideoSegmentDuration());
+        state.putLong(EXTRA_VIDEO_SEGMENT_SIZE, getVideoSegmentSize());
         state.putBoolean(EXTRA_CONFIRM_IMAGE, isImageConfirmationEnabled());
         state.putBoolean(EXTRA_CONFIRM_VIDEO, isVideoConfirmationEnabled());
+        state.putBoolean(EXTRA_HYBRID_SESSION_ENABLED, isHybridSessionEnabled());
+        state.putBoolean(EXTRA_ZERO_SHUTTER_LAG_ENABLED, isZeroShutterLagEnabled());
         if (mImagePendingConfirmation != null) {
             state.putString(EXTRA_PENDING_IMAGE_FILE_PATH, mImagePendingConfirmation.getAbsolutePath());
         }
@@ -243,14 +327,21 @@ public class CameraView extends FrameLayout {
             Bundle state = (Bundle) savedState;
             super.onRestoreInstanceState(state.getParcelable(EXTRA_SUPER));
             setQuality(Quality.fromId(state.getInt(EXTRA_QUALITY)));
-            setZoomLevel(state.getInt(EXTRA_ZOOM_LEVEL));
+            setZoomRatio(state.getFloat(EXTRA_ZOOM_RATIO, 1f));
             setPinchToZoomEnabled(state.getBoolean(EXTRA_PINCH_TO_ZOOM_ENABLED));
             mScaleDetector.setCumulativeScaleFactor(state.getFloat(EXTRA_PINCH_TO_ZOOM_SCALE_FACTOR, mScaleDetector.getCumulativeScaleFactor()));
             setFlash(Flash.fromId(state.getInt(EXTRA_FLASH)));
+            setJpegQuality(state.getInt(EXTRA_JPEG_QUALITY, DEFAULT_JPEG_QUALITY));
+            setThumbnailSize(state.getInt(EXTRA_THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_SIZE),
+                    state.getInt(EXTRA_THUMBNAIL_HEIGHT, DEFAULT_THUMBNAIL_SIZE));
             setMaxVideoDuration(state.getLong(EXTRA_MAX_VIDEO_DURATION));
             setMaxVideoSize(state.getLong(EXTRA_MAX_VIDEO_SIZE));
+            setVideoSegmentDuration(state.getLong(EXTRA_VIDEO_SEGMENT_DURATION, INDEFINITE_VIDEO_DURATION));
+            setVideoSegmentSize(state.getLong(EXTRA_VIDEO_SEGMENT_SIZE, INDEFINITE_VIDEO_SIZE));
             setImageConfirmationEnabled(state.getBoolean(EXTRA_CONFIRM_IMAGE));
             setVideoConfirmationEnabled(state.getBoolean(EXTRA_CONFIRM_VIDEO));
+            setHybridSessionEnabled(state.getBoolean(EXTRA_HYBRID_SESSION_ENABLED));
+            setZeroShutterLagEnabled(state.getBoolean(EXTRA_ZERO_SHUTTER_LAG_ENABLED));
 
             if (state.containsKey(EXTRA_PENDING_IMAGE_FILE_PATH)) {
                 File file = new File(state.getString(EXTRA_PENDING_IMAGE_FILE_PATH));
@@ -300,11 +391,23 @@ public class CameraView extends FrameLayout {
             Manifest.permission.WRITE_EXTERNAL_STORAGE
     })
     public synchronized void open() {
+        mCameraMetrics.record(CameraMetrics.Milestone.OPEN_REQUESTED);
+        if (!mIsLocationCacheStarted) {
+            // Pictures are tagged with whatever location the cache has, so start listening early.
+            LocationCache.getDefault(getContext()).start();
+            mIsLocationCacheStarted = true;
+        }
         if (mCameraView.isAvailable()) {
             setStatus(Status.OPEN);
             onOpen();
         } else {
             setStatus(Status.AWAITING_TEXTURE);
+
+            // Opening the camera is slow, so if we can, we'll do that while the view is being laid
+            // out. Only the preview has to wait for the texture.
+            if (mCameraModule.supportsDeferredSurfaceTexture()) {
+                onOpen();
+            }
         }
     }
 
@@ -314,6 +417,10 @@ public class CameraView extends FrameLayout {
     public synchronized void close() {
         setStatus(Status.CLOSED);
         onClose();
+        if (mIsLocationCacheStarted) {
+            LocationCache.getDefault(getContext()).stop();
+            mIsLocationCacheStarted = false;
+        }
     }
 
     /**
@@ -390,10 +497,50 @@ public class CameraView extends FrameLayout {
         return mIsVideoConfirmationEnabled;
     }
 
+    /**
+     * Shows a bitmap, decoded from the picture while it was still in memory, so that the picture
+     * can be reviewed before it's finished saving.
+     */
+    void showImageReview(File file, Bitmap review) {
+        if (!mIsImageConfirmationEnabled || mAbandonedPictures.contains(file)) {
+            return;
+        }
+
+        mCameraMetrics.record(CameraMetrics.Milestone.REVIEW_SHOWN);
+        mImagePreview.setVisibility(View.VISIBLE);
+        mImagePreview.setImageBitmap(review);
+        mImageReviewFile = file;
+    }
+
+    /**
+     * Hides the review bitmap if it belongs to the given picture, which won't be confirmed after
+     * all (eg. it failed to save, or the camera closed first).
+     */
+    private void hideImageReview(File file) {
+        if (!file.equals(mImageReviewFile)) {
+            return;
+        }
+
+        mImagePreview.setVisibility(View.GONE);
+        mImagePreview.setImageDrawable(null);
+        mImageReviewFile = null;
+    }
+
     void showImageConfirmation(File file) {
+        mCaptureQueue.complete(file);
+        if (mAbandonedPictures.remove(file)) {
+            hideImageReview(file);
+            return;
+        }
+
+        mCameraMetrics.record(CameraMetrics.Milestone.CONFIRMATION_SHOWN);
         if (mIsImageConfirmationEnabled) {
             mImagePreview.setVisibility(View.VISIBLE);
-            Glide.with(getContext()).load(file).into(mImagePreview);
+            if (!file.equals(mImageReviewFile)) {
+                // Nothing was shown while the picture was saving, so load it from disk instead.
+                Glide.with(getContext()).load(file).into(mImagePreview);
+            }
+            mImageReviewFile = null;
             mImagePendingConfirmation = file;
 
             if (getOnImageCapturedListener() != null) {
@@ -410,6 +557,42 @@ public class CameraView extends FrameLayout {
         }
     }
 
+    void onImageCaptured(File file) {
+        CaptureQueue.Request request = mCaptureQueue.complete(file);
+        if (mAbandonedPictures.remove(file)) {
+            return;
+        }
+
+        mCameraMetrics.record(CameraMetrics.Milestone.PICTURE_DELIVERED);
+        OnImageCapturedListener l = request != null && request.getListener() != null
+                ? request.getListener() : getOnImageCapturedListener();
+        if (l != null) {
+            l.onImageCaptured(file);
+        }
+    }
+
+    void onImageFailure(File file) {
+        CaptureQueue.Request request = mCaptureQueue.complete(file);
+        hideImageReview(file);
+        if (mAbandonedPictures.remove(file)) {
+            return;
+        }
+
+        if (request != null) {
+            notifyFailure(request);
+        } else if (getOnImageCapturedListener() != null) {
+            getOnImageCapturedListener().onFailure();
+        }
+    }
+
+    private void notifyFailure(CaptureQueue.Request request) {
+        OnImageCapturedListener l = request.getListener() != null
+                ? request.getListener() : getOnImageCapturedListener();
+        if (l != null) {
+            l.onFailure();
+        }
+    }
+
     void showVideoConfirmation(final File file) {
         if (mIsVideoConfirmationEnabled) {
             mVideoPreview.setVisibility(View.VISIBLE);
@@ -459,20 +642,215 @@ public class CameraView extends FrameLayout {
         return mCameraModule.getMaxVideoSize();
     }
 
+    /**
+     * Sets how long, in milliseconds, each segment of a segmented recording is. The recorder can
+     * only move on to a new segment based on its size, so this is converted into the number of
+     * bytes the video's bit rate fills in that time, and segments will only roughly match it.
+     * Defaults to {@link #INDEFINITE_VIDEO_DURATION}.
+     */
+    public void setVideoSegmentDuration(long duration) {
+        mCameraModule.setVideoSegmentDuration(duration);
+    }
+
+    public long getVideoSegmentDuration() {
+        return mCameraModule.getVideoSegmentDuration();
+    }
+
+    /**
+     * Sets how large, in bytes, each segment of a segmented recording can grow. If a segment
+     * duration is also set, segments end at whichever is reached first. Defaults to
+     * {@link #INDEFINITE_VIDEO_SIZE}.
+     */
+    public void setVideoSegmentSize(long size) {
+        mCameraModule.setVideoSegmentSize(size);
+    }
+
+    public long getVideoSegmentSize() {
+        return mCameraModule.getVideoSegmentSize();
+    }
+
+    /**
+     * Returns true if {@link #startRecording(FileProvider, OnVideoSegmentListener)} is supported.
+     * Requires Android O and above.
+     */
+    public boolean supportsSegmentedRecording() {
+        return mCameraModule.supportsSegmentedRecording();
+    }
+
+    /**
+     * If enabled, the camera is configured once for both pictures and videos, and recording starts
+     * without interrupting the preview. Only supported on Android M and above. Changes take effect
+     * the next time the camera is opened.
+     */
+    public void setHybridSessionEnabled(boolean enabled) {
+        mCameraModule.setHybridSessionEnabled(enabled);
+    }
+
+    public boolean isHybridSessionEnabled() {
+        return mCameraModule.isHybridSessionEnabled();
+    }
+
+    public boolean supportsHybridSession() {
+        return mCameraModule.supportsHybridSession();
+    }
+
+    /**
+     * If enabled, the camera keeps its most recent frames in memory, and a picture is saved from
+     * the frame closest to when {@link #takePicture(File)} was called instead of waiting on a new
+     * capture. The preview keeps running while the picture is saved. Not supported alongside hybrid
+     * sessions, or by legacy cameras. Changes take effect the next time the camera is opened.
+     */
+    public void setZeroShutterLagEnabled(boolean enabled) {
+        mCameraModule.setZeroShutterLagEnabled(enabled);
+    }
+
+    public boolean isZeroShutterLagEnabled() {
+        return mCameraModule.isZeroShutterLagEnabled();
+    }
+
+    public boolean supportsZeroShutterLag() {
+        return mCameraModule.supportsZeroShutterLag();
+    }
+
     protected void onOpen() {
         mCameraModule.open();
     }
 
     protected void onClose() {
         mCameraModule.close();
+
+        // Pictures still in flight won't make it now that the camera is closed.
+        for (CaptureQueue.Request request : mCaptureQueue.clear()) {
+            mAbandonedPictures.add(request.getFile());
+            hideImageReview(request.getFile());
+            notifyFailure(request);
+        }
     }
 
+    /**
+     * Takes a picture and saves it to the given file. Set a OnImageCapturedListener to be notified
+     * of when the picture has finished saving.
+     */
     public void takePicture(File file) {
-        if (mCameraModule.supportsPause()) {
-            mCameraModule.pause();
+        if (!takePicture(new CaptureQueue.Request(file, null /* listener */))) {
+            Log.w(TAG, "Too many pictures in flight. Rejecting " + file);
+            if (getOnImageCapturedListener() != null) {
+                getOnImageCapturedListener().onFailure();
+            }
+        }
+    }
+
+    /**
+     * Takes a picture and saves it to the given file. The listener, rather than the CameraView's
+     * OnImageCapturedListener, is notified once the picture is saved. Pictures taken this way
+     * don't pause the preview or wait for confirmation, so several can be in flight at once.
+     *
+     * @return False if the picture was rejected because too many are already in flight.
+     */
+    public boolean takePicture(File file, OnImageCapturedListener listener) {
+        return takePicture(new CaptureQueue.Request(file, listener));
+    }
+
+    /**
+     * Takes a picture and hands the encoded bytes straight to the sink, without writing them to
+     * disk. Like {@link #takePicture(File, OnImageCapturedListener)}, the preview isn't paused and
+     * the picture isn't confirmed. These pictures don't go through the capture queue, so they
+     * don't count towards {@link #getMaxPicturesInFlight()}.
+     */
+    public void takePicture(CaptureSink sink) {
+        mCameraMetrics.record(CameraMetrics.Milestone.TAKE_PICTURE);
+        mCameraModule.takePicture(sink);
+    }
+
+    /**
+     * Queues up a picture. See {@link #setMaxPicturesInFlight(int)} and
+     * {@link #setBackpressurePolicy(CaptureQueue.BackpressurePolicy)} for what happens when too
+     * many pictures are requested at once.
+     *
+     * @return False if the picture was rejected because too many are already in flight.
+     */
+    public boolean takePicture(CaptureQueue.Request request) {
+        mCameraMetrics.record(CameraMetrics.Milestone.TAKE_PICTURE);
+        mAbandonedPictures.remove(request.getFile());
+        return mCaptureQueue.offer(request);
+    }
+
+    private void submitPicture(CaptureQueue.Request request) {
+        if (request.getListener() == null) {
+            // The classic flow, where the preview pauses on the picture until it's confirmed. With
+            // zero shutter lag, the picture comes from a frame we already have, so the preview
+            // keeps running until the confirmation covers it.
+            if (!mCameraModule.isZeroShutterLagActive() && mCameraModule.supportsPause()) {
+                mCameraModule.pause();
+            }
+            mCameraModule.takePicture(request.getFile());
+        } else {
+            mCameraModule.takePictures(Collections.singletonList(request.getFile()));
+        }
+    }
+
+    /**
+     * Sets how many pictures from {@link #takePicture(File)} and
+     * {@link #takePicture(CaptureQueue.Request)} can be captured and saved at the same time.
+     * Bursts from {@link #takePictures(int, FileProvider)} and pictures handed to a
+     * {@link CaptureSink} aren't counted. Defaults to {@link CaptureQueue#DEFAULT_MAX_IN_FLIGHT}.
+     */
+    public void setMaxPicturesInFlight(int max) {
+        mCaptureQueue.setMaxInFlight(max);
+    }
+
+    public int getMaxPicturesInFlight() {
+        return mCaptureQueue.getMaxInFlight();
+    }
+
+    /**
+     * Sets what happens when a picture is requested while {@link #getMaxPicturesInFlight()}
+     * pictures are already in flight. Defaults to {@link CaptureQueue.BackpressurePolicy#REJECT}.
+     */
+    public void setBackpressurePolicy(CaptureQueue.BackpressurePolicy policy) {
+        mCaptureQueue.setBackpressurePolicy(policy);
+    }
+
+    public CaptureQueue.BackpressurePolicy getBackpressurePolicy() {
+        return mCaptureQueue.getBackpressurePolicy();
+    }
+
+    /**
+     * Sets the executor that pictures are encoded and written to disk on. Defaults to
+     * {@link EncodeExecutor#getDefault()}, a small pool of background priority threads shared
+     * by every CameraView.
+     */
+    public void setEncodeExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        mCameraModule.setEncodeExecutor(executor);
+    }
+
+    public Executor getEncodeExecutor() {
+        return mCameraModule.getEncodeExecutor();
+    }
+
+    /**
+     * Takes a burst of pictures, as quickly as the camera allows. Each picture is saved to the file
+     * returned by the provider and handed to {@link OnImageCapturedListener#onImageCaptured(File)}
+     * as soon as it's written. Unlike {@link #takePicture(File)}, the preview keeps running and
+     * the pictures don't wait for confirmation. Bursts are handed to the camera all at once, so
+     * they don't go through the capture queue and don't count towards
+     * {@link #getMaxPicturesInFlight()}.
+     */
+    public void takePictures(int count, FileProvider fileProvider) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Must take at least one picture, but count was " + count);
+        }
+
+        List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(fileProvider.getFile(i));
         }
 
-        mCameraModule.takePicture(file);
+        mCameraMetrics.record(CameraMetrics.Milestone.TAKE_PICTURE);
+        mCameraModule.takePictures(files);
     }
 
     public void confirmPicture() {
@@ -504,14 +882,34 @@ public class CameraView extends FrameLayout {
     }
 
     public void startRecording(File file) {
+        mIsRecordingSegments = false;
         mCameraModule.startRecording(file);
     }
 
+    /**
+     * Records a video that's split into segments, as set by {@link #setVideoSegmentDuration(long)}
+     * and {@link #setVideoSegmentSize(long)}. Each segment is saved to the file returned by the
+     * provider and handed to {@link OnVideoSegmentListener#onVideoSegmentCaptured(File, int)} as
+     * soon as it's complete, so it can be uploaded or processed while recording continues. The
+     * recording moves from one segment to the next without dropping frames, and keeps going until
+     * {@link #stopRecording()} is called, which reports the last segment. The max video duration
+     * and size don't apply, and the segments don't wait for confirmation.
+     *
+     * Only supported if {@link #supportsSegmentedRecording()}. Otherwise, the listener is told
+     * that the recording failed.
+     */
+    public void startRecording(FileProvider fileProvider, OnVideoSegmentListener listener) {
+        mIsRecordingSegments = true;
+        mCameraModule.startRecording(fileProvider, listener);
+    }
+
     public void stopRecording() {
-        if (mCameraModule.supportsPause()) {
+        // Segmented recordings have no video to confirm, so the preview keeps running.
+        if (mCameraModule.supportsPause() && !mIsRecordingSegments) {
             mCameraModule.pause();
         }
 
+        mIsRecordingSegments = false;
         mCameraModule.stopRecording();
     }
 
@@ -557,6 +955,7 @@ public class CameraView extends FrameLayout {
     }
 
     public void toggleCamera() {
+        mCameraMetrics.record(CameraMetrics.Milestone.OPEN_REQUESTED);
         mCameraModule.toggleCamera();
     }
 
@@ -576,6 +975,42 @@ public class CameraView extends FrameLayout {
         return mCameraModule.hasFlash();
     }
 
+    /**
+     * Sets the quality, from 1 to 100, that pictures are compressed with. Lower values make for
+     * smaller files. Defaults to {@link #DEFAULT_JPEG_QUALITY}.
+     */
+    public void setJpegQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("JPEG quality must be between 1 and 100, but was " + quality);
+        }
+        mCameraModule.setJpegQuality(quality);
+    }
+
+    public int getJpegQuality() {
+        return mCameraModule.getJpegQuality();
+    }
+
+    /**
+     * Sets the size of the thumbnail embedded in each picture's Exif data. The camera only
+     * supports a handful of sizes, so the closest one is used. Pass 0x0 to leave the thumbnail
+     * out, or {@link #DEFAULT_THUMBNAIL_SIZE} for both to let the camera decide.
+     */
+    public void setThumbnailSize(int width, int height) {
+        boolean isDefault = width == DEFAULT_THUMBNAIL_SIZE && height == DEFAULT_THUMBNAIL_SIZE;
+        if (!isDefault && (width < 0 || height < 0)) {
+            throw new IllegalArgumentException(String.format("Invalid thumbnail size %dx%d", width, height));
+        }
+        mCameraModule.setThumbnailSize(width, height);
+    }
+
+    public int getThumbnailWidth() {
+        return mCameraModule.getThumbnailWidth();
+    }
+
+    public int getThumbnailHeight() {
+        return mCameraModule.getThumbnailHeight();
+    }
+
     protected int getRelativeCameraOrientation() {
         return mCameraModule.getRelativeCameraOrientation();
     }
@@ -715,6 +1150,41 @@ public class CameraView extends FrameLayout {
         return mCameraModule.isZoomSupported();
     }
 
+    /**
+     * Sets the zoom, where 1 is no zoom and {@link #getMaxZoomRatio()} is fully zoomed in. Unlike
+     * {@link #setZoomLevel(int)}, this allows for fractional zoom.
+     */
+    public void setZoomRatio(float zoomRatio) {
+        mCameraModule.setZoomRatio(zoomRatio);
+    }
+
+    public float getZoomRatio() {
+        return mCameraModule.getZoomRatio();
+    }
+
+    public float getMaxZoomRatio() {
+        return mCameraModule.getMaxZoomRatio();
+    }
+
+    /**
+     * Animates the zoom to the given ratio. See {@link #setZoomRatio(float)}.
+     */
+    public void smoothZoomTo(float zoomRatio, long durationMillis) {
+        mCameraModule.smoothZoomTo(zoomRatio, durationMillis);
+    }
+
+    /**
+     * Sets a listener that's notified as the camera opens and takes pictures. Useful for tracking
+     * startup and capture latency. See {@link #getCameraMetrics()} for aggregated latencies.
+     */
+    public void setCameraMetricsListener(@Nullable CameraMetricsListener l) {
+        mCameraMetrics.setListener(l);
+    }
+
+    public CameraMetrics getCameraMetrics() {
+        return mCameraMetrics;
+    }
+
     public void setOnImageCapturedListener(OnImageCapturedListener l) {
         mOnImageCapturedListener = l;
         mCameraModule.setOnImageCapturedListener(l);
@@ -739,14 +1209,33 @@ public class CameraView extends FrameLayout {
         void onFailure();
     }
 
+    public interface FileProvider {
+        /**
+         * Returns the file to save the picture at the given index of a burst, or the segment at
+         * the given index of a segmented recording, to.
+         */
+        File getFile(int index);
+    }
+
     public interface OnVideoCapturedListener {
         void onVideoConfirmation();
         void onVideoCaptured(File file);
         void onFailure();
     }
 
+    public interface OnVideoSegmentListener {
+        /**
+         * Called, in order, for every segment of the recording once it's saved.
+         */
+        void onVideoSegmentCaptured(File file, int index);
+
+        /**
+         * Called if the recording couldn't be started or the last segment couldn't be saved.
+         */
+        void onFailure();
+    }
+
     private class PinchToZoomGestureDetector extends ScaleGestureDetector implements ScaleGestureDetector.OnScaleGestureListener {
-        final float MAX_SCALE = 5f;
         float mScaleFactor = 1f;
 
         PinchToZoomGestureDetector(Context context) {
@@ -771,10 +1260,10 @@ public class CameraView extends FrameLayout {
             mScaleFactor *= detector.getScaleFactor();
 
             // Don't let the object get too small or too large.
-            mScaleFactor = Math.max(1f, Math.min(mScaleFactor, MAX_SCALE));
+            mScaleFactor = Math.max(1f, Math.min(mScaleFactor, getMaxZoomRatio()));
 
-            // y = (x-1) * (maxZoom/maxScale)
-            setZoomLevel(rangeLimit((int) ((mScaleFactor-1) * getMaxZoomLevel() / MAX_SCALE), getMaxZoomLevel(), 0));
+            // Pinching zooms in proportion to how far apart the fingers moved.
+            setZoomRatio(mScaleFactor);
             return true;
         }
 
@@ -0,0 +1,294 @@
+package com.xlythe.view.camera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tracks pictures from the moment they're requested until they're saved. At most
+ * {@link #getMaxInFlight()} pictures are handed to the camera at once. Once that limit is reached,
+ * new requests are handled according to the {@link BackpressurePolicy}.
+ *
+ * Requests are identified by their file, so every request in the queue must save to a different
+ * file.
+ */
+public class CaptureQueue {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 5;
+
+    public enum BackpressurePolicy {
+        /**
+         * New requests are turned away while the queue is full.
+         */
+        REJECT,
+        /**
+         * The caller waits until a picture finishes. Pictures finish on the main thread, so never
+         * use this policy when taking pictures from the main thread. Once there's room, the
+         * picture is handed to the camera on the main thread.
+         */
+        BLOCK,
+        /**
+         * New requests wait for a picture to finish. If more than {@link #getMaxInFlight()}
+         * requests are waiting, the oldest waiting request is dropped.
+         */
+        DROP_OLDEST
+    }
+
+    interface Callback {
+        /**
+         * Called when a request should be handed to the camera. Never called while holding the
+         * queue's lock.
+         */
+        void onSubmit(@NonNull Request request);
+
+        /**
+         * Called when a waiting request is dropped to make room for a newer one. It never reached
+         * the camera.
+         */
+        void onDropped(@NonNull Request request);
+    }
+
+    /**
+     * A single picture: where to save it, who to tell once it's saved, and anything else the
+     * caller wants to associate with it.
+     */
+    public static class Request {
+        private final File mFile;
+        @Nullable
+        private final CameraView.OnImageCapturedListener mListener;
+        @Nullable
+        private Object mTag;
+
+        // When the request was made, in milliseconds since the epoch.
+        private final long mRequestTime = System.currentTimeMillis();
+
+        /**
+         * @param file     Where the picture will be saved.
+         * @param listener Notified when the picture is saved. If null, the CameraView's
+         *                 OnImageCapturedListener is notified instead, after confirmation if
+         *                 enabled.
+         */
+        public Request(@NonNull File file, @Nullable CameraView.OnImageCapturedListener listener) {
+            mFile = file;
+            mListener = listener;
+        }
+
+        @NonNull
+        public File getFile() {
+            return mFile;
+        }
+
+        @Nullable
+        public CameraView.OnImageCapturedListener getListener() {
+            return mListener;
+        }
+
+        /**
+         * Attaches an arbitrary object to this request, to be read back once the picture is saved.
+         */
+        public Request setTag(@Nullable Object tag) {
+            mTag = tag;
+            return this;
+        }
+
+        @Nullable
+        public Object getTag() {
+            return mTag;
+        }
+
+        /**
+         * Returns when the picture was requested, in milliseconds since the epoch.
+         */
+        public long getRequestTime() {
+            return mRequestTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Request{file=%s, tag=%s, requestTime=%d}", mFile, mTag, mRequestTime);
+        }
+    }
+
+    private final Callback mCallback;
+
+    // Requests handed to the camera, in the order they were submitted.
+    private final List<Request> mInFlight = new ArrayList<>();
+
+    // Requests waiting for room, when the policy is DROP_OLDEST.
+    private final ArrayDeque<Request> mWaiting = new ArrayDeque<>();
+
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private BackpressurePolicy mBackpressurePolicy = BackpressurePolicy.REJECT;
+
+    CaptureQueue(@NonNull Callback callback) {
+        mCallback = callback;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Must allow at least one picture in flight, but was " + maxInFlight);
+        }
+        List<Request> submitted;
+        synchronized (this) {
+            mMaxInFlight = maxInFlight;
+            submitted = promoteWaitingRequests();
+            notifyAll();
+        }
+        submit(submitted);
+    }
+
+    public synchronized int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public synchronized void setBackpressurePolicy(@NonNull BackpressurePolicy policy) {
+        mBackpressurePolicy = policy;
+        notifyAll();
+    }
+
+    @NonNull
+    public synchronized BackpressurePolicy getBackpressurePolicy() {
+        return mBackpressurePolicy;
+    }
+
+    /**
+     * Returns the number of requests that have been accepted but not yet completed.
+     */
+    public synchronized int size() {
+        return mInFlight.size() + mWaiting.size();
+    }
+
+    /**
+     * Adds a request to the queue. It's submitted right away if there's room, and otherwise
+     * handled according to the {@link BackpressurePolicy}.
+     *
+     * @return False if the request was rejected.
+     */
+    boolean offer(@NonNull Request request) {
+        Request submitted = null;
+        Request dropped = null;
+        synchronized (this) {
+            if (find(request.getFile()) != null) {
+                throw new IllegalArgumentException("A picture is already being saved to " + request.getFile());
+            }
+
+            while (mBackpressurePolicy == BackpressurePolicy.BLOCK && mInFlight.size() >= mMaxInFlight) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (mInFlight.size() < mMaxInFlight) {
+                mInFlight.add(request);
+                submitted = request;
+            } else if (mBackpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+                mWaiting.add(request);
+                if (mWaiting.size() > mMaxInFlight) {
+                    dropped = mWaiting.poll();
+                }
+            } else {
+                return false;
+            }
+        }
+
+        if (dropped != null) {
+            mCallback.onDropped(dropped);
+        }
+        if (submitted != null) {
+            mCallback.onSubmit(submitted);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the request saving to the given file as finished, making room for the next.
+     *
+     * @return The request, or null if no request was saving to that file.
+     */
+    @Nullable
+    Request complete(@NonNull File file) {
+        Request request;
+        List<Request> submitted;
+        synchronized (this) {
+            request = findInFlight(file);
+            if (request == null) {
+                return null;
+            }
+            mInFlight.remove(request);
+            submitted = promoteWaitingRequests();
+            notifyAll();
+        }
+        submit(submitted);
+        return request;
+    }
+
+    /**
+     * Removes every request from the queue, without notifying anyone.
+     *
+     * @return The requests that were removed, oldest first.
+     */
+    @NonNull
+    synchronized List<Request> clear() {
+        List<Request> requests = new ArrayList<>(mInFlight);
+        requests.addAll(mWaiting);
+        mInFlight.clear();
+        mWaiting.clear();
+        notifyAll();
+        return requests;
+    }
+
+    @Nullable
+    private Request find(File file) {
+        Request inFlight = findInFlight(file);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        for (Request request : mWaiting) {
+            if (request.getFile().equals(file)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Request findInFlight(File file) {
+        for (Request request : mInFlight) {
+            if (request.getFile().equals(file)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves waiting requests in flight while there's room. Must hold the lock.
+     *
+     * @return The requests that should now be submitted.
+     */
+    private List<Request> promoteWaitingRequests() {
+        List<Request> submitted = new ArrayList<>();
+        Iterator<Request> iterator = mWaiting.iterator();
+        while (iterator.hasNext() && mInFlight.size() < mMaxInFlight) {
+            Request request = iterator.next();
+            iterator.remove();
+            mInFlight.add(request);
+            submitted.add(request);
+        }
+        return submitted;
+    }
+
+    private void submit(List<Request> requests) {
+        for (Request request : requests) {
+            mCallback.onSubmit(request);
+        }
+    }
+}
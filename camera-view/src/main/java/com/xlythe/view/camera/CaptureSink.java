@@ -0,0 +1,21 @@
+package com.xlythe.view.camera;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives a picture in memory instead of as a file. See {@link CameraView#takePicture(CaptureSink)}.
+ * Callbacks are made on a background thread.
+ */
+public interface CaptureSink {
+    /**
+     * Called with the encoded picture. The picture must be {@link CapturedImage#release() released}
+     * once you're done with it, which may be after this method returns. Until then, the memory it
+     * lives in can't be reused for the next picture.
+     */
+    void onCaptured(@NonNull CapturedImage image);
+
+    /**
+     * Called if the picture couldn't be taken.
+     */
+    void onFailure();
+}
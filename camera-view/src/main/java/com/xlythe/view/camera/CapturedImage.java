@@ -0,0 +1,83 @@
+package com.xlythe.view.camera;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A JPEG handed to a {@link CaptureSink}. The bytes are exactly what the camera (or encoder)
+ * produced. Rotation isn't applied to the pixels or written to the exif data, so it's up to the
+ * receiver to honor {@link #getOrientation()} and {@link #isFlippedHorizontally()}.
+ *
+ * The buffer may be backed by memory the camera reuses, so it's only valid until
+ * {@link #release()} is called.
+ */
+public abstract class CapturedImage {
+    private final ByteBuffer mBuffer;
+    private final int mOrientation;
+    private final boolean mIsFlippedHorizontally;
+    private boolean mIsReleased;
+
+    /**
+     * @param buffer      The JPEG, from its position to its limit.
+     * @param orientation How far the picture must be rotated clockwise to be upright, in degrees.
+     * @param flipped     If true, the picture must be mirrored as well.
+     */
+    protected CapturedImage(@NonNull ByteBuffer buffer, int orientation, boolean flipped) {
+        mBuffer = buffer.asReadOnlyBuffer();
+        mOrientation = orientation;
+        mIsFlippedHorizontally = flipped;
+    }
+
+    /**
+     * Returns a read-only view of the JPEG. Each call returns a new view, so reading from one
+     * doesn't move the position of another.
+     *
+     * @throws IllegalStateException if the image was already released.
+     */
+    @NonNull
+    public synchronized ByteBuffer getBuffer() {
+        if (mIsReleased) {
+            throw new IllegalStateException("The image was already released");
+        }
+        return mBuffer.duplicate();
+    }
+
+    /**
+     * Returns how far the picture must be rotated clockwise to be upright, in degrees.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Returns true if the picture must be mirrored horizontally, as is typical of front facing
+     * cameras. The picture is mirrored after it's been rotated.
+     */
+    public boolean isFlippedHorizontally() {
+        return mIsFlippedHorizontally;
+    }
+
+    /**
+     * Gives the memory the picture lives in back to the camera. Any buffers returned by
+     * {@link #getBuffer()} must not be read afterwards. Calling this more than once does nothing.
+     */
+    public final void release() {
+        synchronized (this) {
+            if (mIsReleased) {
+                return;
+            }
+            mIsReleased = true;
+        }
+        onRelease();
+    }
+
+    public synchronized boolean isReleased() {
+        return mIsReleased;
+    }
+
+    /**
+     * Called once, when the image is released.
+     */
+    protected abstract void onRelease();
+}
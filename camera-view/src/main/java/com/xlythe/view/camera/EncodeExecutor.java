@@ -0,0 +1,141 @@
+package com.xlythe.view.camera;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes and saves pictures. {@link android.os.AsyncTask#THREAD_POOL_EXECUTOR} is shared with the
+ * rest of the app, so a busy app would delay saving photos. Instead, pictures get their own small
+ * pool of background priority threads.
+ *
+ * Tracks how many tasks are waiting, how long they wait before starting, and how long they take
+ * to run.
+ */
+public class EncodeExecutor implements Executor {
+    private static final int DEFAULT_POOL_SIZE = 2;
+
+    // Idle threads are let go after this long, so the pool costs nothing when the camera is idle.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static EncodeExecutor sDefault;
+
+    /**
+     * Returns the executor shared by every CameraView that hasn't been given one of its own.
+     */
+    public static synchronized EncodeExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new EncodeExecutor(DEFAULT_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sDefault;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Tasks that have been submitted but haven't finished yet.
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+    private final LatencyHistogram mTaskLatency = new LatencyHistogram();
+
+    /**
+     * @param poolSize       The number of tasks that can run at once.
+     * @param threadPriority A priority from {@link Process}, such as
+     *                       {@link Process#THREAD_PRIORITY_BACKGROUND}.
+     */
+    public EncodeExecutor(int poolSize, final int threadPriority) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, but was " + poolSize);
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        runnable.run();
+                    }
+                }, "CameraEncode #" + mCount.incrementAndGet());
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable runnable) {
+        final long submitTime = System.nanoTime();
+        int depth = mQueueDepth.incrementAndGet();
+        int maxDepth;
+        while (depth > (maxDepth = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+                break;
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                mQueueLatency.record(startTime - submitTime);
+                try {
+                    runnable.run();
+                } finally {
+                    mTaskLatency.record(System.nanoTime() - startTime);
+                    mQueueDepth.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of tasks that are waiting or running.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Returns the most tasks that have ever been waiting or running at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Returns the distribution of time tasks spent waiting for a thread.
+     */
+    @NonNull
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * Returns the distribution of time tasks spent running.
+     */
+    @NonNull
+    public LatencyHistogram getTaskLatency() {
+        return mTaskLatency;
+    }
+
+    /**
+     * Clears the latency histograms and the max queue depth.
+     */
+    public void resetMetrics() {
+        mQueueLatency.reset();
+        mTaskLatency.reset();
+        mMaxQueueDepth.set(mQueueDepth.get());
+    }
+}
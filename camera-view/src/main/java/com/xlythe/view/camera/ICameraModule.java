@@ -1,6 +1,7 @@
 package com.xlythe.view.camera;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
@@ -9,6 +10,8 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public abstract class ICameraModule {
     public static final String TAG = "CameraModule";
@@ -18,9 +21,17 @@ public abstract class ICameraModule {
     private CameraView.Quality mQuality = CameraView.Quality.HIGH;
     private long mMaxVideoDuration = CameraView.INDEFINITE_VIDEO_DURATION;
     private long mMaxVideoSize = CameraView.INDEFINITE_VIDEO_SIZE;
+    private long mVideoSegmentDuration = CameraView.INDEFINITE_VIDEO_DURATION;
+    private long mVideoSegmentSize = CameraView.INDEFINITE_VIDEO_SIZE;
     private CameraView.Flash mFlash = CameraView.Flash.AUTO;
+    private int mJpegQuality = CameraView.DEFAULT_JPEG_QUALITY;
+    private int mThumbnailWidth = CameraView.DEFAULT_THUMBNAIL_SIZE;
+    private int mThumbnailHeight = CameraView.DEFAULT_THUMBNAIL_SIZE;
+    private boolean mIsHybridSessionEnabled;
+    private boolean mIsZeroShutterLagEnabled;
     private CameraView.OnImageCapturedListener mOnImageCapturedListener;
     private CameraView.OnVideoCapturedListener mOnVideoCapturedListener;
+    private Executor mEncodeExecutor = EncodeExecutor.getDefault();
 
     public ICameraModule(CameraView view) {
         mView = view;
@@ -46,6 +57,10 @@ public abstract class ICameraModule {
         return mView.getSurfaceTexture();
     }
 
+    public CameraMetrics getCameraMetrics() {
+        return mView.getCameraMetrics();
+    }
+
     protected Matrix getTransform(Matrix matrix) {
         return mView.getTransform(matrix);
     }
@@ -73,6 +88,20 @@ public abstract class ICameraModule {
      */
     public abstract void open();
 
+    /**
+     * Returns true if {@link #open()} can be called before the {@link SurfaceTexture} is
+     * available. If so, {@link #onSurfaceTextureAvailable()} will be called once it is.
+     */
+    public boolean supportsDeferredSurfaceTexture() {
+        return false;
+    }
+
+    /**
+     * Called when the {@link SurfaceTexture} becomes available, if the camera was opened before it
+     * was. See {@link #supportsDeferredSurfaceTexture()}.
+     */
+    public void onSurfaceTextureAvailable() {}
+
     /*
      * Closes the camera.
      */
@@ -84,6 +113,18 @@ public abstract class ICameraModule {
      */
     public abstract void takePicture(File file);
 
+    /**
+     * Takes a picture for every file, as quickly as the camera allows. Each picture is handed to
+     * the OnImageCapturedListener as soon as it's saved, without waiting for confirmation.
+     */
+    public abstract void takePictures(List<File> files);
+
+    /**
+     * Takes a picture and hands it to the sink in memory, without saving it to disk or waiting for
+     * confirmation.
+     */
+    public abstract void takePicture(CaptureSink sink);
+
     /**
      * Informs the CameraView to pause and show the taken photo
      */
@@ -91,12 +132,102 @@ public abstract class ICameraModule {
         mView.showImageConfirmation(file);
     }
 
+    /**
+     * Returns true if pictures are shown for confirmation once they're taken, in which case a
+     * review bitmap is worth decoding.
+     */
+    public boolean isImageConfirmationEnabled() {
+        return mView.isImageConfirmationEnabled();
+    }
+
+    /**
+     * Shows a downscaled copy of the picture while the full picture is still being saved.
+     */
+    public void showImageReview(File file, Bitmap review) {
+        mView.showImageReview(file, review);
+    }
+
+    /**
+     * Informs the CameraView that a picture from a burst was saved.
+     */
+    public void onImageCaptured(File file) {
+        mView.onImageCaptured(file);
+    }
+
+    /**
+     * Informs the CameraView that the picture for the given file couldn't be taken. May be called
+     * from any thread.
+     */
+    public void onImageFailure(final File file) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mView.post(new Runnable() {
+                @Override
+                public void run() {
+                    onImageFailure(file);
+                }
+            });
+            return;
+        }
+
+        mView.onImageFailure(file);
+    }
+
     /**
      * Records a video. Set a OnVideoCapturedListener to be notified of when
      * the video has finished saving.
      */
     public abstract void startRecording(File file);
 
+    /**
+     * Records a video that's split into segments, each saved to the file returned by the provider
+     * and handed to the listener as soon as it's complete. The recording moves from one segment to
+     * the next without dropping frames. Only call this if {@link #supportsSegmentedRecording()}.
+     */
+    public void startRecording(CameraView.FileProvider fileProvider, CameraView.OnVideoSegmentListener listener) {
+        Log.w(TAG, "Segmented recording is not supported");
+        onVideoSegmentFailure(listener);
+    }
+
+    public boolean supportsSegmentedRecording() {
+        return false;
+    }
+
+    /**
+     * Informs the listener that a segment of the recording was saved. May be called from any
+     * thread.
+     */
+    public void onVideoSegmentCaptured(final CameraView.OnVideoSegmentListener l, final File file, final int index) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mView.post(new Runnable() {
+                @Override
+                public void run() {
+                    onVideoSegmentCaptured(l, file, index);
+                }
+            });
+            return;
+        }
+
+        l.onVideoSegmentCaptured(file, index);
+    }
+
+    /**
+     * Informs the listener that the recording failed. Segments that were already reported are
+     * unaffected. May be called from any thread.
+     */
+    public void onVideoSegmentFailure(final CameraView.OnVideoSegmentListener l) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mView.post(new Runnable() {
+                @Override
+                public void run() {
+                    onVideoSegmentFailure(l);
+                }
+            });
+            return;
+        }
+
+        l.onFailure();
+    }
+
     /**
      * Stops recording the video. It's recommended that you set a timeout when recording to avoid
      * excessively large files.
@@ -108,6 +239,31 @@ public abstract class ICameraModule {
      */
     public abstract boolean isRecording();
 
+    /**
+     * Stops the given recording as if {@link CameraView#stopRecording()} was called, for when the
+     * recorder can't keep going on its own. The stop is posted to the main thread, where the app's
+     * own calls are made, and is skipped if the recording has ended by then. May be called from
+     * any thread.
+     */
+    public void stopRecordingLater(final Object recording) {
+        mView.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isRecording(recording)) {
+                    mView.stopRecording();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the given recording, as passed to {@link #stopRecordingLater(Object)}, is
+     * still in progress.
+     */
+    protected boolean isRecording(Object recording) {
+        return isRecording();
+    }
+
     /**
      * Informs the CameraView to pause and show the taken video
      */
@@ -131,6 +287,20 @@ public abstract class ICameraModule {
 
     public abstract boolean isZoomSupported();
 
+    /**
+     * Sets the zoom, where 1 is no zoom and {@link #getMaxZoomRatio()} is fully zoomed in.
+     */
+    public abstract void setZoomRatio(float zoomRatio);
+
+    public abstract float getZoomRatio();
+
+    public abstract float getMaxZoomRatio();
+
+    /**
+     * Animates the zoom to the given ratio over roughly durationMillis.
+     */
+    public abstract void smoothZoomTo(float zoomRatio, long durationMillis);
+
     protected abstract int getRelativeCameraOrientation();
 
     public void setQuality(CameraView.Quality quality) {
@@ -157,6 +327,22 @@ public abstract class ICameraModule {
         return mMaxVideoSize;
     }
 
+    public void setVideoSegmentDuration(long duration) {
+        mVideoSegmentDuration = duration;
+    }
+
+    public long getVideoSegmentDuration() {
+        return mVideoSegmentDuration;
+    }
+
+    public void setVideoSegmentSize(long size) {
+        mVideoSegmentSize = size;
+    }
+
+    public long getVideoSegmentSize() {
+        return mVideoSegmentSize;
+    }
+
     public void setFlash(CameraView.Flash flash) {
         mFlash = flash;
     }
@@ -169,6 +355,76 @@ public abstract class ICameraModule {
         return false;
     }
 
+    public void setJpegQuality(int quality) {
+        mJpegQuality = quality;
+    }
+
+    public int getJpegQuality() {
+        return mJpegQuality;
+    }
+
+    public void setThumbnailSize(int width, int height) {
+        mThumbnailWidth = width;
+        mThumbnailHeight = height;
+    }
+
+    public int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+
+    /**
+     * Returns true if a thumbnail size was set, rather than leaving it up to the camera.
+     */
+    protected boolean hasThumbnailSize() {
+        return mThumbnailWidth != CameraView.DEFAULT_THUMBNAIL_SIZE && mThumbnailHeight != CameraView.DEFAULT_THUMBNAIL_SIZE;
+    }
+
+    /**
+     * If enabled, and if {@link #supportsHybridSession()}, the camera will be configured once for
+     * both pictures and videos. Recording will then start without interrupting the preview. This
+     * takes effect the next time the camera is opened.
+     */
+    public void setHybridSessionEnabled(boolean enabled) {
+        mIsHybridSessionEnabled = enabled;
+    }
+
+    public boolean isHybridSessionEnabled() {
+        return mIsHybridSessionEnabled;
+    }
+
+    public boolean supportsHybridSession() {
+        return false;
+    }
+
+    /**
+     * If enabled, and if {@link #supportsZeroShutterLag()}, the camera keeps a few recent frames
+     * in memory and {@link #takePicture(File)} saves the one closest to when it was called,
+     * without pausing the preview. This takes effect the next time the camera is opened.
+     */
+    public void setZeroShutterLagEnabled(boolean enabled) {
+        mIsZeroShutterLagEnabled = enabled;
+    }
+
+    public boolean isZeroShutterLagEnabled() {
+        return mIsZeroShutterLagEnabled;
+    }
+
+    public boolean supportsZeroShutterLag() {
+        return false;
+    }
+
+    /**
+     * Returns true if the camera is currently keeping recent frames to take pictures from. This
+     * can differ from {@link #isZeroShutterLagEnabled()} until the camera is reopened.
+     */
+    public boolean isZeroShutterLagActive() {
+        return false;
+    }
+
     public void pause() {}
 
     public void resume() {}
@@ -199,6 +455,17 @@ public abstract class ICameraModule {
         return mOnVideoCapturedListener;
     }
 
+    /**
+     * Sets the executor that pictures are encoded and written to disk on.
+     */
+    public void setEncodeExecutor(Executor executor) {
+        mEncodeExecutor = executor;
+    }
+
+    public Executor getEncodeExecutor() {
+        return mEncodeExecutor;
+    }
+
     public static int getRelativeImageOrientation(int displayRotation, int sensorOrientation, boolean isFrontFacing, boolean compensateForMirroring) {
         if (DEBUG) {
             Log.d(TAG, String.format("getRelativeImageOrientation displayRotation=%s, sensorOrientation=%s, isFrontFacing=%s, compensateForMirroring=%s",
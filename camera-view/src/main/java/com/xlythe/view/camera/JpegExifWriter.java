@@ -0,0 +1,607 @@
+package com.xlythe.view.camera;
+
+import android.location.Location;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Writes a JPEG with Exif metadata in a single pass. Unlike {@link Exif}, which rewrites the
+ * entire file after it's been saved, the Exif (APP1) segment is built in memory and spliced in
+ * right after the start of the image as the bytes are written out.
+ *
+ * If the JPEG already has an Exif segment (most camera HALs write one), its tags and thumbnail are
+ * carried over, with our orientation, timestamp and location taking precedence.
+ */
+public class JpegExifWriter {
+    private static final String TAG = JpegExifWriter.class.getSimpleName();
+
+    private static final String DATE_FORMAT = "yyyy:MM:dd";
+    private static final String DATETIME_FORMAT = DATE_FORMAT + " HH:mm:ss";
+
+    // JPEG markers
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP15 = 0xEF;
+    private static final int MARKER_COM = 0xFE;
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    // A segment's length is stored as an unsigned short, and includes the length itself.
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    // TIFF data types, and their sizes in bytes
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    // TIFF tags
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_GPS_IFD_POINTER = 0x8825;
+    private static final int TAG_INTEROPERABILITY_IFD_POINTER = 0xA005;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_GPS_VERSION_ID = 0x0000;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_GPS_TIMESTAMP = 0x0007;
+    private static final int TAG_GPS_PROCESSING_METHOD = 0x001B;
+    private static final int TAG_GPS_DATESTAMP = 0x001D;
+
+    // Orientations, as defined by the Exif spec
+    private static final int ORIENTATION_UNDEFINED = 0;
+    private static final int ORIENTATION_NORMAL = 1;
+    private static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_FLIP_VERTICAL = 4;
+    private static final int ORIENTATION_TRANSPOSE = 5;
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_TRANSVERSE = 7;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private int mRotation;
+    private boolean mIsFlippedHorizontally;
+    private long mTimestamp = -1;
+    @Nullable
+    private Location mLocation;
+
+    /**
+     * Sets the rotation of the image. Can only rotate by right angles (eg. 90, 180, -90). Other
+     * increments will set the orientation to undefined.
+     */
+    public JpegExifWriter setRotation(int degrees) {
+        mRotation = degrees;
+        return this;
+    }
+
+    /**
+     * If true, the image is flipped horizontally after it's been rotated. Typical of front facing
+     * cameras.
+     */
+    public JpegExifWriter setFlippedHorizontally(boolean flipped) {
+        mIsFlippedHorizontally = flipped;
+        return this;
+    }
+
+    /**
+     * Sets when the picture was taken, in milliseconds since the epoch.
+     */
+    public JpegExifWriter setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+        return this;
+    }
+
+    public JpegExifWriter setLocation(@Nullable Location location) {
+        mLocation = location;
+        return this;
+    }
+
+    /**
+     * Writes the given JPEG, with Exif attached, to the output stream.
+     */
+    public void write(@NonNull byte[] jpeg, @NonNull OutputStream out) throws IOException {
+        write(ByteBuffer.wrap(jpeg), Channels.newChannel(out));
+    }
+
+    /**
+     * Writes the JPEG between the buffer's position and limit, with Exif attached, to the channel.
+     * The buffer is never copied, so direct buffers (like those from an
+     * {@link android.media.ImageReader}) go straight to the channel.
+     */
+    public void write(@NonNull ByteBuffer jpeg, @NonNull WritableByteChannel out) throws IOException {
+        int start = jpeg.position();
+        int end = jpeg.limit();
+        if (end - start < 4
+                || getUnsignedByte(jpeg, start) != MARKER_PREFIX
+                || getUnsignedByte(jpeg, start + 1) != MARKER_SOI) {
+            throw new IOException("Not a JPEG");
+        }
+
+        // Look for an existing Exif segment. Metadata segments (APPn and comments) come right after
+        // the start of the image, so we can stop as soon as we see anything else.
+        int exifStart = -1;
+        int exifEnd = -1;
+        Tiff tiff = null;
+        int position = start + 2;
+        while (position + 4 <= end && getUnsignedByte(jpeg, position) == MARKER_PREFIX) {
+            int marker = getUnsignedByte(jpeg, position + 1);
+            if ((marker < MARKER_APP0 || marker > MARKER_APP15) && marker != MARKER_COM) {
+                break;
+            }
+
+            int length = getUnsignedShort(jpeg, position + 2);
+            int segmentEnd = position + 2 + length;
+            if (length < 2 || segmentEnd > end) {
+                break;
+            }
+
+            if (marker == MARKER_APP1 && exifStart == -1 && isExif(jpeg, position + 4, segmentEnd)) {
+                exifStart = position;
+                exifEnd = segmentEnd;
+                tiff = Tiff.parse(jpeg, position + 4 + EXIF_IDENTIFIER.length, segmentEnd);
+            }
+            position = segmentEnd;
+        }
+
+        // Start of image, followed by our Exif segment.
+        byte[] app1 = createApp1Segment(tiff);
+        ByteBuffer header = ByteBuffer.allocate(2 + app1.length);
+        header.put((byte) MARKER_PREFIX);
+        header.put((byte) MARKER_SOI);
+        header.put(app1);
+        header.flip();
+        writeFully(out, header);
+
+        // And then everything else, minus the Exif segment we replaced.
+        if (exifStart == -1) {
+            writeFully(out, slice(jpeg, start + 2, end));
+        } else {
+            writeFully(out, slice(jpeg, start + 2, exifStart));
+            writeFully(out, slice(jpeg, exifEnd, end));
+        }
+    }
+
+    private byte[] createApp1Segment(@Nullable Tiff source) {
+        Tiff tiff = source == null ? new Tiff(ByteOrder.BIG_ENDIAN) : source;
+        apply(tiff);
+        byte[] data = tiff.toByteArray();
+
+        int maxLength = MAX_SEGMENT_LENGTH - 2 - EXIF_IDENTIFIER.length;
+        if (data.length > maxLength && tiff.mThumbnail != null) {
+            Log.w(TAG, "Exif segment is too large. Dropping the thumbnail.");
+            tiff.mThumbnail = null;
+            tiff.mIfd1 = null;
+            data = tiff.toByteArray();
+        }
+        if (data.length > maxLength) {
+            Log.w(TAG, "Exif segment is too large. Dropping the original Exif tags.");
+            tiff = new Tiff(ByteOrder.BIG_ENDIAN);
+            apply(tiff);
+            data = tiff.toByteArray();
+        }
+
+        ByteBuffer segment = ByteBuffer.allocate(4 + EXIF_IDENTIFIER.length + data.length);
+        segment.put((byte) MARKER_PREFIX);
+        segment.put((byte) MARKER_APP1);
+        segment.putShort((short) (2 + EXIF_IDENTIFIER.length + data.length));
+        segment.put(EXIF_IDENTIFIER);
+        segment.put(data);
+        return segment.array();
+    }
+
+    private void apply(Tiff tiff) {
+        tiff.mIfd0.putShort(TAG_ORIENTATION, getOrientation(mRotation, mIsFlippedHorizontally), tiff.mOrder);
+
+        if (mTimestamp != -1) {
+            String dateTime = format(DATETIME_FORMAT, mTimestamp);
+            tiff.mIfd0.putAscii(TAG_DATETIME, dateTime);
+            tiff.mIfd0.getOrCreateSubIfd(TAG_EXIF_IFD_POINTER).putAscii(TAG_DATETIME_ORIGINAL, dateTime);
+        }
+
+        if (mLocation != null) {
+            // Replace whatever location the camera may have written.
+            Ifd gps = new Ifd();
+            gps.put(TAG_GPS_VERSION_ID, new Entry(TYPE_BYTE, 4, new byte[] {2, 2, 0, 0}));
+            gps.putAscii(TAG_GPS_LATITUDE_REF, mLocation.getLatitude() >= 0 ? "N" : "S");
+            gps.put(TAG_GPS_LATITUDE, toDegreesMinutesSeconds(mLocation.getLatitude(), tiff.mOrder));
+            gps.putAscii(TAG_GPS_LONGITUDE_REF, mLocation.getLongitude() >= 0 ? "E" : "W");
+            gps.put(TAG_GPS_LONGITUDE, toDegreesMinutesSeconds(mLocation.getLongitude(), tiff.mOrder));
+            if (mLocation.getProvider() != null) {
+                gps.putAscii(TAG_GPS_PROCESSING_METHOD, mLocation.getProvider());
+            }
+
+            // GPS time is always UTC.
+            Date date = new Date(mLocation.getTime());
+            SimpleDateFormat format = new SimpleDateFormat("HH mm ss", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            String[] time = format.format(date).split(" ");
+            gps.put(TAG_GPS_TIMESTAMP, rationals(tiff.mOrder,
+                    Integer.parseInt(time[0]), 1, Integer.parseInt(time[1]), 1, Integer.parseInt(time[2]), 1));
+            gps.putAscii(TAG_GPS_DATESTAMP, format(DATE_FORMAT, mLocation.getTime()));
+            tiff.mIfd0.mSubIfds.put(TAG_GPS_IFD_POINTER, gps);
+        }
+    }
+
+    /**
+     * Returns the Exif orientation for an image that's rotated by the given degrees and then,
+     * optionally, flipped horizontally.
+     */
+    private static int getOrientation(int degrees, boolean flipHorizontally) {
+        if (degrees % 90 != 0) {
+            Log.w(TAG, String.format(Locale.US, "Can only rotate in right angles (eg. 0, 90, 180, 270). %d is unsupported.", degrees));
+            return ORIENTATION_UNDEFINED;
+        }
+
+        degrees = ((degrees % 360) + 360) % 360;
+        switch (degrees) {
+            case 90:
+                return flipHorizontally ? ORIENTATION_TRANSPOSE : ORIENTATION_ROTATE_90;
+            case 180:
+                return flipHorizontally ? ORIENTATION_FLIP_VERTICAL : ORIENTATION_ROTATE_180;
+            case 270:
+                return flipHorizontally ? ORIENTATION_TRANSVERSE : ORIENTATION_ROTATE_270;
+            default:
+                return flipHorizontally ? ORIENTATION_FLIP_HORIZONTAL : ORIENTATION_NORMAL;
+        }
+    }
+
+    private static Entry toDegreesMinutesSeconds(double coordinate, ByteOrder order) {
+        coordinate = Math.abs(coordinate);
+        int degrees = (int) coordinate;
+        coordinate = (coordinate - degrees) * 60;
+        int minutes = (int) coordinate;
+        coordinate = (coordinate - minutes) * 60;
+        int seconds = (int) Math.round(coordinate * 10000);
+        return rationals(order, degrees, 1, minutes, 1, seconds, 10000);
+    }
+
+    private static Entry rationals(ByteOrder order, int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(order);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return new Entry(TYPE_RATIONAL, values.length / 2, buffer.array());
+    }
+
+    private static String format(String pattern, long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp));
+    }
+
+    private static boolean isExif(ByteBuffer buffer, int start, int end) {
+        if (end - start < EXIF_IDENTIFIER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_IDENTIFIER.length; i++) {
+            if (buffer.get(start + i) != EXIF_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getUnsignedByte(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int index) {
+        return (getUnsignedByte(buffer, index) << 8) | getUnsignedByte(buffer, index + 1);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        // A single write isn't guaranteed to drain the buffer.
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * A single TIFF field. The value is kept in the byte order of the TIFF it belongs to.
+     */
+    private static final class Entry {
+        final int mType;
+        final int mCount;
+        byte[] mValue;
+
+        Entry(int type, int count, byte[] value) {
+            mType = type;
+            mCount = count;
+            mValue = value;
+        }
+    }
+
+    /**
+     * An image file directory. Pointers to other directories (Exif, GPS, interoperability) are
+     * kept separately from the other entries, since their values change when we write them out.
+     */
+    private static final class Ifd {
+        final Map<Integer, Entry> mEntries = new TreeMap<>();
+        final Map<Integer, Ifd> mSubIfds = new TreeMap<>();
+
+        // Where this directory was written, relative to the start of the TIFF header.
+        int mOffset;
+
+        void put(int tag, Entry entry) {
+            mEntries.put(tag, entry);
+        }
+
+        void putAscii(int tag, String value) {
+            byte[] bytes = (value + '\0').getBytes(ASCII);
+            put(tag, new Entry(TYPE_ASCII, bytes.length, bytes));
+        }
+
+        void putShort(int tag, int value, ByteOrder order) {
+            put(tag, new Entry(TYPE_SHORT, 1, ByteBuffer.allocate(2).order(order).putShort((short) value).array()));
+        }
+
+        void putLong(int tag, int value, ByteOrder order) {
+            put(tag, new Entry(TYPE_LONG, 1, ByteBuffer.allocate(4).order(order).putInt(value).array()));
+        }
+
+        Ifd getOrCreateSubIfd(int tag) {
+            Ifd ifd = mSubIfds.get(tag);
+            if (ifd == null) {
+                ifd = new Ifd();
+                mSubIfds.put(tag, ifd);
+            }
+            return ifd;
+        }
+
+        int size() {
+            return mEntries.size() + mSubIfds.size();
+        }
+    }
+
+    /**
+     * The TIFF structure inside an Exif segment. IFD0 holds the main image's tags, and IFD1 (if
+     * present) describes the thumbnail.
+     */
+    private static final class Tiff {
+        // Guards against directories that point back at each other.
+        private static final int MAX_DEPTH = 4;
+
+        final ByteOrder mOrder;
+        final Ifd mIfd0 = new Ifd();
+        @Nullable
+        Ifd mIfd1;
+        @Nullable
+        byte[] mThumbnail;
+
+        Tiff(ByteOrder order) {
+            mOrder = order;
+        }
+
+        /**
+         * Parses the TIFF between start and end, or returns null if it's malformed.
+         */
+        @Nullable
+        static Tiff parse(ByteBuffer buffer, int start, int end) {
+            ByteBuffer tiff = slice(buffer, start, end).slice();
+            try {
+                ByteOrder order;
+                int byteOrder = tiff.getShort(0);
+                if (byteOrder == 0x4949) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else if (byteOrder == 0x4D4D) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else {
+                    Log.w(TAG, "Unrecognized byte order in Exif segment");
+                    return null;
+                }
+                tiff.order(order);
+
+                Tiff result = new Tiff(order);
+                int ifd1Offset = readIfd(tiff, tiff.getInt(4), result.mIfd0, 0);
+                if (ifd1Offset != 0) {
+                    Ifd ifd1 = new Ifd();
+                    readIfd(tiff, ifd1Offset, ifd1, 0);
+
+                    // The thumbnail offset is relative to the old layout, so we hold onto the bytes
+                    // and recompute the offset when writing.
+                    Entry offset = ifd1.mEntries.remove(TAG_THUMBNAIL_OFFSET);
+                    Entry length = ifd1.mEntries.remove(TAG_THUMBNAIL_LENGTH);
+                    if (offset != null && length != null) {
+                        int thumbnailOffset = (int) getUnsignedValue(offset, order);
+                        int thumbnailLength = (int) getUnsignedValue(length, order);
+                        result.mThumbnail = new byte[thumbnailLength];
+                        ByteBuffer thumbnail = tiff.duplicate();
+                        thumbnail.position(thumbnailOffset);
+                        thumbnail.get(result.mThumbnail);
+                        result.mIfd1 = ifd1;
+                    }
+                }
+                return result;
+            } catch (IndexOutOfBoundsException | IllegalArgumentException | java.nio.BufferUnderflowException | NegativeArraySizeException e) {
+                Log.w(TAG, "Malformed Exif segment. Ignoring it.", e);
+                return null;
+            }
+        }
+
+        /**
+         * Reads the directory at the given offset into ifd.
+         *
+         * @return The offset of the next directory, or 0 if there is none.
+         */
+        private static int readIfd(ByteBuffer tiff, int offset, Ifd ifd, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Exif directories are nested too deeply");
+            }
+
+            int count = tiff.getShort(offset) & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int entryOffset = offset + 2 + 12 * i;
+                int tag = tiff.getShort(entryOffset) & 0xFFFF;
+                int type = tiff.getShort(entryOffset + 2) & 0xFFFF;
+                int valueCount = tiff.getInt(entryOffset + 4);
+                if (type <= 0 || type >= TYPE_SIZES.length || valueCount < 0) {
+                    // Not a type we know how to copy. Skip it.
+                    continue;
+                }
+
+                long size = (long) TYPE_SIZES[type] * valueCount;
+                if (size > tiff.limit()) {
+                    throw new IllegalArgumentException("Exif entry is larger than the segment");
+                }
+                int valueOffset = size <= 4 ? entryOffset + 8 : tiff.getInt(entryOffset + 8);
+
+                if (tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER || tag == TAG_INTEROPERABILITY_IFD_POINTER) {
+                    Ifd subIfd = new Ifd();
+                    readIfd(tiff, tiff.getInt(valueOffset), subIfd, depth + 1);
+                    ifd.mSubIfds.put(tag, subIfd);
+                    continue;
+                }
+
+                byte[] value = new byte[(int) size];
+                ByteBuffer source = tiff.duplicate();
+                source.position(valueOffset);
+                source.get(value);
+                ifd.put(tag, new Entry(type, valueCount, value));
+            }
+            return tiff.getInt(offset + 2 + 12 * count);
+        }
+
+        private static long getUnsignedValue(Entry entry, ByteOrder order) {
+            ByteBuffer value = ByteBuffer.wrap(entry.mValue).order(order);
+            switch (entry.mType) {
+                case TYPE_SHORT:
+                    return value.getShort() & 0xFFFF;
+                case TYPE_LONG:
+                    return value.getInt() & 0xFFFFFFFFL;
+                default:
+                    throw new IllegalArgumentException("Unexpected type " + entry.mType);
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mIfd1 != null && mThumbnail != null) {
+                // Placeholder. The offset is filled in once we know where the thumbnail goes.
+                mIfd1.putLong(TAG_THUMBNAIL_OFFSET, 0, mOrder);
+                mIfd1.putLong(TAG_THUMBNAIL_LENGTH, mThumbnail.length, mOrder);
+            }
+
+            // Lay everything out: the header, IFD0 (and its sub directories), IFD1, the thumbnail.
+            int length = layout(mIfd0, 8);
+            int thumbnailOffset = 0;
+            if (mIfd1 != null) {
+                length = layout(mIfd1, length);
+                if (mThumbnail != null) {
+                    thumbnailOffset = length;
+                    length += mThumbnail.length;
+                    mIfd1.putLong(TAG_THUMBNAIL_OFFSET, thumbnailOffset, mOrder);
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(mOrder);
+            buffer.put(mOrder == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+            buffer.put(mOrder == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+            buffer.putShort((short) 42);
+            buffer.putInt(mIfd0.mOffset);
+            writeIfd(buffer, mIfd0, mIfd1 == null ? 0 : mIfd1.mOffset);
+            if (mIfd1 != null) {
+                writeIfd(buffer, mIfd1, 0);
+                if (mThumbnail != null) {
+                    buffer.position(thumbnailOffset);
+                    buffer.put(mThumbnail);
+                }
+            }
+            return buffer.array();
+        }
+
+        /**
+         * Assigns an offset to the directory and its sub directories.
+         *
+         * @return The offset right after everything that was laid out.
+         */
+        private static int layout(Ifd ifd, int offset) {
+            ifd.mOffset = offset;
+            offset += 2 + 12 * ifd.size() + 4;
+            for (Entry entry : ifd.mEntries.values()) {
+                if (entry.mValue.length > 4) {
+                    // Values start on a word boundary.
+                    offset += entry.mValue.length + (entry.mValue.length & 1);
+                }
+            }
+            for (Ifd subIfd : ifd.mSubIfds.values()) {
+                offset = layout(subIfd, offset);
+            }
+            return offset;
+        }
+
+        private static void writeIfd(ByteBuffer buffer, Ifd ifd, int nextOffset) {
+            int dataOffset = ifd.mOffset + 2 + 12 * ifd.size() + 4;
+
+            buffer.position(ifd.mOffset);
+            buffer.putShort((short) ifd.size());
+
+            // Entries must be sorted by tag, including the pointers to sub directories.
+            TreeSet<Integer> tags = new TreeSet<>(ifd.mEntries.keySet());
+            tags.addAll(ifd.mSubIfds.keySet());
+            for (int tag : tags) {
+                buffer.putShort((short) tag);
+                Ifd subIfd = ifd.mSubIfds.get(tag);
+                if (subIfd != null) {
+                    buffer.putShort((short) TYPE_LONG);
+                    buffer.putInt(1);
+                    buffer.putInt(subIfd.mOffset);
+                    continue;
+                }
+
+                Entry entry = ifd.mEntries.get(tag);
+                buffer.putShort((short) entry.mType);
+                buffer.putInt(entry.mCount);
+                if (entry.mValue.length <= 4) {
+                    buffer.put(entry.mValue);
+                    for (int i = entry.mValue.length; i < 4; i++) {
+                        buffer.put((byte) 0);
+                    }
+                } else {
+                    buffer.putInt(dataOffset);
+                    int position = buffer.position();
+                    buffer.position(dataOffset);
+                    buffer.put(entry.mValue);
+                    buffer.position(position);
+                    dataOffset += entry.mValue.length + (entry.mValue.length & 1);
+                }
+            }
+            buffer.putInt(nextOffset);
+
+            for (Ifd subIfd : ifd.mSubIfds.values()) {
+                writeIfd(buffer, subIfd, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.xlythe.view.camera;
+
+import java.util.Locale;
+
+/**
+ * A fixed-size histogram of latencies. Values are recorded with microsecond resolution and
+ * bucketed with a relative error of about 3%, which is plenty for spotting p50/p99 regressions
+ * while keeping memory constant no matter how many values are recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Anything over 2^35 microseconds (~9.5 hours) is clamped.
+    private static final int MAX_MAGNITUDE = 35;
+    private static final long MAX_VALUE_MICROS = (1L << MAX_MAGNITUDE) - 1;
+
+    private final long[] mCounts = new long[(MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT];
+    private long mTotalCount;
+    private long mTotalMicros;
+    private long mMinMicros = Long.MAX_VALUE;
+    private long mMaxMicros;
+
+    /**
+     * Records a single latency, in nanoseconds.
+     */
+    public synchronized void record(long durationNanos) {
+        long micros = Math.min(Math.max(durationNanos / 1000, 0), MAX_VALUE_MICROS);
+        mCounts[getBucketIndex(micros)]++;
+        mTotalCount++;
+        mTotalMicros += micros;
+        mMinMicros = Math.min(mMinMicros, micros);
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return The smallest recorded latency, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMinMicros * 1000;
+    }
+
+    /**
+     * @return The largest recorded latency, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMax() {
+        return mMaxMicros * 1000;
+    }
+
+    /**
+     * @return The average latency, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMean() {
+        return mTotalCount == 0 ? 0 : mTotalMicros * 1000 / mTotalCount;
+    }
+
+    /**
+     * Returns the latency, in nanoseconds, that the given percentage of recorded values are at or
+     * below. For example, getPercentile(99) returns the p99 latency.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+
+        percentile = Math.min(Math.max(percentile, 0), 100);
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                // Report the top of the bucket, but never more than what we actually saw.
+                return Math.max(Math.min(getBucketUpperBound(i), mMaxMicros), mMinMicros) * 1000;
+            }
+        }
+        return mMaxMicros * 1000;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalMicros = 0;
+        mMinMicros = Long.MAX_VALUE;
+        mMaxMicros = 0;
+    }
+
+    /**
+     * Values below 2 * SUB_BUCKET_COUNT get their own bucket. After that, each power of two is
+     * split into SUB_BUCKET_COUNT equally sized buckets.
+     */
+    private static int getBucketIndex(long micros) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros | 1);
+        int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+        int subBucket = (int) (micros >>> shift);
+        return shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        int shift = Math.max(0, index / SUB_BUCKET_COUNT - 1);
+        long subBucket = index - shift * SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "LatencyHistogram{count=%d, min=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms}",
+                getCount(), getMin() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6,
+                getPercentile(99) / 1e6, getMax() / 1e6);
+    }
+}
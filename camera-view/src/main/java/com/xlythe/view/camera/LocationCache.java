@@ -0,0 +1,240 @@
+package com.xlythe.view.camera;
+
+import android.Manifest;
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.xlythe.view.camera.ICameraModule.DEBUG;
+import static com.xlythe.view.camera.ICameraModule.TAG;
+
+/**
+ * Remembers the most recent location, so that pictures and videos can be tagged without waiting on
+ * GPS. While started, the cache listens to the passive provider, which costs no extra power since
+ * it only hears about locations other apps asked for. Reads never block.
+ *
+ * Every CameraView starts the shared cache while it's open and stops it once it's closed. Locations
+ * are only collected if the app holds {@link Manifest.permission#ACCESS_FINE_LOCATION}.
+ */
+public class LocationCache {
+    /**
+     * By default, locations older than this are too stale to tag a picture with.
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 2 * 60 * 60 * 1000;
+
+    /**
+     * Pass to {@link #setMaxAccuracy(float)} to accept locations no matter how inaccurate they are.
+     */
+    public static final float ANY_ACCURACY = Float.MAX_VALUE;
+
+    // A newer location replaces an older one, even if it's less accurate, once it's this much newer.
+    private static final long SIGNIFICANTLY_NEWER_MILLIS = 60 * 1000;
+
+    // How often we'd like to hear about new locations. The passive provider is free, so this only
+    // limits how often we're woken up.
+    private static final long MIN_UPDATE_INTERVAL_MILLIS = 5 * 1000;
+
+    private static LocationCache sDefault;
+
+    /**
+     * Returns the cache shared by every CameraView.
+     */
+    public static synchronized LocationCache getDefault(@NonNull Context context) {
+        if (sDefault == null) {
+            sDefault = new LocationCache(context);
+        }
+        return sDefault;
+    }
+
+    private final Context mContext;
+    private final AtomicReference<Location> mLatest = new AtomicReference<>();
+
+    private volatile long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private volatile float mMaxAccuracy = ANY_ACCURACY;
+
+    // How many callers have started the cache without stopping it.
+    private int mStartCount;
+    private boolean mIsListening;
+
+    private final LocationListener mLocationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            offer(location);
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+        @Override
+        public void onProviderEnabled(String provider) {}
+
+        @Override
+        public void onProviderDisabled(String provider) {}
+    };
+
+    LocationCache(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Starts listening for locations. Must be balanced by a call to {@link #stop()}.
+     */
+    @SuppressWarnings({"MissingPermission"})
+    public synchronized void start() {
+        mStartCount++;
+        if (mIsListening || !PermissionChecker.hasPermissions(mContext, Manifest.permission.ACCESS_FINE_LOCATION)) {
+            return;
+        }
+
+        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        if (locationManager == null) {
+            return;
+        }
+
+        try {
+            // Seed the cache so that there's something to read right away.
+            for (String provider : locationManager.getProviders(true /* enabledOnly */)) {
+                Location location = locationManager.getLastKnownLocation(provider);
+                if (location != null) {
+                    offer(location);
+                }
+            }
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                    MIN_UPDATE_INTERVAL_MILLIS, 0 /* minDistance */, mLocationListener, Looper.getMainLooper());
+            mIsListening = true;
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Failed to listen for locations", e);
+        }
+    }
+
+    /**
+     * Stops listening for locations, once every call to {@link #start()} has been balanced. The
+     * latest location is still remembered.
+     */
+    @SuppressWarnings({"MissingPermission"})
+    public synchronized void stop() {
+        if (mStartCount == 0) {
+            Log.w(TAG, "LocationCache was stopped more times than it was started");
+            return;
+        }
+
+        mStartCount--;
+        if (mStartCount > 0 || !mIsListening) {
+            return;
+        }
+
+        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        try {
+            locationManager.removeUpdates(mLocationListener);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Failed to stop listening for locations", e);
+        }
+        mIsListening = false;
+    }
+
+    /**
+     * Sets how old a location can be before {@link #getLatest()} ignores it. Defaults to
+     * {@link #DEFAULT_MAX_AGE_MILLIS}.
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxAge() {
+        return mMaxAgeMillis;
+    }
+
+    /**
+     * Sets the largest accuracy radius, in meters, that a location can have and still be
+     * remembered. Defaults to {@link #ANY_ACCURACY}.
+     */
+    public void setMaxAccuracy(float meters) {
+        mMaxAccuracy = meters;
+    }
+
+    public float getMaxAccuracy() {
+        return mMaxAccuracy;
+    }
+
+    /**
+     * Returns the latest location, or null if there isn't one that's younger than
+     * {@link #getMaxAge()}.
+     */
+    @Nullable
+    public Location getLatest() {
+        return getLatest(mMaxAgeMillis);
+    }
+
+    /**
+     * Returns the latest location, or null if there isn't one that's younger than the given age.
+     */
+    @Nullable
+    public Location getLatest(long maxAgeMillis) {
+        Location location = mLatest.get();
+        if (location == null || getAgeMillis(location) > maxAgeMillis) {
+            return null;
+        }
+        return location;
+    }
+
+    /**
+     * Remembers the location if it's an improvement on the one we have.
+     */
+    void offer(@NonNull Location location) {
+        if (location.hasAccuracy() && location.getAccuracy() > mMaxAccuracy) {
+            if (DEBUG) Log.d(TAG, "Ignoring an inaccurate location from " + location.getProvider());
+            return;
+        }
+
+        while (true) {
+            Location latest = mLatest.get();
+            if (latest != null && !isBetterLocation(location, latest)) {
+                return;
+            }
+            if (mLatest.compareAndSet(latest, location)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the location should replace the current one. A location that's much newer
+     * always wins. Otherwise, the more accurate one does.
+     */
+    static boolean isBetterLocation(@NonNull Location location, @NonNull Location current) {
+        long timeDelta = getAgeMillis(current) - getAgeMillis(location);
+        if (timeDelta > SIGNIFICANTLY_NEWER_MILLIS) {
+            return true;
+        } else if (timeDelta < -SIGNIFICANTLY_NEWER_MILLIS) {
+            return false;
+        }
+
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+        float currentAccuracy = current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE;
+        if (accuracy < currentAccuracy) {
+            return true;
+        }
+        return timeDelta > 0 && accuracy == currentAccuracy;
+    }
+
+    /**
+     * Returns how long ago the location was determined. The elapsed realtime clock is preferred,
+     * since the wall clock can jump and GPS time may not agree with it.
+     */
+    static long getAgeMillis(@NonNull Location location) {
+        if (Build.VERSION.SDK_INT >= 17 && location.getElapsedRealtimeNanos() != 0) {
+            return (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+        }
+        return System.currentTimeMillis() - location.getTime();
+    }
+}
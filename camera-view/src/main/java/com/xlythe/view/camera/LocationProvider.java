@@ -15,6 +15,10 @@ import android.support.annotation.WorkerThread;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Queries GPS for a location, waiting up to a timeout for a fix. CameraView itself uses
+ * {@link LocationCache}, which never waits.
+ */
 public class LocationProvider {
     @Nullable
     @WorkerThread
@@ -26,7 +30,7 @@ public class LocationProvider {
 
         LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
         Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-        if (location == null || location.getTime() < locationCacheTimeout) {
+        if (location == null || System.currentTimeMillis() - location.getTime() > locationCacheTimeout) {
             LocationCallback locationCallback = new LocationCallback();
             locationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, locationCallback, Looper.getMainLooper());
             return locationCallback.await(queryTimeoutMillis, TimeUnit.MILLISECONDS);
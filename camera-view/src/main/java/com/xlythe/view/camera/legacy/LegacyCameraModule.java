@@ -8,15 +8,19 @@ import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.xlythe.view.camera.CameraMetrics;
 import com.xlythe.view.camera.CameraView;
+import com.xlythe.view.camera.CaptureSink;
 import com.xlythe.view.camera.ICameraModule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
 
 @SuppressWarnings("deprecation")
 public class LegacyCameraModule extends ICameraModule {
@@ -25,9 +29,20 @@ public class LegacyCameraModule extends ICameraModule {
     private int mActiveCamera = INVALID_CAMERA_ID;
     private Camera mCamera;
 
+    // Pictures waiting their turn. The legacy api can only take one picture at a time, and the
+    // preview has to restart before the next one.
+    private final Queue<LegacyPictureListener> mPendingPictures = new ArrayDeque<>();
+    private boolean mIsTakingPicture;
+
+    // The picture the camera is taking, until its data arrives.
+    private LegacyPictureListener mActivePicture;
+
     private MediaRecorder mVideoRecorder;
     private File mVideoFile;
 
+    // True while the camera is animating the zoom. See smoothZoomTo(float, long).
+    private boolean mIsSmoothZooming;
+
     public LegacyCameraModule(CameraView view) {
         super(view);
     }
@@ -36,6 +51,7 @@ public class LegacyCameraModule extends ICameraModule {
     public void open() {
         Log.d(TAG, "onOpen() activeCamera="+getActiveCamera());
         mCamera = Camera.open(getActiveCamera());
+        getCameraMetrics().record(CameraMetrics.Milestone.CAMERA_OPENED);
 
         try {
             mCamera.setPreviewTexture(getSurfaceTexture());
@@ -46,9 +62,17 @@ public class LegacyCameraModule extends ICameraModule {
             Camera.Size previewSize = chooseOptimalPreviewSize(mCamera.getParameters().getSupportedPreviewSizes(), getWidth(), getHeight());
             parameters.setPreviewSize(previewSize.width, previewSize.height);
             parameters.setPictureFormat(ImageFormat.JPEG);
+            applyJpegParameters(parameters);
             mCamera.setParameters(parameters);
             transformPreview(getWidth(), getHeight(), previewSize.width, previewSize.height, cameraOrientation);
+            getCameraMetrics().record(CameraMetrics.Milestone.SESSION_CONFIGURED);
 
+            mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] data, Camera camera) {
+                    getCameraMetrics().record(CameraMetrics.Milestone.FIRST_FRAME);
+                }
+            });
             mCamera.startPreview();
         } catch (IOException e) {
             e.printStackTrace();
@@ -63,6 +87,21 @@ public class LegacyCameraModule extends ICameraModule {
             mCamera.release();
             mCamera = null;
         }
+        mIsSmoothZooming = false;
+
+        // The camera is gone, so pictures that haven't arrived never will. Reporting a failure
+        // frees their slot in the CameraView's capture queue, which may hand us the next picture,
+        // so we let go of our state first.
+        List<LegacyPictureListener> dropped = new ArrayList<>(mPendingPictures);
+        if (mIsTakingPicture && mActivePicture != null) {
+            dropped.add(0, mActivePicture);
+        }
+        mPendingPictures.clear();
+        mActivePicture = null;
+        mIsTakingPicture = false;
+        for (LegacyPictureListener listener : dropped) {
+            listener.onFailure();
+        }
     }
 
     private void transformPreview(int viewWidth, int viewHeight, int previewWidth, int previewHeight, int cameraOrientation) {
@@ -107,7 +146,62 @@ public class LegacyCameraModule extends ICameraModule {
 
     @Override
     public void takePicture(File file) {
-        mCamera.takePicture(null, null, new LegacyPictureListener(file, getRelativeCameraOrientation(false /* isPreview */), this));
+        enqueuePicture(new LegacyPictureListener(file, getRelativeCameraOrientation(false /* isPreview */), this));
+    }
+
+    @Override
+    public void takePictures(List<File> files) {
+        for (File file : files) {
+            enqueuePicture(new LegacyPictureListener(file, getRelativeCameraOrientation(false /* isPreview */), this, true /* isBurst */));
+        }
+    }
+
+    @Override
+    public void takePicture(CaptureSink sink) {
+        enqueuePicture(new LegacyPictureListener(sink, getRelativeCameraOrientation(false /* isPreview */), this));
+    }
+
+    private void enqueuePicture(LegacyPictureListener listener) {
+        mPendingPictures.add(listener);
+        if (!mIsTakingPicture) {
+            takeNextPicture();
+        }
+    }
+
+    /**
+     * Called once a picture's data has arrived and the preview has restarted, so that we can take
+     * the next one.
+     */
+    void onPictureTaken() {
+        mIsTakingPicture = false;
+        mActivePicture = null;
+        takeNextPicture();
+    }
+
+    private void takeNextPicture() {
+        LegacyPictureListener listener;
+        while ((listener = mPendingPictures.poll()) != null) {
+            if (mCamera == null) {
+                Log.w(TAG, "Camera closed before the picture was taken");
+                listener.onFailure();
+                continue;
+            }
+
+            try {
+                mCamera.takePicture(new Camera.ShutterCallback() {
+                    @Override
+                    public void onShutter() {
+                        getCameraMetrics().record(CameraMetrics.Milestone.CAPTURE_COMPLETED);
+                    }
+                }, null, listener);
+                mIsTakingPicture = true;
+                mActivePicture = listener;
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to take picture", e);
+                listener.onFailure();
+            }
+        }
     }
 
     @Override
@@ -223,6 +317,7 @@ public class LegacyCameraModule extends ICameraModule {
 
     @Override
     public void setZoomLevel(int zoomLevel) {
+        stopSmoothZoom();
         Camera.Parameters parameters = mCamera.getParameters();
         parameters.setZoom(zoomLevel);
         mCamera.setParameters(parameters);
@@ -243,6 +338,166 @@ public class LegacyCameraModule extends ICameraModule {
         return mCamera.getParameters().isZoomSupported();
     }
 
+    @Override
+    public void setJpegQuality(int quality) {
+        super.setJpegQuality(quality);
+        updateJpegParameters();
+    }
+
+    @Override
+    public void setThumbnailSize(int width, int height) {
+        super.setThumbnailSize(width, height);
+        updateJpegParameters();
+    }
+
+    private void updateJpegParameters() {
+        if (mCamera == null) {
+            return;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        applyJpegParameters(parameters);
+        mCamera.setParameters(parameters);
+    }
+
+    private void applyJpegParameters(Camera.Parameters parameters) {
+        parameters.setJpegQuality(getJpegQuality());
+        if (hasThumbnailSize()) {
+            Camera.Size size = chooseClosestSize(parameters.getSupportedJpegThumbnailSizes(), getThumbnailWidth(), getThumbnailHeight());
+            if (size != null) {
+                parameters.setJpegThumbnailSize(size.width, size.height);
+            }
+        }
+    }
+
+    /**
+     * Returns the size closest to the one given, or null if there are none to choose from.
+     */
+    private static Camera.Size chooseClosestSize(List<Camera.Size> sizes, int width, int height) {
+        if (sizes == null) {
+            return null;
+        }
+
+        Camera.Size closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (Camera.Size size : sizes) {
+            long dx = size.width - width;
+            long dy = size.height - height;
+            long distance = dx * dx + dy * dy;
+            if (distance < closestDistance) {
+                closest = size;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    @Override
+    public void setZoomRatio(float zoomRatio) {
+        if (mCamera == null) {
+            return;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            return;
+        }
+
+        stopSmoothZoom();
+        parameters.setZoom(toZoomLevel(parameters.getZoomRatios(), zoomRatio));
+        mCamera.setParameters(parameters);
+    }
+
+    @Override
+    public float getZoomRatio() {
+        if (mCamera == null) {
+            return 1f;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            return 1f;
+        }
+        return parameters.getZoomRatios().get(parameters.getZoom()) / 100f;
+    }
+
+    @Override
+    public float getMaxZoomRatio() {
+        if (mCamera == null) {
+            return 1f;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            return 1f;
+        }
+        return parameters.getZoomRatios().get(parameters.getMaxZoom()) / 100f;
+    }
+
+    /**
+     * Uses {@link Camera#startSmoothZoom(int)} if the camera supports it. The camera decides how
+     * fast to zoom, so durationMillis is ignored.
+     */
+    @Override
+    public void smoothZoomTo(float zoomRatio, long durationMillis) {
+        if (mCamera == null) {
+            return;
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            return;
+        }
+
+        if (durationMillis <= 0 || !parameters.isSmoothZoomSupported()) {
+            setZoomRatio(zoomRatio);
+            return;
+        }
+
+        stopSmoothZoom();
+        mCamera.setZoomChangeListener(new Camera.OnZoomChangeListener() {
+            @Override
+            public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
+                if (stopped) {
+                    mIsSmoothZooming = false;
+                }
+            }
+        });
+        mCamera.startSmoothZoom(toZoomLevel(parameters.getZoomRatios(), zoomRatio));
+        mIsSmoothZooming = true;
+    }
+
+    private void stopSmoothZoom() {
+        if (mIsSmoothZooming && mCamera != null) {
+            mCamera.stopSmoothZoom();
+        }
+        mIsSmoothZooming = false;
+    }
+
+    /**
+     * Returns the zoom level whose ratio is closest to the given ratio.
+     *
+     * @param zoomRatios The ratios for each zoom level, multiplied by 100, in ascending order.
+     */
+    private static int toZoomLevel(List<Integer> zoomRatios, float zoomRatio) {
+        int index = Collections.binarySearch(zoomRatios, Math.round(zoomRatio * 100));
+        if (index >= 0) {
+            return index;
+        }
+
+        // Not an exact match. Pick whichever neighbor is closer.
+        int insertionPoint = -index - 1;
+        if (insertionPoint == 0) {
+            return 0;
+        }
+        if (insertionPoint == zoomRatios.size()) {
+            return zoomRatios.size() - 1;
+        }
+        int lower = zoomRatios.get(insertionPoint - 1);
+        int upper = zoomRatios.get(insertionPoint);
+        return zoomRatio * 100 - lower <= upper - zoomRatio * 100 ? insertionPoint - 1 : insertionPoint;
+    }
+
     @Override
     public boolean hasFrontFacingCamera() {
         // Search for the front facing camera
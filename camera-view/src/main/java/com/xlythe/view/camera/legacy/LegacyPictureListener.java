@@ -5,58 +5,188 @@ import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.hardware.Camera;
 import android.os.AsyncTask;
+import android.util.Log;
+
+import com.xlythe.view.camera.BufferPool;
+import com.xlythe.view.camera.CameraMetrics;
+import com.xlythe.view.camera.CaptureSink;
+import com.xlythe.view.camera.CapturedImage;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.xlythe.view.camera.ICameraModule.TAG;
 
 @SuppressWarnings("deprecation")
 class LegacyPictureListener implements Camera.PictureCallback {
-    // The file we're saving the picture to.
+    // The file we're saving the picture to, unless it's handed to mSink instead.
     private final File mFile;
 
+    // Receives the picture in memory, if it isn't being saved to a file.
+    private final CaptureSink mSink;
+
     // The camera's orientation. If it's not 0, we'll have to rotate the image.
     private final int mOrientation;
 
     // The listener to notify when we're done.
     private final LegacyCameraModule mModule;
 
+    // If true, the picture is part of a burst and skips confirmation.
+    private final boolean mIsBurst;
+
+    // Where the re-encoded picture is written, so that we don't allocate a new array every shot.
+    private final BufferPool mBufferPool;
+
+    // The quality the picture is re-encoded with.
+    private final int mJpegQuality;
+
     private static final double MAX_UPPER = 2560.0;
     private static final double MAX_LOWER = 1440.0;
 
     LegacyPictureListener(File file, int orientation, LegacyCameraModule module) {
+        this(file, orientation, module, false /* isBurst */);
+    }
+
+    LegacyPictureListener(File file, int orientation, LegacyCameraModule module, boolean isBurst) {
+        this(file, null /* sink */, orientation, module, isBurst);
+    }
+
+    LegacyPictureListener(CaptureSink sink, int orientation, LegacyCameraModule module) {
+        this(null /* file */, sink, orientation, module, false /* isBurst */);
+    }
+
+    private LegacyPictureListener(File file, CaptureSink sink, int orientation, LegacyCameraModule module, boolean isBurst) {
         mFile = file;
+        mSink = sink;
         mOrientation = orientation;
         mModule = module;
+        mIsBurst = isBurst;
+        mBufferPool = BufferPool.getDefault(module.getContext());
+        mJpegQuality = module.getJpegQuality();
     }
 
     @Override
     public void onPictureTaken(final byte[] data, final Camera camera) {
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                byte[] cleanedUp = manuallyRotateImage(data);
+        mModule.getCameraMetrics().record(CameraMetrics.Milestone.IMAGE_AVAILABLE);
+        if (mSink != null) {
+            // The camera already gave us a JPEG. There's no need to decode and rotate it, since
+            // the orientation is handed over alongside it.
+            mModule.getEncodeExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSink.onCaptured(new CapturedImage(ByteBuffer.wrap(data), mOrientation, false /* flipped */) {
+                        @Override
+                        protected void onRelease() {
+                            // The array belongs to us alone, so the GC takes care of it.
+                        }
+                    });
+                }
+            });
+            camera.startPreview();
+            mModule.onPictureTaken();
+            return;
+        }
 
+        // Pictures in a burst aren't confirmed, so there's nothing to review.
+        final boolean review = !mIsBurst && mModule.isImageConfirmationEnabled();
+        final int reviewWidth = mModule.getWidth();
+        final int reviewHeight = mModule.getHeight();
+        new AsyncTask<Void, Bitmap, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                BufferPool.PooledOutputStream cleanedUp = null;
+                FileOutputStream fos = null;
+                boolean success = false;
                 try {
-                    FileOutputStream fos = new FileOutputStream(mFile);
-                    fos.write(cleanedUp);
+                    Bitmap bitmap = manuallyRotateImage(data);
+                    if (review) {
+                        // We've already decoded the picture, so the review is almost free.
+                        publishProgress(createReview(bitmap, reviewWidth, reviewHeight));
+                    }
+
+                    // The original JPEG is a good guess at how large the new one will be.
+                    cleanedUp = new BufferPool.PooledOutputStream(mBufferPool, data.length);
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, mJpegQuality, cleanedUp);
+
+                    fos = new FileOutputStream(mFile);
+                    cleanedUp.writeTo(fos);
                     fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    fos = null;
+                    mModule.getCameraMetrics().record(CameraMetrics.Milestone.JPEG_WRITTEN);
+                    // The re-encoded picture has no exif data to add, so it's complete as soon as
+                    // it's written.
+                    mModule.getCameraMetrics().record(CameraMetrics.Milestone.EXIF_SAVED);
+                    success = true;
+                } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                    // eg. the disk is full, or no room to decode the picture.
+                    Log.e(TAG, "Failed to write the file", e);
+                } finally {
+                    if (cleanedUp != null) {
+                        cleanedUp.close();
+                    }
+                    if (fos != null) {
+                        try {
+                            fos.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to close the output stream", e);
+                        }
+                    }
+                }
+                if (!success && mFile.exists() && !mFile.delete()) {
+                    Log.w(TAG, "Failed to clean up " + mFile);
                 }
-                return null;
+                return success;
+            }
+
+            @Override
+            protected void onProgressUpdate(Bitmap... reviews) {
+                mModule.showImageReview(mFile, reviews[0]);
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                mModule.showImageConfirmation(mFile);
+            protected void onPostExecute(Boolean success) {
+                if (!success) {
+                    mModule.onImageFailure(mFile);
+                } else if (mIsBurst) {
+                    mModule.onImageCaptured(mFile);
+                } else {
+                    mModule.showImageConfirmation(mFile);
+                }
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }.executeOnExecutor(mModule.getEncodeExecutor());
         camera.startPreview();
+        mModule.onPictureTaken();
     }
 
-    private byte[] manuallyRotateImage(byte[] data) {
+    /**
+     * Lets whoever asked for the picture know that it won't arrive.
+     */
+    void onFailure() {
+        if (mSink != null) {
+            mSink.onFailure();
+        } else {
+            mModule.onImageFailure(mFile);
+        }
+    }
+
+    /**
+     * Scales the bitmap down until it just covers the view.
+     */
+    private static Bitmap createReview(Bitmap bitmap, int viewWidth, int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return bitmap;
+        }
+        double scale = Math.max((double) viewWidth / bitmap.getWidth(), (double) viewHeight / bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap,
+                (int) Math.ceil(bitmap.getWidth() * scale), (int) Math.ceil(bitmap.getHeight() * scale), true);
+    }
+
+    private Bitmap manuallyRotateImage(byte[] data) {
         Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
 
         Matrix matrix = new Matrix();
@@ -80,11 +210,6 @@ class LegacyPictureListener implements Camera.PictureCallback {
             bitmap = Bitmap.createScaledBitmap(bitmap, width, height, false);
         }
 
-        bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
-
-        return stream.toByteArray();
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 }
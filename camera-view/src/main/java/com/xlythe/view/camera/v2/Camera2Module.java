@@ -7,15 +7,16 @@ import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
@@ -23,12 +24,18 @@ import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.xlythe.view.camera.CameraMetrics;
 import com.xlythe.view.camera.CameraView;
+import com.xlythe.view.camera.CaptureSink;
 import com.xlythe.view.camera.ICameraModule;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * A wrapper around the Camera2 APIs. Camera2 has some peculiarities, such as crashing if you attach
@@ -49,6 +56,24 @@ public class Camera2Module extends ICameraModule {
      */
     private final CameraManager mCameraManager;
 
+    /**
+     * A cache of {@link CameraInfo}s, keyed by camera id. Camera characteristics don't change while
+     * a camera is connected, so we only query the {@link CameraManager} once per camera.
+     */
+    private final Map<String, CameraInfo> mCameraInfos = new ConcurrentHashMap<>();
+
+    /**
+     * A cache of {@link PreviewConfig}s, keyed by camera id. The config for the next camera is
+     * computed ahead of time so that {@link #toggleCamera()} can skip straight to opening it.
+     */
+    private final Map<String, PreviewConfig> mPreviewConfigs = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of every camera on the device. Cleared if a new camera shows up.
+     */
+    @Nullable
+    private volatile String[] mCameraIds;
+
     /**
      * This is the id of the camera (eg. front or back facing) that we're currently using.
      */
@@ -65,14 +90,16 @@ public class Camera2Module extends ICameraModule {
     private CameraDevice mCameraDevice;
 
     /**
-     * A background thread to receive callbacks from the camera on.
+     * The shared background thread that we receive callbacks from the camera on.
      */
-    private HandlerThread mBackgroundThread;
+    private final CameraExecutor mCameraExecutor = CameraExecutor.getInstance();
 
     /**
-     * A handler pointing to the background thread.
+     * Scopes work on the background thread to the currently open camera. It's cancelled when the
+     * camera closes, so that late callbacks from a previous camera are ignored.
      */
-    private Handler mBackgroundHandler;
+    @Nullable
+    private CameraExecutor.Token mToken;
 
     /**
      * The currently active session. See {@link PictureSession} and {@link VideoSession}.
@@ -81,42 +108,236 @@ public class Camera2Module extends ICameraModule {
     private Session mActiveSession;
 
     /**
-     * The current zoom level, from 0 to {@link #getMaxZoomLevel()}.
+     * Records videos on Android M and above. The recorder's surface is allocated once per camera
+     * open and reused by every session that records.
+     */
+    @Nullable
+    private PersistentVideoRecorder mVideoRecorder;
+
+    /**
+     * The current zoom ratio, from 1 to {@link #getMaxZoomRatio()}.
+     */
+    private volatile float mZoomRatio = 1f;
+
+    /**
+     * The zoom animation started by {@link #smoothZoomTo(float, long)}, if one is running. It's
+     * stepped once per frame from {@link #mRepeatingCaptureCallback}.
+     */
+    @Nullable
+    private volatile ZoomAnimation mZoomAnimation;
+
+    /**
+     * If true, {@link #mActiveCamera} already points at the camera we're switching to, but the
+     * session still belongs to the previous one. Focus and zoom can't be mapped onto the new
+     * camera's sensor until it's open, so they're held back until then.
      */
-    private int mZoomLevel;
+    private volatile boolean mIsSwitchingCamera = false;
 
     /**
      * If true, the preview should be paused.
      */
     private boolean mIsPaused = false;
 
+    /**
+     * If true, the camera has opened but the SurfaceTexture wasn't ready yet. The session will be
+     * created in {@link #onSurfaceTextureAvailable()}.
+     */
+    private boolean mAwaitingSurfaceTexture = false;
+
+    /**
+     * If true, the camera is starting up and we haven't seen a frame yet. Used for metrics.
+     */
+    private volatile boolean mAwaitingFirstFrame = false;
+
     /**
      * Callbacks for when the camera is available / unavailable
      */
-    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    private CameraDevice.StateCallback newStateCallback(final CameraExecutor.Token token, final boolean isSwitching) {
+        return new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(@NonNull CameraDevice cameraDevice) {
+                synchronized (Camera2Module.this) {
+                    if (token.isCancelled()) {
+                        // We were closed while the camera was still opening.
+                        if (DEBUG) Log.d(TAG, "Camera opened after it was closed. Closing it again.");
+                        cameraDevice.close();
+                        return;
+                    }
+
+                    // The camera has opened. Start the preview now.
+                    getCameraMetrics().record(CameraMetrics.Milestone.CAMERA_OPENED);
+                    mIsSwitchingCamera = false;
+                    if (isSwitching) {
+                        // The previous camera kept its preview running while this one opened.
+                        // Now that we're ready to take over the SurfaceTexture, let it go.
+                        releaseCameraDevice();
+                        mAwaitingFirstFrame = true;
+                    }
+                    mCameraDevice = cameraDevice;
+                    if (getSurfaceTexture() == null) {
+                        if (DEBUG) Log.d(TAG, "Camera opened before the SurfaceTexture was available");
+                        mAwaitingSurfaceTexture = true;
+                        return;
+                    }
+                    setSession(createPictureSession());
+                }
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+                Log.w(TAG, "Camera disconnected");
+                synchronized (Camera2Module.this) {
+                    cameraDevice.close();
+                    if (!token.isCancelled()) {
+                        // If we were switching cameras, the previous one may still be open.
+                        releaseCameraDevice();
+                        token.cancel();
+                    } else if (mCameraDevice == cameraDevice) {
+                        mCameraDevice = null;
+                    }
+                }
+            }
+
+            @SuppressWarnings({"MissingPermission"})
+            @Override
+            public void onError(@NonNull CameraDevice cameraDevice, int error) {
+                if (isSwitching
+                        && (error == ERROR_CAMERA_IN_USE || error == ERROR_MAX_CAMERAS_IN_USE)) {
+                    // Not every HAL can keep two cameras open. Close the previous one and try again.
+                    Log.w(TAG, "Unable to open a second camera: " + Camera2Module.toString(error));
+                    synchronized (Camera2Module.this) {
+                        cameraDevice.close();
+                        if (!token.isCancelled()) {
+                            releaseCameraDevice();
+                            openCamera(token, false /* isSwitching */);
+                        }
+                    }
+                    return;
+                }
+
+                Log.e(TAG, "Camera crashed: " + Camera2Module.toString(error));
+                onDisconnected(cameraDevice);
+            }
+        };
+    }
+
+    /**
+     * Drops cached {@link CameraInfo}s when a camera is connected or disconnected, in case its
+     * characteristics changed (eg. an external camera was swapped). Availability also changes
+     * every time a camera is opened or closed, including by us, and the callback fires for every
+     * idle camera as soon as it's registered. Those cameras are still connected, so their cached
+     * info is kept.
+     */
+    private final CameraManager.AvailabilityCallback mAvailabilityCallback = new CameraManager.AvailabilityCallback() {
         @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            // The camera has opened. Start the preview now.
-            synchronized (Camera2Module.this) {
-                mCameraDevice = cameraDevice;
-                setSession(new PictureSession(Camera2Module.this));
+        public void onCameraAvailable(@NonNull String cameraId) {
+            try {
+                if (Arrays.asList(getCameraIds()).contains(cameraId)) {
+                    return;
+                }
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Failed to query cameras", e);
+            }
+
+            if (DEBUG) Log.d(TAG, "Camera " + cameraId + " was connected. Invalidating cached characteristics.");
+            mCameraInfos.remove(cameraId);
+            mCameraIds = null;
+        }
+
+        @Override
+        public void onCameraUnavailable(@NonNull String cameraId) {
+            try {
+                if (Arrays.asList(mCameraManager.getCameraIdList()).contains(cameraId)) {
+                    // The camera was only opened.
+                    return;
+                }
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Failed to query cameras", e);
+            }
+
+            if (DEBUG) Log.d(TAG, "Camera " + cameraId + " was disconnected. Invalidating cached characteristics.");
+            mCameraInfos.remove(cameraId);
+            mCameraIds = null;
+        }
+    };
+
+    /**
+     * Attached to every repeating request, so that we're notified as each frame completes.
+     */
+    private final CameraCaptureSession.CaptureCallback mRepeatingCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            // While switching cameras, frames from the previous camera may still trickle in.
+            if (session != mCaptureSession) {
+                return;
+            }
+
+            ZoomAnimation zoomAnimation = mZoomAnimation;
+            if (zoomAnimation != null) {
+                stepZoomAnimation(zoomAnimation);
+            }
+
+            mRequestUpdateScheduler.onFrameCompleted();
+
+            if (mAwaitingFirstFrame) {
+                mAwaitingFirstFrame = false;
+                getCameraMetrics().record(CameraMetrics.Milestone.FIRST_FRAME);
+
+                // Now that we're no longer competing with the camera for startup time, get the
+                // next camera ready in case the user switches to it.
+                mCameraExecutor.execute(mPrefetchNextCameraRunnable);
             }
         }
+    };
 
+    /**
+     * Applies zoom and focus changes to the active session, at most once per frame.
+     */
+    private final RequestUpdateScheduler mRequestUpdateScheduler = new RequestUpdateScheduler(new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            post(runnable);
+        }
+    }, new RequestUpdateScheduler.Target() {
         @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            Log.w(TAG, "Camera disconnected");
+        public void onUpdate(@Nullable Rect cropRegion, @Nullable MeteringRectangle meteringRectangle) {
             synchronized (Camera2Module.this) {
-                cameraDevice.close();
-                mCameraDevice = null;
-                mBackgroundHandler.removeCallbacksAndMessages(null);
+                if (mActiveSession == null || mCaptureSession == null) {
+                    Log.w(TAG, "No active session available");
+                    return;
+                }
+
+                if (cropRegion != null) {
+                    mActiveSession.setCropRegion(cropRegion);
+                }
+                if (meteringRectangle != null) {
+                    mActiveSession.setMeteringRectangle(meteringRectangle);
+                }
+
+                try {
+                    mActiveSession.onInvalidate(mCameraDevice, mCaptureSession);
+                } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+                    // Crashes if the Camera is interacted with while still loading
+                    Log.e(TAG, "Failed to update the capture request", e);
+                }
             }
         }
+    });
 
+    /**
+     * Loads the {@link CameraInfo} and {@link PreviewConfig} of the camera that
+     * {@link #toggleCamera()} would switch to.
+     */
+    private final Runnable mPrefetchNextCameraRunnable = new Runnable() {
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            Log.e(TAG, "Camera crashed: " + Camera2Module.toString(error));
-            onDisconnected(cameraDevice);
+        public void run() {
+            try {
+                String nextCamera = getNextCamera();
+                getPreviewConfig(nextCamera);
+                if (DEBUG) Log.d(TAG, "Prefetched camera " + nextCamera);
+            } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+                Log.e(TAG, "Failed to prefetch the next camera", e);
+            }
         }
     };
 
@@ -141,12 +362,51 @@ public class Camera2Module extends ICameraModule {
         mCameraManager = (CameraManager) getContext().getSystemService(Context.CAMERA_SERVICE);
     }
 
+    /**
+     * Returns the session used while idle (taking pictures). If hybrid sessions are enabled, this
+     * session can also record videos without being replaced. Otherwise, if zero shutter lag is
+     * enabled, this session keeps a ring of recent frames to take pictures from.
+     */
+    private Session createPictureSession() {
+        if (isHybridSessionEnabled() && supportsHybridSession()) {
+            return new HybridSession(this);
+        }
+        if (isZeroShutterLagEnabled() && supportsZeroShutterLag()) {
+            return new PictureSession(this, true /* zeroShutterLag */);
+        }
+        return new PictureSession(this);
+    }
+
+    @Override
+    public boolean supportsHybridSession() {
+        return Build.VERSION.SDK_INT >= 23;
+    }
+
+    @Override
+    public boolean supportsZeroShutterLag() {
+        if (isHybridSessionEnabled() && supportsHybridSession()) {
+            // Hybrid sessions already stream into a recorder, and there's no room for a third
+            // full size stream.
+            return false;
+        }
+
+        try {
+            // Legacy cameras can't stream full size frames alongside the preview.
+            return !getCameraInfo(getActiveCamera()).isLegacy();
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera", e);
+        }
+
+        return false;
+    }
+
     private synchronized void setSession(final Session session) {
         if (mCameraDevice == null) {
             if (DEBUG) Log.w(TAG, "Cannot start a session without a CameraDevice");
             return;
         }
 
+        final CameraExecutor.Token token = mToken;
         try {
             // Clean up any previous sessions
             boolean hasPreviousState = false;
@@ -171,7 +431,7 @@ public class Camera2Module extends ICameraModule {
                 hasPreviousState = true;
             }
             if (hasPreviousState) {
-                mBackgroundHandler.post(new Runnable() {
+                token.post(new Runnable() {
                     @Override
                     public void run() {
                         setSession(session);
@@ -182,28 +442,33 @@ public class Camera2Module extends ICameraModule {
 
             // Assume this is a brand new session that's never been set up. Initialize it so that
             // it can decide what size to set its surfaces to.
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mActiveCamera);
-            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            session.initialize(map);
+            session.initialize(getCameraInfo(mActiveCamera));
 
             // Now, with all of our surfaces, we'll ask for a new session
             mCameraDevice.createCaptureSession(session.getSurfaces(), new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
                     synchronized (Camera2Module.this) {
-                        if (mCameraDevice == null) {
+                        if (token.isCancelled() || mCameraDevice == null) {
+                            // The camera was closed while we were configuring.
+                            cameraCaptureSession.close();
                             return;
                         }
 
+                        if (mAwaitingFirstFrame) {
+                            getCameraMetrics().record(CameraMetrics.Milestone.SESSION_CONFIGURED);
+                        }
+
                         try {
                             mCaptureSession = cameraCaptureSession;
                             mActiveSession = session;
+                            if (mZoomRatio != 1f) {
+                                // Fold the zoom into the first request instead of sending a second one.
+                                session.setCropRegion(computeCropRegion(mZoomRatio));
+                            }
                             if (!mIsPaused) {
                                 session.onAvailable(mCameraDevice, mCaptureSession);
                             }
-                            if (mZoomLevel != 0) {
-                                setZoomLevel(mZoomLevel);
-                            }
                         } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
                             Log.e(TAG, "Failed to start session", e);
                         }
@@ -214,7 +479,7 @@ public class Camera2Module extends ICameraModule {
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
                     Log.e(TAG, "Configure failed");
                 }
-            }, mBackgroundHandler);
+            }, getBackgroundHandler());
         } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
             // Crashes if the Camera is interacted with while still loading
             Log.e(TAG, "Failed to create capture session", e);
@@ -223,20 +488,85 @@ public class Camera2Module extends ICameraModule {
 
     @RequiresPermission(Manifest.permission.CAMERA)
     @Override
-    public void open() {
-        startBackgroundThread();
+    public synchronized void open() {
+        mToken = mCameraExecutor.newToken();
+        mAwaitingFirstFrame = true;
+        mCameraManager.registerAvailabilityCallback(mAvailabilityCallback, getBackgroundHandler());
 
         try {
             mActiveCamera = getActiveCamera();
+            openCamera(mToken, false /* isSwitching */);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to open camera", e);
+        }
+    }
+
+    /**
+     * Opens {@link #mActiveCamera}. If switching, the currently open camera (if any) is left
+     * running until the new camera is ready to replace it.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private synchronized void openCamera(CameraExecutor.Token token, boolean isSwitching) {
+        try {
             if (DEBUG) Log.d(TAG, "Opening camera " + mActiveCamera);
-            mCameraManager.openCamera(mActiveCamera, mStateCallback, mBackgroundHandler);
+            mCameraManager.openCamera(mActiveCamera, newStateCallback(token, isSwitching), getBackgroundHandler());
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to open camera", e);
+            if (isSwitching) {
+                // We may have hit the limit on open cameras. Try again without the previous one.
+                releaseCameraDevice();
+                openCamera(token, false /* isSwitching */);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsDeferredSurfaceTexture() {
+        return true;
+    }
+
+    @Override
+    public synchronized void onSurfaceTextureAvailable() {
+        if (!mAwaitingSurfaceTexture) {
+            // The camera is still opening. It'll create the session itself once it has.
+            return;
         }
+
+        mAwaitingSurfaceTexture = false;
+        mToken.post(new Runnable() {
+            @Override
+            public void run() {
+                setSession(createPictureSession());
+            }
+        });
     }
 
+    /**
+     * Closes the camera. Doesn't block on the camera thread, so it's safe to call from the UI
+     * thread. Work still queued for this camera is dropped.
+     */
     @Override
-    public void close() {
+    public synchronized void close() {
+        if (mToken != null) {
+            mToken.cancel();
+            mToken = null;
+        }
+        mAwaitingSurfaceTexture = false;
+        mIsSwitchingCamera = false;
+        mRequestUpdateScheduler.reset();
+        releaseCameraDevice();
+        if (mVideoRecorder != null) {
+            mVideoRecorder.release();
+            mVideoRecorder = null;
+        }
+        mCameraManager.unregisterAvailabilityCallback(mAvailabilityCallback);
+    }
+
+    /**
+     * Closes the current session and camera device, but leaves everything that can be reused by
+     * the next camera (the SurfaceTexture, the background thread, the video recorder) alone.
+     */
+    private synchronized void releaseCameraDevice() {
         if (mCaptureSession != null) {
             mCaptureSession.close();
             mCaptureSession = null;
@@ -249,13 +579,12 @@ public class Camera2Module extends ICameraModule {
             mCameraDevice.close();
             mCameraDevice = null;
         }
-        stopBackgroundThread();
     }
 
     @Override
     public boolean hasFrontFacingCamera() {
         try {
-            for (String cameraId : mCameraManager.getCameraIdList()) {
+            for (String cameraId : getCameraIds()) {
                 boolean frontFacing = isFrontFacing(cameraId);
                 if (frontFacing) return true;
             }
@@ -275,21 +604,35 @@ public class Camera2Module extends ICameraModule {
         return false;
     }
 
+    /**
+     * Switches to the next camera. Where possible, the next camera is opened while the current one
+     * keeps showing its preview, and the current camera is only closed once the next one is ready.
+     */
     @RequiresPermission(Manifest.permission.CAMERA)
     @Override
-    public void toggleCamera() {
-        int position = 0;
-
+    public synchronized void toggleCamera() {
         try {
-            for (String cameraId : mCameraManager.getCameraIdList()) {
-                if (cameraId.equals(mActiveCamera)) {
-                    break;
-                }
-                position++;
+            String currentCamera = getActiveCamera();
+            String nextCamera = getNextCamera();
+
+            // Legacy HALs can't have two cameras open at once, and there's nothing to keep
+            // alive if the camera isn't open (or if it's mid-recording). Take the slow path.
+            if (mToken == null || mCameraDevice == null || isRecording()
+                    || getCameraInfo(currentCamera).isLegacy() || getCameraInfo(nextCamera).isLegacy()) {
+                close();
+                mActiveCamera = nextCamera;
+                open();
+                return;
             }
-            close();
-            mActiveCamera = mCameraManager.getCameraIdList()[(position + 1) % mCameraManager.getCameraIdList().length];
-            open();
+
+            if (DEBUG) Log.d(TAG, "Switching from camera " + currentCamera + " to " + nextCamera);
+            mToken.cancel();
+            mToken = mCameraExecutor.newToken();
+            mAwaitingSurfaceTexture = false;
+            mRequestUpdateScheduler.reset();
+            mIsSwitchingCamera = true;
+            mActiveCamera = nextCamera;
+            openCamera(mToken, true /* isSwitching */);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to query camera", e);
         }
@@ -297,6 +640,11 @@ public class Camera2Module extends ICameraModule {
 
     @Override
     public void focus(Rect focus, Rect metering) {
+        if (mIsSwitchingCamera) {
+            Log.w(TAG, "Ignoring focus while switching cameras");
+            return;
+        }
+
         try {
             if (!supportsFocus(getActiveCamera())) {
                 Log.w(TAG, "Focus not available on this camera");
@@ -309,17 +657,15 @@ public class Camera2Module extends ICameraModule {
             }
 
             // Our metering Rect ranges from -1000 to 1000. We need to remap it to fit the camera dimensions (0 to width).
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(getActiveCamera());
-            Rect arraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-            if (arraySize == null) {
+            CameraInfo cameraInfo = getCameraInfo(getActiveCamera());
+            if (cameraInfo.getActiveArraySize() == null) {
                 Log.w(TAG, "Unable to load the active array size");
                 return;
             }
-            resize(metering, arraySize.width(), arraySize.height());
+            resize(metering, cameraInfo.getActiveArrayWidth(), cameraInfo.getActiveArrayHeight());
 
-            // Now we can update our request
-            mActiveSession.setMeteringRectangle(new MeteringRectangle(metering, MeteringRectangle.METERING_WEIGHT_MAX));
-            mActiveSession.onInvalidate(mCameraDevice, mCaptureSession);
+            // Now we can update our request. This is applied on the next frame.
+            mRequestUpdateScheduler.setMeteringRectangle(new MeteringRectangle(metering, MeteringRectangle.METERING_WEIGHT_MAX));
         } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
             // Crashes if the Camera is interacted with while still loading
             Log.e(TAG, "Failed to focus", e);
@@ -347,56 +693,117 @@ public class Camera2Module extends ICameraModule {
 
     @Override
     public void setZoomLevel(int zoomLevel) {
-        mZoomLevel = zoomLevel;
-
-        if (mActiveSession == null) {
-            Log.w(TAG, "No active session available");
+        int maxZoomLevel = getMaxZoomLevel();
+        if (maxZoomLevel == ZOOM_NOT_SUPPORTED) {
             return;
         }
 
+        // Zoom levels map linearly onto zoom ratios.
+        setZoomRatio(1f + zoomLevel * (getMaxZoomRatio() - 1f) / maxZoomLevel);
+    }
+
+    @Override
+    public int getZoomLevel() {
+        float maxZoomRatio = getMaxZoomRatio();
+        if (maxZoomRatio <= 1f) {
+            return 0;
+        }
+        return Math.round((mZoomRatio - 1f) * getMaxZoomLevel() / (maxZoomRatio - 1f));
+    }
+
+    @Override
+    public void setZoomRatio(float zoomRatio) {
+        mZoomAnimation = null;
+        applyZoomRatio(zoomRatio);
+    }
+
+    @Override
+    public float getZoomRatio() {
+        return mZoomRatio;
+    }
+
+    @Override
+    public float getMaxZoomRatio() {
         try {
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mActiveCamera);
-            Rect m = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-            if (m == null) {
-                Log.w(TAG, "Zoom not supported");
-                return;
-            }
+            return getCameraInfo(getActiveCamera()).getMaxDigitalZoom();
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera", e);
+        }
+        return ZOOM_NOT_SUPPORTED;
+    }
+
+    /**
+     * Animates the zoom ratio. The crop region is interpolated on the camera thread, once per
+     * frame, so this is safe to call from the UI thread as often as you'd like.
+     */
+    @Override
+    public void smoothZoomTo(float zoomRatio, long durationMillis) {
+        if (durationMillis <= 0) {
+            setZoomRatio(zoomRatio);
+            return;
+        }
+
+        zoomRatio = Math.max(1f, Math.min(zoomRatio, getMaxZoomRatio()));
+        mZoomAnimation = new ZoomAnimation(mZoomRatio, zoomRatio, SystemClock.uptimeMillis(), durationMillis);
+    }
 
-            int maxZoom = getMaxZoomLevel();
+    private void stepZoomAnimation(ZoomAnimation animation) {
+        long now = SystemClock.uptimeMillis();
+        applyZoomRatio(animation.getZoomRatio(now));
+        if (animation.isFinished(now) && mZoomAnimation == animation) {
+            mZoomAnimation = null;
+        }
+    }
 
-            int minW = m.width() / maxZoom;
-            int minH = m.height() / maxZoom;
-            int difW = m.width() - minW;
-            int difH = m.height() - minH;
-            int cropW = difW * zoomLevel / maxZoom;
-            int cropH = difH * zoomLevel / maxZoom;
-            Rect cropRegion = new Rect(cropW, cropH, m.width() - cropW, m.height() - cropH);
+    private void applyZoomRatio(float zoomRatio) {
+        zoomRatio = Math.max(1f, Math.min(zoomRatio, getMaxZoomRatio()));
+        mZoomRatio = zoomRatio;
+        if (mIsSwitchingCamera) {
+            // The next camera's session applies mZoomRatio once it starts.
+            return;
+        }
 
-            if (cropRegion.left > cropRegion.right || cropRegion.top > cropRegion.bottom) {
-                Log.w(TAG, "Crop Region has inverted, ignoring further zoom levels");
+        try {
+            Rect cropRegion = computeCropRegion(zoomRatio);
+            if (cropRegion == null) {
+                Log.w(TAG, "Zoom not supported");
                 return;
             }
-            mActiveSession.setCropRegion(cropRegion);
-            mActiveSession.onInvalidate(mCameraDevice, mCaptureSession);
+
+            // Pinch to zoom can call us several times per frame, so let the scheduler coalesce them.
+            mRequestUpdateScheduler.setCropRegion(cropRegion);
         } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
             // Crashes if the Camera is interacted with while still loading
             Log.e(TAG, "Failed to zoom", e);
         }
     }
 
-    @Override
-    public int getZoomLevel() {
-        return mZoomLevel;
+    /**
+     * Returns the region of the sensor to crop to for the given zoom ratio, centered on the
+     * sensor, or null if the camera can't zoom.
+     */
+    @Nullable
+    private Rect computeCropRegion(float zoomRatio) throws CameraAccessException {
+        CameraInfo cameraInfo = getCameraInfo(getActiveCamera());
+        if (!cameraInfo.isZoomSupported()) {
+            return null;
+        }
+
+        // The ratio may have been set for a different camera, so clamp it to this one.
+        zoomRatio = Math.max(1f, Math.min(zoomRatio, cameraInfo.getMaxDigitalZoom()));
+        int width = cameraInfo.getActiveArrayWidth();
+        int height = cameraInfo.getActiveArrayHeight();
+        int cropWidth = (int) (width / zoomRatio);
+        int cropHeight = (int) (height / zoomRatio);
+        int left = (width - cropWidth) / 2;
+        int top = (height - cropHeight) / 2;
+        return new Rect(left, top, left + cropWidth, top + cropHeight);
     }
 
     @Override
     public int getMaxZoomLevel() {
         try {
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mActiveCamera);
-            Float maxZoom = (characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM));
-            if (maxZoom == null) {
-                return ZOOM_NOT_SUPPORTED;
-            }
+            float maxZoom = getCameraInfo(getActiveCamera()).getMaxDigitalZoom();
 
             // We scale the max zoom (which is a float) by 10 so that we can use ints. However,
             // there's no need to do that if we can't even zoom.
@@ -415,12 +822,7 @@ public class Camera2Module extends ICameraModule {
     @Override
     public boolean hasFlash() {
         try {
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(mActiveCamera);
-            Boolean hasFlash = (characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE));
-            if (hasFlash == null) {
-                return false;
-            }
-            return hasFlash;
+            return getCameraInfo(getActiveCamera()).hasFlash();
         } catch (CameraAccessException e) {
             Log.e(TAG, "Failed to query camera", e);
         }
@@ -428,6 +830,42 @@ public class Camera2Module extends ICameraModule {
         return false;
     }
 
+    /**
+     * Returns the supported thumbnail size closest to the one requested, or null if none was
+     * requested (or none are supported) and the camera should decide.
+     */
+    @Nullable
+    Size getSupportedThumbnailSize() {
+        if (!hasThumbnailSize()) {
+            return null;
+        }
+
+        try {
+            return getCameraInfo(getActiveCamera()).getClosestThumbnailSize(getThumbnailWidth(), getThumbnailHeight());
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the current time, measured on the same clock as the sensor timestamps of the active
+     * camera.
+     */
+    long getSensorTimestamp() {
+        try {
+            if (getCameraInfo(getActiveCamera()).isTimestampRealtime()) {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera", e);
+        }
+
+        // The clock is unspecified, but in practice it's the same one System.nanoTime() uses.
+        return System.nanoTime();
+    }
+
     @Override
     public boolean isZoomSupported() {
         return getMaxZoomLevel() != ZOOM_NOT_SUPPORTED;
@@ -438,7 +876,7 @@ public class Camera2Module extends ICameraModule {
         if (supportsPause() && !mIsPaused) {
             try {
                 mCaptureSession.stopRepeating();
-            } catch (CameraAccessException e) {
+            } catch (CameraAccessException | IllegalStateException e) {
                 Log.e(TAG, "Failed to pause the camera", e);
             }
             mIsPaused = true;
@@ -450,13 +888,18 @@ public class Camera2Module extends ICameraModule {
         if (supportsPause() && mIsPaused) {
             try {
                 mActiveSession.onAvailable(mCameraDevice, mCaptureSession);
-            } catch (CameraAccessException e) {
-                Log.e(TAG, "Failed to pause the camera", e);
+            } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
+                Log.e(TAG, "Failed to resume the camera", e);
             }
             mIsPaused = false;
         }
     }
 
+    @Override
+    public boolean isZeroShutterLagActive() {
+        return mActiveSession instanceof PictureSession && ((PictureSession) mActiveSession).isZeroShutterLag();
+    }
+
     @Override
     public boolean supportsPause() {
         return mCaptureSession != null && mActiveSession != null;
@@ -467,6 +910,30 @@ public class Camera2Module extends ICameraModule {
         if (mActiveSession != null && mActiveSession instanceof PictureSession) {
             PictureSession pictureSession = (PictureSession) mActiveSession;
             pictureSession.takePicture(file, mCameraDevice, mCaptureSession);
+        } else {
+            onImageFailure(file);
+        }
+    }
+
+    @Override
+    public void takePictures(List<File> files) {
+        if (mActiveSession != null && mActiveSession instanceof PictureSession) {
+            PictureSession pictureSession = (PictureSession) mActiveSession;
+            pictureSession.takePictures(files, mCameraDevice, mCaptureSession);
+        } else {
+            for (File file : files) {
+                onImageFailure(file);
+            }
+        }
+    }
+
+    @Override
+    public void takePicture(CaptureSink sink) {
+        if (mActiveSession != null && mActiveSession instanceof PictureSession) {
+            PictureSession pictureSession = (PictureSession) mActiveSession;
+            pictureSession.takePicture(sink, mCameraDevice, mCaptureSession);
+        } else {
+            sink.onFailure();
         }
     }
 
@@ -482,24 +949,119 @@ public class Camera2Module extends ICameraModule {
             return;
         }
 
+        if (mActiveSession instanceof HybridSession) {
+            // Hybrid sessions already have a surface for the recorder, so we only need to swap
+            // out the repeating request.
+            HybridSession hybridSession = (HybridSession) mActiveSession;
+            if (!hybridSession.startRecording(file, mCameraDevice, mCaptureSession)) {
+                CameraView.OnVideoCapturedListener l = getOnVideoCapturedListener();
+                if (l != null) {
+                    l.onFailure();
+                }
+            }
+            return;
+        }
+
         setSession(new VideoSession(this, file));
     }
 
+    @Override
+    public void startRecording(CameraView.FileProvider fileProvider, CameraView.OnVideoSegmentListener listener) {
+        // Quick fail if the CameraDevice was never created.
+        if (mCameraDevice == null || !supportsSegmentedRecording()) {
+            onVideoSegmentFailure(listener);
+            return;
+        }
+
+        VideoSegmenter segmenter = new VideoSegmenter(this, fileProvider, listener);
+        if (mActiveSession instanceof HybridSession) {
+            HybridSession hybridSession = (HybridSession) mActiveSession;
+            if (!hybridSession.startRecording(segmenter, mCameraDevice, mCaptureSession)) {
+                segmenter.onFailure();
+            }
+            return;
+        }
+
+        setSession(new VideoSession(this, segmenter));
+    }
+
+    @Override
+    public boolean supportsSegmentedRecording() {
+        // Recordings can only move on to a new file without stopping on Android O and above.
+        return Build.VERSION.SDK_INT >= 26;
+    }
+
     @Override
     public void stopRecording() {
-        setSession(new PictureSession(this));
+        if (mActiveSession instanceof HybridSession) {
+            HybridSession hybridSession = (HybridSession) mActiveSession;
+            hybridSession.stopRecording();
+            if (!mIsPaused) {
+                try {
+                    hybridSession.onAvailable(mCameraDevice, mCaptureSession);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to restore the preview", e);
+                }
+            }
+            return;
+        }
+
+        setSession(createPictureSession());
+    }
+
+    @Override
+    protected boolean isRecording(Object recording) {
+        if (recording instanceof VideoSegmenter) {
+            return !((VideoSegmenter) recording).isFinished() && isRecording();
+        }
+        return super.isRecording(recording);
     }
 
     @Override
     public boolean isRecording() {
+        if (mActiveSession instanceof HybridSession) {
+            return ((HybridSession) mActiveSession).isRecording();
+        }
         return mActiveSession != null && mActiveSession instanceof VideoSession;
     }
 
-    void transformPreview(int previewWidth, int previewHeight) throws CameraAccessException {
+    void transformPreview(@NonNull PreviewConfig config) {
+        setTransform(config.getTransform());
+    }
+
+    /**
+     * Returns the preview size and transform for the active camera.
+     */
+    @NonNull
+    PreviewConfig getPreviewConfig() throws CameraAccessException {
+        return getPreviewConfig(getActiveCamera());
+    }
+
+    /**
+     * Returns the preview size and transform for the given camera. These are cached, and only
+     * recomputed if the view has changed size or rotated since we last saw it.
+     */
+    @NonNull
+    PreviewConfig getPreviewConfig(String cameraId) throws CameraAccessException {
         int viewWidth = getWidth();
         int viewHeight = getHeight();
-        int displayOrientation = getDisplayRotation();
-        int cameraOrientation = getSensorOrientation(getActiveCamera());
+        int displayRotation = getDisplayRotation();
+
+        PreviewConfig config = mPreviewConfigs.get(cameraId);
+        if (config == null || !config.matches(cameraId, viewWidth, viewHeight, displayRotation)) {
+            CameraInfo cameraInfo = getCameraInfo(cameraId);
+            Size previewSize = PreviewSession.chooseOptimalSize(cameraInfo, viewWidth, viewHeight);
+            Matrix transform = computeTransform(viewWidth, viewHeight, displayRotation,
+                    cameraInfo.getSensorOrientation(), previewSize.getWidth(), previewSize.getHeight());
+            config = new PreviewConfig(cameraId, viewWidth, viewHeight, displayRotation, previewSize, transform);
+            if (DEBUG) Log.d(TAG, "Computed " + config);
+            mPreviewConfigs.put(cameraId, config);
+        }
+        return config;
+    }
+
+    private static Matrix computeTransform(int viewWidth, int viewHeight, int displayOrientation,
+                                           int cameraOrientation, int previewWidth, int previewHeight) {
         if (DEBUG) {
             Log.d(TAG, String.format("Configuring SurfaceView matrix: "
                             + "viewWidth=%s, viewHeight=%s, previewWidth=%s, previewHeight=%s, displayOrientation=%s, cameraOrientation=%s",
@@ -511,7 +1073,6 @@ public class Camera2Module extends ICameraModule {
         // It's less great for landscape, because we have to undo it. Without any matrix modifications,
         // the preview will be smushed into the aspect ratio of the view.
         Matrix matrix = new Matrix();
-        getTransform(matrix);
 
         // Camera2 reverses the preview width/height.
         if (cameraOrientation != 0 && cameraOrientation != 180) {
@@ -582,7 +1143,7 @@ public class Camera2Module extends ICameraModule {
                     scaleX, scaleY, scale, translateX, translateY, rotation));
         }
 
-        setTransform(matrix);
+        return matrix;
     }
 
     @Override
@@ -600,61 +1161,95 @@ public class Camera2Module extends ICameraModule {
     }
 
     private String getDefaultCamera() throws CameraAccessException {
-        for (String cameraId : mCameraManager.getCameraIdList()) {
+        String[] cameraIds = getCameraIds();
+        for (String cameraId : cameraIds) {
             if (isBackFacing(cameraId)) {
                 return cameraId;
             }
         }
-        return mCameraManager.getCameraIdList()[0];
+        return cameraIds[0];
+    }
+
+    /**
+     * Returns the camera that {@link #toggleCamera()} would switch to.
+     */
+    private String getNextCamera() throws CameraAccessException {
+        String[] cameraIds = getCameraIds();
+        int position = Arrays.asList(cameraIds).indexOf(getActiveCamera());
+        return cameraIds[(position + 1) % cameraIds.length];
+    }
+
+    private String[] getCameraIds() throws CameraAccessException {
+        String[] cameraIds = mCameraIds;
+        if (cameraIds == null) {
+            cameraIds = mCameraManager.getCameraIdList();
+            mCameraIds = cameraIds;
+        }
+        return cameraIds;
+    }
+
+    /**
+     * Returns the cached {@link CameraInfo} for the given camera, querying the
+     * {@link CameraManager} only if we haven't seen this camera before.
+     */
+    @NonNull
+    CameraInfo getCameraInfo(String cameraId) throws CameraAccessException {
+        CameraInfo cameraInfo = mCameraInfos.get(cameraId);
+        if (cameraInfo == null) {
+            cameraInfo = CameraInfo.from(cameraId, mCameraManager.getCameraCharacteristics(cameraId));
+            if (DEBUG) Log.d(TAG, "Loaded " + cameraInfo);
+            mCameraInfos.put(cameraId, cameraInfo);
+        }
+        return cameraInfo;
     }
 
     private boolean supportsFocus(String cameraId) throws CameraAccessException {
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-        Integer maxRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
-        return maxRegions != null && maxRegions >= 1;
+        return getCameraInfo(cameraId).supportsFocus();
     }
 
     private boolean isFrontFacing(String cameraId) throws CameraAccessException {
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-        return facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT;
+        return getCameraInfo(cameraId).isFrontFacing();
     }
 
     private boolean isBackFacing(String cameraId) throws CameraAccessException {
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-        return facing != null && facing == CameraCharacteristics.LENS_FACING_BACK;
+        return getCameraInfo(cameraId).isBackFacing();
     }
 
     private int getSensorOrientation(String cameraId) throws CameraAccessException {
-        CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
-        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        return orientation == null ? 0 : orientation;
-    }
-
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        return getCameraInfo(cameraId).getSensorOrientation();
     }
 
-    private void stopBackgroundThread() {
-        if (mBackgroundThread == null) {
-            return;
+    /**
+     * Returns a video recorder whose surface is the given size. The recorder is shared across
+     * sessions until the camera is closed, or until a session asks for a different size.
+     */
+    @TargetApi(23)
+    synchronized PersistentVideoRecorder getVideoRecorder(Size size) {
+        if (mVideoRecorder != null && !mVideoRecorder.getSize().equals(size)) {
+            mVideoRecorder.release();
+            mVideoRecorder = null;
         }
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Failed to join background thread", e);
-            Thread.currentThread().interrupt();
+        if (mVideoRecorder == null) {
+            mVideoRecorder = new PersistentVideoRecorder(this, size);
         }
+        return mVideoRecorder;
+    }
+
+    CameraCaptureSession.CaptureCallback getRepeatingCaptureCallback() {
+        return mRepeatingCaptureCallback;
     }
 
     Handler getBackgroundHandler() {
-        return mBackgroundHandler;
+        return mCameraExecutor.getHandler();
+    }
+
+    /**
+     * Runs the given runnable on the background thread, unless the camera closes first.
+     *
+     * @return False if the camera is closed and the runnable will never run.
+     */
+    synchronized boolean post(Runnable runnable) {
+        return mToken != null && mToken.post(runnable);
     }
 
 
@@ -670,11 +1265,41 @@ public class Camera2Module extends ICameraModule {
         mActiveCamera = ((Bundle) state).getString(EXTRA_DEVICE_ID);
     }
 
+    /**
+     * Interpolates between two zoom ratios over time.
+     */
+    private static final class ZoomAnimation {
+        private final float mFrom;
+        private final float mTo;
+        private final long mStartTime;
+        private final long mDuration;
+
+        ZoomAnimation(float from, float to, long startTime, long duration) {
+            mFrom = from;
+            mTo = to;
+            mStartTime = startTime;
+            mDuration = duration;
+        }
+
+        float getZoomRatio(long now) {
+            float progress = Math.min(1f, (float) (now - mStartTime) / mDuration);
+            // Ease in and out, so that the zoom doesn't start or stop abruptly.
+            float interpolation = (float) (1 - Math.cos(progress * Math.PI)) / 2;
+            // The visible area shrinks with the square of the ratio, so we interpolate
+            // geometrically for the zoom to look like it's moving at a constant speed.
+            return (float) (mFrom * Math.pow(mTo / mFrom, interpolation));
+        }
+
+        boolean isFinished(long now) {
+            return now - mStartTime >= mDuration;
+        }
+    }
+
     /**
      * A session has multiple surfaces for the camera to draw to.
      */
     interface Session {
-        void initialize(@NonNull StreamConfigurationMap map) throws CameraAccessException;
+        void initialize(@NonNull CameraInfo cameraInfo) throws CameraAccessException;
         @NonNull List<Surface> getSurfaces();
         void setMeteringRectangle(@Nullable MeteringRectangle meteringRectangle);
         @Nullable MeteringRectangle getMeteringRectangle();
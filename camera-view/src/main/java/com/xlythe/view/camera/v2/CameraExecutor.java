@@ -0,0 +1,105 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A single, process-wide thread that camera callbacks are delivered on. Starting (and, worse,
+ * joining) a thread every time the camera opens and closes is slow, so the thread lives for as
+ * long as the process does.
+ *
+ * Because the thread outlives any one camera, work is posted through a {@link Token}. When the
+ * camera closes, its token is cancelled and any work still queued for it is dropped.
+ */
+@TargetApi(21)
+final class CameraExecutor implements Executor {
+    private static CameraExecutor sInstance;
+
+    static synchronized CameraExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CameraExecutor();
+        }
+        return sInstance;
+    }
+
+    private final Handler mHandler;
+
+    private CameraExecutor() {
+        HandlerThread thread = new HandlerThread("CameraBackground");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    @NonNull
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Returns a new token. Work posted through it runs on the camera thread until the token is
+     * cancelled.
+     */
+    @NonNull
+    Token newToken() {
+        return new Token(mHandler);
+    }
+
+    /**
+     * Scopes work to a single camera session (typically from open() to close()).
+     */
+    static final class Token implements Executor {
+        private final Handler mHandler;
+        private volatile boolean mIsCancelled;
+
+        private Token(Handler handler) {
+            mHandler = handler;
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Drops all work queued through this token. Callbacks that are already running will
+         * finish, so they should check {@link #isCancelled()} before touching shared state.
+         */
+        void cancel() {
+            mIsCancelled = true;
+            mHandler.removeCallbacksAndMessages(this);
+        }
+
+        /**
+         * Posts the runnable to the camera thread.
+         *
+         * @return False if this token was cancelled and the runnable will never run.
+         */
+        boolean post(@NonNull final Runnable runnable) {
+            if (mIsCancelled) {
+                return false;
+            }
+            return mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mIsCancelled) {
+                        runnable.run();
+                    }
+                }
+            }, this /* token */, SystemClock.uptimeMillis());
+        }
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            post(runnable);
+        }
+    }
+}
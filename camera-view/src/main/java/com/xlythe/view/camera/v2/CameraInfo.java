@@ -0,0 +1,216 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of the {@link CameraCharacteristics} we care about for a single camera.
+ * Querying {@link android.hardware.camera2.CameraManager#getCameraCharacteristics(String)} is an
+ * IPC into the camera service, so we read everything once and answer hot-path questions (zoom,
+ * focus, flash) from here instead.
+ */
+@TargetApi(21)
+final class CameraInfo {
+    private static final float ZOOM_NOT_SUPPORTED = 1f;
+
+    private final String mCameraId;
+    private final int mFacing;
+    private final int mSensorOrientation;
+    @Nullable
+    private final Rect mActiveArraySize;
+    private final float mMaxDigitalZoom;
+    private final int mMaxRegionsAf;
+    private final int mMaxRegionsAe;
+    private final boolean mFlashAvailable;
+    private final int mHardwareLevel;
+    private final int[] mCapabilities;
+    @Nullable
+    private final StreamConfigurationMap mStreamConfigurationMap;
+    private final Size[] mThumbnailSizes;
+    private final boolean mIsTimestampRealtime;
+
+    // Built the first time each stream is configured, and reused from then on.
+    private final Map<SizeIndex.Key, SizeIndex> mSizeIndexes = new ConcurrentHashMap<>();
+
+    private CameraInfo(String cameraId, CameraCharacteristics characteristics) {
+        mCameraId = cameraId;
+        mFacing = get(characteristics, CameraCharacteristics.LENS_FACING, -1);
+        mSensorOrientation = get(characteristics, CameraCharacteristics.SENSOR_ORIENTATION, 0);
+        mActiveArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        mMaxDigitalZoom = get(characteristics, CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM, ZOOM_NOT_SUPPORTED);
+        mMaxRegionsAf = get(characteristics, CameraCharacteristics.CONTROL_MAX_REGIONS_AF, 0);
+        mMaxRegionsAe = get(characteristics, CameraCharacteristics.CONTROL_MAX_REGIONS_AE, 0);
+        mFlashAvailable = get(characteristics, CameraCharacteristics.FLASH_INFO_AVAILABLE, false);
+        mHardwareLevel = get(characteristics, CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL,
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        mCapabilities = get(characteristics, CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES, new int[0]);
+        mStreamConfigurationMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mThumbnailSizes = get(characteristics, CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES, new Size[0]);
+        mIsTimestampRealtime = Build.VERSION.SDK_INT >= 23
+                && get(characteristics, CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE,
+                CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN) == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    static CameraInfo from(@NonNull String cameraId, @NonNull CameraCharacteristics characteristics) {
+        return new CameraInfo(cameraId, characteristics);
+    }
+
+    private static <T> T get(CameraCharacteristics characteristics, CameraCharacteristics.Key<T> key, T defaultValue) {
+        T value = characteristics.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    boolean isFrontFacing() {
+        return mFacing == CameraCharacteristics.LENS_FACING_FRONT;
+    }
+
+    boolean isBackFacing() {
+        return mFacing == CameraCharacteristics.LENS_FACING_BACK;
+    }
+
+    int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * Returns the region of the sensor that's actually used for pixels. Crop and metering regions
+     * are relative to this. The returned Rect is a copy, so callers may modify it.
+     */
+    @Nullable
+    Rect getActiveArraySize() {
+        return mActiveArraySize == null ? null : new Rect(mActiveArraySize);
+    }
+
+    int getActiveArrayWidth() {
+        return mActiveArraySize == null ? 0 : mActiveArraySize.width();
+    }
+
+    int getActiveArrayHeight() {
+        return mActiveArraySize == null ? 0 : mActiveArraySize.height();
+    }
+
+    float getMaxDigitalZoom() {
+        return mMaxDigitalZoom;
+    }
+
+    boolean isZoomSupported() {
+        return mActiveArraySize != null && mMaxDigitalZoom > ZOOM_NOT_SUPPORTED;
+    }
+
+    int getMaxRegionsAf() {
+        return mMaxRegionsAf;
+    }
+
+    int getMaxRegionsAe() {
+        return mMaxRegionsAe;
+    }
+
+    boolean supportsFocus() {
+        return mMaxRegionsAf >= 1;
+    }
+
+    boolean hasFlash() {
+        return mFlashAvailable;
+    }
+
+    int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    boolean isLegacy() {
+        return mHardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    /**
+     * Returns true if the camera lists the given CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_*
+     * constant.
+     */
+    boolean hasCapability(int capability) {
+        for (int c : mCapabilities) {
+            if (c == capability) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the camera can reprocess frames. Only these cameras are guaranteed to
+     * support {@link android.hardware.camera2.CameraDevice#TEMPLATE_ZERO_SHUTTER_LAG}.
+     */
+    boolean supportsReprocessing() {
+        return Build.VERSION.SDK_INT >= 23
+                && (hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)
+                || hasCapability(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING));
+    }
+
+    /**
+     * Returns true if sensor timestamps share a clock with
+     * {@link android.os.SystemClock#elapsedRealtimeNanos()}. Otherwise, the clock is unspecified,
+     * although in practice it's usually {@link System#nanoTime()}.
+     */
+    boolean isTimestampRealtime() {
+        return mIsTimestampRealtime;
+    }
+
+    @Nullable
+    StreamConfigurationMap getStreamConfigurationMap() {
+        return mStreamConfigurationMap;
+    }
+
+    /**
+     * Returns the output sizes described by the key, sorted and grouped. The index is built the
+     * first time it's asked for.
+     */
+    @NonNull
+    SizeIndex getSizeIndex(@NonNull SizeIndex.Key key) {
+        SizeIndex index = mSizeIndexes.get(key);
+        if (index == null) {
+            index = key.createIndex(mStreamConfigurationMap);
+            mSizeIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the supported thumbnail size closest to the one given, or null if the camera doesn't
+     * list any. A size of 0x0 (no thumbnail) is always supported.
+     */
+    @Nullable
+    Size getClosestThumbnailSize(int width, int height) {
+        Size closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (Size size : mThumbnailSizes) {
+            long dx = size.getWidth() - width;
+            long dy = size.getHeight() - height;
+            long distance = dx * dx + dy * dy;
+            if (distance < closestDistance) {
+                closest = size;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "CameraInfo{id=%s, facing=%d, sensorOrientation=%d, activeArraySize=%s, "
+                        + "maxDigitalZoom=%s, maxRegionsAf=%d, maxRegionsAe=%d, flash=%s, hardwareLevel=%d}",
+                mCameraId, mFacing, mSensorOrientation, mActiveArraySize, mMaxDigitalZoom,
+                mMaxRegionsAf, mMaxRegionsAe, mFlashAvailable, mHardwareLevel);
+    }
+}
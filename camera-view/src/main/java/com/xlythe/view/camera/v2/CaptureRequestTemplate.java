@@ -0,0 +1,90 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Objects;
+
+/**
+ * A {@link CaptureRequest.Builder} that's created once per session and reused for every request.
+ * Creating a builder is a binder call into the camera service, and zooming or focusing can rebuild
+ * the repeating request every frame, so instead we keep the builder (with its targets attached)
+ * and only touch the keys that changed since the last request.
+ */
+@TargetApi(21)
+abstract class CaptureRequestTemplate {
+    private final int mTemplateType;
+
+    @Nullable
+    private CameraDevice mDevice;
+    @Nullable
+    private CaptureRequest.Builder mBuilder;
+
+    // The values currently set on the builder.
+    @Nullable
+    private MeteringRectangle mMeteringRectangle;
+    @Nullable
+    private Rect mCropRegion;
+
+    // Reused whenever the metering rectangle changes. The builder copies its values, so it's safe
+    // to overwrite this afterwards.
+    private final MeteringRectangle[] mMeteringRectangles = new MeteringRectangle[1];
+
+    /**
+     * @param templateType One of the CameraDevice.TEMPLATE_* constants.
+     */
+    CaptureRequestTemplate(int templateType) {
+        mTemplateType = templateType;
+    }
+
+    /**
+     * Called once, when the builder is first created. Set the targets and any keys that don't
+     * change for the lifetime of the session here.
+     */
+    abstract void onCreate(@NonNull CaptureRequest.Builder builder);
+
+    /**
+     * Returns the builder for the given device, creating it if this is the first time we've seen
+     * the device. Any keys set on it will stick around for future requests.
+     */
+    @NonNull
+    synchronized CaptureRequest.Builder getBuilder(@NonNull CameraDevice device) throws CameraAccessException {
+        if (mBuilder == null || mDevice != device) {
+            mBuilder = device.createCaptureRequest(mTemplateType);
+            mDevice = device;
+            mMeteringRectangle = null;
+            mCropRegion = null;
+            onCreate(mBuilder);
+        }
+        return mBuilder;
+    }
+
+    /**
+     * Builds a request with the given metering and crop regions. Only the keys that differ from the
+     * previous request are updated.
+     */
+    @NonNull
+    synchronized CaptureRequest build(@NonNull CameraDevice device,
+                                      @Nullable MeteringRectangle meteringRectangle,
+                                      @Nullable Rect cropRegion) throws CameraAccessException {
+        CaptureRequest.Builder builder = getBuilder(device);
+        if (!Objects.equals(mMeteringRectangle, meteringRectangle)) {
+            mMeteringRectangles[0] = meteringRectangle;
+            MeteringRectangle[] regions = meteringRectangle == null ? null : mMeteringRectangles;
+            builder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+            builder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+            mMeteringRectangle = meteringRectangle;
+        }
+        if (!Objects.equals(mCropRegion, cropRegion)) {
+            builder.set(CaptureRequest.SCALER_CROP_REGION, cropRegion);
+            mCropRegion = cropRegion;
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,251 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.MediaRecorder;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.io.File;
+import java.util.List;
+
+import static com.xlythe.view.camera.ICameraModule.TAG;
+
+/**
+ * A session that can both take pictures and record videos without being torn down. The preview,
+ * picture and video surfaces are all configured up front, and we switch between taking pictures
+ * and recording videos by changing the targets of the repeating request.
+ *
+ * Normally, a {@link MediaRecorder}'s surface is only valid for a single recording. To keep the
+ * video surface alive across recordings, we record with a {@link PersistentVideoRecorder}
+ * instead, which requires Android M.
+ */
+@TargetApi(23)
+class HybridSession extends PictureSession {
+    private final RecorderSurface mRecorderSurface;
+
+    private final CaptureRequestTemplate mRecordRequest = new CaptureRequestTemplate(CameraDevice.TEMPLATE_RECORD) {
+        @Override
+        void onCreate(@NonNull CaptureRequest.Builder builder) {
+            builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            builder.addTarget(getPreviewSurface().getSurface());
+            builder.addTarget(mRecorderSurface.getSurface());
+        }
+    };
+
+    HybridSession(Camera2Module camera2Module) {
+        super(camera2Module);
+        mRecorderSurface = new RecorderSurface(camera2Module, getPreviewSurface());
+    }
+
+    @Override
+    public void initialize(@NonNull CameraInfo cameraInfo) throws CameraAccessException {
+        super.initialize(cameraInfo);
+        mRecorderSurface.initialize(cameraInfo);
+    }
+
+    private CaptureRequest createRecordRequest(@NonNull CameraDevice device) throws CameraAccessException {
+        return mRecordRequest.build(device, mMeteringRectangle, mCropRegion);
+    }
+
+    @Override
+    public void onAvailable(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
+        if (!mRecorderSurface.isRecording()) {
+            super.onAvailable(device, session);
+            return;
+        }
+
+        if (!mRecorderSurface.mAwaitingRecording) {
+            session.setRepeatingRequest(createRecordRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
+            return;
+        }
+
+        // The recorder was prepared, but we don't start it until frames are flowing into it.
+        session.setRepeatingRequest(createRecordRequest(device), new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                getRepeatingCaptureCallback().onCaptureCompleted(session, request, result);
+                if (mRecorderSurface.mAwaitingRecording) {
+                    mRecorderSurface.mAwaitingRecording = false;
+                    mRecorderSurface.startRecording();
+                }
+            }
+        }, getBackgroundHandler());
+    }
+
+    @Override
+    public void onInvalidate(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
+        if (mRecorderSurface.mAwaitingRecording) {
+            Log.w(TAG, "Ignoring invalidate. Still waiting on capture completed.");
+            return;
+        }
+
+        if (mRecorderSurface.isRecording()) {
+            session.setRepeatingRequest(createRecordRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
+        } else {
+            super.onInvalidate(device, session);
+        }
+    }
+
+    /**
+     * Starts recording into the given file. Only the repeating request changes, so the preview
+     * continues uninterrupted.
+     */
+    boolean startRecording(@NonNull File file, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        return startRecording(file, null /* segmenter */, device, session);
+    }
+
+    /**
+     * Starts a recording that's split into segments, which requires Android O and above. Like
+     * {@link #startRecording(File, CameraDevice, CameraCaptureSession)}, the preview continues
+     * uninterrupted.
+     */
+    boolean startRecording(@NonNull VideoSegmenter segmenter, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        return startRecording(null /* file */, segmenter, device, session);
+    }
+
+    private boolean startRecording(@Nullable File file, @Nullable VideoSegmenter segmenter, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        if (!mRecorderSurface.prepareRecording(file, segmenter)) {
+            return false;
+        }
+
+        try {
+            onAvailable(device, session);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to start recording", e);
+            mRecorderSurface.stopRecording();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the current recording. The caller is in charge of restoring the preview-only repeating
+     * request (via {@link #onAvailable(CameraDevice, CameraCaptureSession)}) once it's ready to.
+     */
+    void stopRecording() {
+        mRecorderSurface.stopRecording();
+    }
+
+    boolean isRecording() {
+        return mRecorderSurface.isRecording();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mRecorderSurface.stopRecording();
+        mRecorderSurface.close();
+    }
+
+    @NonNull
+    @Override
+    public List<Surface> getSurfaces() {
+        List<Surface> surfaces = super.getSurfaces();
+        surfaces.add(mRecorderSurface.getSurface());
+        return surfaces;
+    }
+
+    private static final class RecorderSurface extends CameraSurface {
+        // Preview + video + picture is only guaranteed to work if the video stream is no larger
+        // than the preview, so we ignore Quality.MAX here.
+        private static final SizeIndex.Key SIZES =
+                SizeIndex.Key.forClass(MediaRecorder.class).maxSize(Camera2Module.MAX_SUPPORTED_SIZE);
+
+        private final CameraSurface mPreviewSurface;
+
+        private PersistentVideoRecorder mVideoRecorder;
+
+        // Either the file we're recording to, or the segmenter that picks the files for us.
+        private File mFile;
+        private VideoSegmenter mSegmenter;
+        private boolean mIsRecordingVideo;
+        private boolean mAwaitingRecording;
+
+        RecorderSurface(Camera2Module camera2Module, CameraSurface previewSurface) {
+            super(camera2Module);
+            mPreviewSurface = previewSurface;
+        }
+
+        @Override
+        void initialize(CameraInfo cameraInfo) {
+            super.initialize(chooseSize(cameraInfo.getSizeIndex(SIZES), mPreviewSurface.mSize));
+            mVideoRecorder = mCameraView.getVideoRecorder(mSize);
+        }
+
+        boolean prepareRecording(@Nullable File file, @Nullable VideoSegmenter segmenter) {
+            if (mIsRecordingVideo) {
+                Log.w(TAG, "Already recording");
+                return false;
+            }
+
+            boolean prepared = segmenter != null ? mVideoRecorder.prepare(segmenter) : mVideoRecorder.prepare(file);
+            if (!prepared) {
+                return false;
+            }
+
+            mFile = file;
+            mSegmenter = segmenter;
+            mIsRecordingVideo = true;
+            mAwaitingRecording = true;
+            return true;
+        }
+
+        void startRecording() {
+            mVideoRecorder.start();
+        }
+
+        boolean isRecording() {
+            return mIsRecordingVideo;
+        }
+
+        void stopRecording() {
+            if (!mIsRecordingVideo) {
+                return;
+            }
+
+            mIsRecordingVideo = false;
+            mAwaitingRecording = false;
+            if (!mVideoRecorder.isRecording()) {
+                mVideoRecorder.reset();
+                if (mSegmenter != null) {
+                    mSegmenter.onFailure();
+                } else {
+                    CameraView.OnVideoCapturedListener l = mCameraView.getOnVideoCapturedListener();
+                    if (l != null) {
+                        l.onFailure();
+                    }
+                }
+                return;
+            }
+
+            mVideoRecorder.stop();
+            if (mSegmenter == null) {
+                // Segmented recordings report their last segment as soon as the recorder stops.
+                showVideoConfirmation(mFile);
+            }
+        }
+
+        @Override
+        Surface getSurface() {
+            return mVideoRecorder.getSurface();
+        }
+
+        @Override
+        void close() {
+            // The surface belongs to the camera and is reused by the next session.
+            if (mVideoRecorder != null) {
+                mVideoRecorder.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaRecorder;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.xlythe.view.camera.ICameraModule.DEBUG;
+import static com.xlythe.view.camera.ICameraModule.TAG;
+
+/**
+ * Records videos from a persistent input surface. Unlike {@link MediaRecorder#getSurface()}, the
+ * surface outlives any single recording, so the camera can keep it configured in its capture
+ * session and back-to-back recordings don't require reconfiguring the camera.
+ *
+ * One instance is created per camera open (see {@link Camera2Module#getVideoRecorder(Size)}) and
+ * a new {@link MediaRecorder} is attached to it for every recording.
+ */
+@TargetApi(23)
+class PersistentVideoRecorder {
+    private final Camera2Module mCamera2Module;
+    private final Size mSize;
+    private final Surface mSurface;
+
+    private MediaRecorder mMediaRecorder;
+    private boolean mIsStarted;
+
+    // Splits the current recording into segments, if it's a segmented recording.
+    @Nullable
+    private VideoSegmenter mSegmenter;
+
+    PersistentVideoRecorder(@NonNull Camera2Module camera2Module, @NonNull Size size) {
+        mCamera2Module = camera2Module;
+        mSize = size;
+        mSurface = MediaCodec.createPersistentInputSurface();
+
+        // A persistent surface has no size until it's been attached to an encoder. We prepare
+        // (and immediately discard) a recorder so that the camera can configure a stream for it.
+        File file = new File(camera2Module.getContext().getCacheDir(), "persistent_video_recorder.tmp");
+        MediaRecorder mediaRecorder = VideoSession.createMediaRecorder(camera2Module, file, size);
+        try {
+            mediaRecorder.setInputSurface(mSurface);
+            mediaRecorder.prepare();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to configure the persistent input surface", e);
+        } finally {
+            mediaRecorder.release();
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to clean up " + file);
+            }
+        }
+    }
+
+    Size getSize() {
+        return mSize;
+    }
+
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Prepares a new recording into the given file. Frames sent to {@link #getSurface()} are
+     * dropped until {@link #start()} is called.
+     */
+    synchronized boolean prepare(@NonNull File file) {
+        return prepare(file, null /* segmenter */);
+    }
+
+    /**
+     * Prepares a new recording that's split into segments. Each segment is reported to the
+     * segmenter's listener once it's saved, including the last one once {@link #stop()} is called.
+     */
+    @TargetApi(26)
+    synchronized boolean prepare(@NonNull VideoSegmenter segmenter) {
+        return prepare(segmenter.getFile(), segmenter);
+    }
+
+    private boolean prepare(@NonNull File file, @Nullable VideoSegmenter segmenter) {
+        if (mMediaRecorder != null) {
+            Log.w(TAG, "Cannot prepare a recording while another is in progress");
+            return false;
+        }
+
+        mMediaRecorder = VideoSession.createMediaRecorder(mCamera2Module, file, mSize);
+        if (segmenter != null) {
+            segmenter.attach(mMediaRecorder);
+        }
+        mSegmenter = segmenter;
+        try {
+            mMediaRecorder.setInputSurface(mSurface);
+            mMediaRecorder.prepare();
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to prepare the recorder", e);
+            reset();
+            return false;
+        }
+    }
+
+    synchronized boolean isPrepared() {
+        return mMediaRecorder != null;
+    }
+
+    synchronized boolean start() {
+        if (mMediaRecorder == null) {
+            Log.w(TAG, "Cannot record. Recorder was not prepared.");
+            return false;
+        }
+
+        try {
+            mMediaRecorder.start();
+            mIsStarted = true;
+            if (DEBUG) Log.d(TAG, "Recording started");
+            return true;
+        } catch (RuntimeException e) {
+            // MediaRecorder can crash with 'start failed.'
+            Log.e(TAG, "Unable to start recording", e);
+            reset();
+            return false;
+        }
+    }
+
+    synchronized boolean isRecording() {
+        return mIsStarted;
+    }
+
+    /**
+     * Stops the current recording, if any. The surface remains valid for the next recording.
+     *
+     * @return True if the recording was saved successfully.
+     */
+    synchronized boolean stop() {
+        if (mMediaRecorder == null) {
+            return false;
+        }
+
+        VideoSegmenter segmenter = mSegmenter;
+        boolean success = false;
+        try {
+            if (mIsStarted) {
+                mMediaRecorder.stop();
+                success = true;
+            }
+        } catch (RuntimeException e) {
+            // MediaRecorder can crash with 'stop failed.'
+            Log.e(TAG, "Let me guess. 'stop failed.'?", e);
+        } finally {
+            reset();
+        }
+        if (segmenter != null) {
+            segmenter.onStopped(success);
+        }
+        return success;
+    }
+
+    /**
+     * Discards the current recording, if any, without releasing the surface.
+     */
+    synchronized void reset() {
+        if (mMediaRecorder != null) {
+            mMediaRecorder.release();
+            mMediaRecorder = null;
+        }
+        mSegmenter = null;
+        mIsStarted = false;
+    }
+
+    synchronized void release() {
+        reset();
+        mSurface.release();
+    }
+}
@@ -2,39 +2,48 @@ package com.xlythe.view.camera.v2;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.location.Location;
+import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.xlythe.view.camera.BufferPool;
+import com.xlythe.view.camera.CameraMetrics;
 import com.xlythe.view.camera.CameraView;
-import com.xlythe.view.camera.Exif;
-import com.xlythe.view.camera.ICameraModule;
+import com.xlythe.view.camera.CaptureSink;
+import com.xlythe.view.camera.CapturedImage;
+import com.xlythe.view.camera.JpegExifWriter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import static com.xlythe.view.camera.ICameraModule.DEBUG;
 import static com.xlythe.view.camera.ICameraModule.TAG;
 
 @TargetApi(21)
@@ -45,18 +54,83 @@ class PictureSession extends PreviewSession {
      */
     private static final int IMAGE_FORMAT_DEFAULT = ImageFormat.JPEG;
     private static final int IMAGE_FORMAT_MAX = ImageFormat.YUV_420_888;
+    private static final int IMAGE_FORMAT_ZSL = ImageFormat.YUV_420_888;
+
+    /**
+     * How many pictures can be held in memory at once while they're written to disk. Bursts larger
+     * than this still work, but the camera stalls until an earlier picture has been saved.
+     */
+    static final int MAX_IMAGES = 5;
+
+    /**
+     * With zero shutter lag, frames are streamed alongside the preview, so they're limited to sizes
+     * the camera can deliver at 30fps.
+     */
+    private static final long ZSL_MAX_FRAME_DURATION_NANOS = 1000000000L / 30;
+
+    /**
+     * If the closest frame is further than this from when the picture was taken, the sensor clock
+     * isn't the one we guessed, and the newest frame is picked instead.
+     */
+    private static final long ZSL_MAX_TIMESTAMP_SKEW_NANOS = 1000000000L;
 
     private final PictureSurface mPictureSurface;
 
+    // If true, frames are streamed into mPictureSurface alongside the preview, and pictures are
+    // taken from the ones we already have.
+    private final boolean mIsZeroShutterLag;
+
+    // The repeating request that streams frames into mPictureSurface. Created once we know
+    // which templates the camera supports.
+    private CaptureRequestTemplate mZeroShutterLagRequest;
+
+    private final CaptureRequestTemplate mStillCaptureRequest = new CaptureRequestTemplate(CameraDevice.TEMPLATE_STILL_CAPTURE) {
+        @Override
+        void onCreate(@NonNull CaptureRequest.Builder builder) {
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            builder.addTarget(mPictureSurface.getSurface());
+            mAppliedFlash = null;
+        }
+    };
+
+    // The flash mode currently set on mStillCaptureRequest.
+    private CameraView.Flash mAppliedFlash;
+
     PictureSession(Camera2Module camera2Module) {
+        this(camera2Module, false /* zeroShutterLag */);
+    }
+
+    PictureSession(Camera2Module camera2Module, boolean zeroShutterLag) {
         super(camera2Module);
-        mPictureSurface = new PictureSurface(camera2Module, getPreviewSurface());
+        mIsZeroShutterLag = zeroShutterLag;
+        mPictureSurface = new PictureSurface(camera2Module, getPreviewSurface(), zeroShutterLag);
+    }
+
+    boolean isZeroShutterLag() {
+        return mIsZeroShutterLag;
     }
 
     @Override
-    public void initialize(@NonNull StreamConfigurationMap map) throws CameraAccessException {
-        super.initialize(map);
-        mPictureSurface.initialize(map);
+    public void initialize(@NonNull CameraInfo cameraInfo) throws CameraAccessException {
+        super.initialize(cameraInfo);
+        mPictureSurface.initialize(cameraInfo);
+        if (mIsZeroShutterLag) {
+            // TEMPLATE_ZERO_SHUTTER_LAG is only guaranteed on cameras that can reprocess, and
+            // creating it elsewhere throws. A preview request streams frames just as quickly.
+            mZeroShutterLagRequest = createZeroShutterLagTemplate(cameraInfo.supportsReprocessing()
+                    ? CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG : CameraDevice.TEMPLATE_PREVIEW);
+        }
+    }
+
+    private CaptureRequestTemplate createZeroShutterLagTemplate(int templateType) {
+        return new CaptureRequestTemplate(templateType) {
+            @Override
+            void onCreate(@NonNull CaptureRequest.Builder builder) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                builder.addTarget(getPreviewSurface().getSurface());
+                builder.addTarget(mPictureSurface.getSurface());
+            }
+        };
     }
 
     @NonNull
@@ -67,48 +141,134 @@ class PictureSession extends PreviewSession {
         return surfaces;
     }
 
+    @Override
+    public void onAvailable(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
+        if (!mIsZeroShutterLag) {
+            super.onAvailable(device, session);
+            return;
+        }
+        session.setRepeatingRequest(createZeroShutterLagRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
+    }
+
+    @Override
+    public void onInvalidate(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
+        if (!mIsZeroShutterLag) {
+            super.onInvalidate(device, session);
+            return;
+        }
+        session.setRepeatingRequest(createZeroShutterLagRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
+    }
+
+    private CaptureRequest createZeroShutterLagRequest(@NonNull CameraDevice device) throws CameraAccessException {
+        return mZeroShutterLagRequest.build(device, mMeteringRectangle, mCropRegion);
+    }
+
     void takePicture(@NonNull File file, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
-        mPictureSurface.initializePicture(file);
+        takePicture(new PendingCapture(file, false /* isBurst */), device, session);
+    }
+
+    /**
+     * Captures a picture and hands it to the sink in memory, without saving it to disk.
+     */
+    void takePicture(@NonNull CaptureSink sink, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        takePicture(new PendingCapture(sink), device, session);
+    }
+
+    private void takePicture(@NonNull PendingCapture capture, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        // The frames we're holding were taken without flash, so if it's meant to fire we still
+        // need a fresh capture. Auto flash is never fired for pictures (see capture), so
+        // those frames are as good as any.
+        boolean needsFlash = hasFlash() && getFlash() == CameraView.Flash.ON;
+        if (mIsZeroShutterLag && !needsFlash && mPictureSurface.takeZeroShutterLagPicture(capture, getSensorTimestamp())) {
+            return;
+        }
+        capture(Collections.singletonList(capture), device, session);
+    }
+
+    /**
+     * Captures one picture per file, back to back. Unlike {@link #takePicture(File, CameraDevice,
+     * CameraCaptureSession)}, each picture is handed straight to the listener without waiting for
+     * confirmation.
+     */
+    void takePictures(@NonNull List<File> files, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        List<PendingCapture> captures = new ArrayList<>(files.size());
+        for (File file : files) {
+            captures.add(new PendingCapture(file, true /* isBurst */));
+        }
+        capture(captures, device, session);
+    }
+
+    private void capture(@NonNull List<PendingCapture> captures, @NonNull CameraDevice device, @NonNull CameraCaptureSession session) {
+        List<CaptureRequest> requests = new ArrayList<>(captures.size());
         try {
-            CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            if (hasFlash()) {
-                switch (getFlash()) {
-                    case AUTO:
-                        // TODO: This doesn't work :(
-                        builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                        break;
-                    case ON:
-                        builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_SINGLE);
-                        break;
-                    case OFF:
-                        builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
-                        break;
+            CaptureRequest.Builder builder = mStillCaptureRequest.getBuilder(device);
+            CameraView.Flash flash = hasFlash() ? getFlash() : null;
+            if (flash != mAppliedFlash) {
+                // Undo the previous flash mode before applying the new one.
+                builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+                builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+                if (flash != null) {
+                    switch (flash) {
+                        case AUTO:
+                            // TODO: This doesn't work :(
+                            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                            break;
+                        case ON:
+                            builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_SINGLE);
+                            break;
+                        case OFF:
+                            builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+                            break;
+                    }
                 }
+                mAppliedFlash = flash;
             }
-            builder.addTarget(mPictureSurface.getSurface());
-            if (mMeteringRectangle != null) {
-                builder.set(CaptureRequest.CONTROL_AE_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
-                builder.set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
+
+            builder.set(CaptureRequest.JPEG_QUALITY, (byte) getJpegQuality());
+            Size thumbnailSize = getSupportedThumbnailSize();
+            if (thumbnailSize != null) {
+                builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, thumbnailSize);
             }
-            if (mCropRegion != null) {
-                builder.set(CaptureRequest.SCALER_CROP_REGION, mCropRegion);
+
+            // Every request in a burst has identical settings, but each build() returns a new
+            // instance that we can use to tell them apart in the callbacks.
+            for (PendingCapture capture : captures) {
+                CaptureRequest request = mStillCaptureRequest.build(device, mMeteringRectangle, mCropRegion);
+                mPictureSurface.addPendingCapture(request, capture);
+                requests.add(request);
             }
-            session.capture(builder.build(), null /* callback */, getBackgroundHandler());
-        } catch (CameraAccessException | IllegalStateException | NullPointerException e) {
+
+            if (requests.size() == 1) {
+                session.capture(requests.get(0), mPictureSurface.getCaptureCallback(), getBackgroundHandler());
+            } else {
+                session.captureBurst(requests, mPictureSurface.getCaptureCallback(), getBackgroundHandler());
+            }
+        } catch (CameraAccessException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
             // Crashes if the Camera is interacted with while still loading
             Log.e(TAG, "Failed to create capture request", e);
-
-            CameraView.OnImageCapturedListener l = getOnImageCapturedListener();
-            if (l != null) {
-                l.onFailure();
+            for (CaptureRequest request : requests) {
+                mPictureSurface.removePendingCapture(request);
+            }
+            for (PendingCapture capture : captures) {
+                mPictureSurface.onFailure(capture);
             }
         }
     }
 
-    private static class ImageSaver extends AsyncTask<Void, Void, Void> {
+    /**
+     * Saves an image to disk. If a review size is given, a downscaled copy is published as progress
+     * before the image is written, so it can be shown right away. Returns false if the image
+     * couldn't be saved, in which case nothing is left behind at the file.
+     */
+    private static class ImageSaver extends AsyncTask<Void, Bitmap, Boolean> {
         private final Context mContext;
 
+        // Where frames and encoded pictures are kept between shots, since they're several MB each
+        private final BufferPool mBufferPool;
+
+        // Where we report how long each step took
+        private final CameraMetrics mCameraMetrics;
+
         // The image that was captured
         private final Image mImage;
 
@@ -122,176 +282,496 @@ class PictureSession extends PreviewSession {
         // The file to save the image to
         private final File mFile;
 
-        ImageSaver(Context context, Image image, int orientation, boolean reversed, File file) {
+        // The quality to encode YUV images with
+        private final int mJpegQuality;
+
+        // The size of the view the review bitmap is shown in, or 0x0 to skip it
+        private final int mReviewWidth;
+        private final int mReviewHeight;
+
+        ImageSaver(Context context, CameraMetrics cameraMetrics, Image image, int orientation, boolean reversed, File file, int jpegQuality, int reviewWidth, int reviewHeight) {
             mContext = context.getApplicationContext();
+            mBufferPool = BufferPool.getDefault(mContext);
+            mCameraMetrics = cameraMetrics;
             mImage = image;
             mOrientation = orientation;
             mIsReversed = reversed;
             mFile = file;
+            mJpegQuality = jpegQuality;
+            mReviewWidth = reviewWidth;
+            mReviewHeight = reviewHeight;
         }
 
         @WorkerThread
         @Override
-        protected Void doInBackground(Void... params) {
-            // Finally, we save the file to disk
-            byte[] bytes = getBytes();
+        protected Boolean doInBackground(Void... params) {
+            // Finally, we save the file to disk. The exif data is spliced in as the bytes are
+            // written, so the file only has to be written once.
+            JpegExifWriter writer = new JpegExifWriter()
+                    .setRotation(mOrientation)
+                    .setFlippedHorizontally(mIsReversed)
+                    .setTimestamp(System.currentTimeMillis())
+                    .setLocation(SessionImpl.CameraSurface.getLocation(mContext));
             FileOutputStream output = null;
+            ByteBuffer jpeg = null;
+            boolean success = false;
             try {
                 output = new FileOutputStream(mFile);
-                output.write(bytes);
-
-                Exif exif = new Exif(mFile);
-                exif.attachTimestamp();
-                exif.rotate(mOrientation);
-                if (mIsReversed) {
-                    exif.flipHorizontally();
-                }
-                Location location = SessionImpl.CameraSurface.getLocation(mContext);
-                if (location != null) {
-                    exif.attachLocation(location);
+                if (mImage.getFormat() == ImageFormat.JPEG) {
+                    // The JPEG plane is a direct buffer, so we can hand it straight to the file
+                    // without copying it onto the heap first.
+                    ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
+                    publishReview(buffer);
+                    writer.write(buffer, output.getChannel());
+                } else {
+                    jpeg = toJpeg(mImage, mJpegQuality, mBufferPool);
+                    if (jpeg == null) {
+                        throw new IOException("Unable to encode image");
+                    }
+                    publishReview(jpeg);
+                    writer.write(jpeg, output.getChannel());
                 }
-                exif.save();
-            } catch (IOException e) {
+                mCameraMetrics.record(CameraMetrics.Milestone.JPEG_WRITTEN);
+                mCameraMetrics.record(CameraMetrics.Milestone.EXIF_SAVED);
+                success = true;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                // eg. the disk is full, an unsupported row stride, or no room for the encoded picture.
                 Log.e(TAG, "Failed to write the file", e);
             } finally {
                 mImage.close();
+                if (jpeg != null) {
+                    mBufferPool.release(jpeg.array());
+                }
                 if (output != null) {
                     try {
                         output.close();
                     } catch (IOException e) {
                         Log.e(TAG, "Failed to close the output stream", e);
+                        success = false;
                     }
                 }
             }
-            return null;
+            if (!success && mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Failed to clean up " + mFile);
+            }
+            return success;
         }
 
-        private byte[] getBytes() {
-            return toByteArray(mImage);
-        }
+        /**
+         * Decodes a review bitmap from the JPEG and publishes it, if one was asked for. The
+         * buffer's position is left untouched.
+         */
+        private void publishReview(ByteBuffer jpeg) {
+            if (mReviewWidth <= 0 || mReviewHeight <= 0) {
+                return;
+            }
 
-        private static byte[] toByteArray(Image image) {
-            byte[] data = null;
-            if (image.getFormat() == ImageFormat.JPEG) {
-                Image.Plane[] planes = image.getPlanes();
-                ByteBuffer buffer = planes[0].getBuffer();
-                data = new byte[buffer.capacity()];
-                buffer.get(data);
-                return data;
-            } else if (image.getFormat() == ImageFormat.YUV_420_888) {
-                data = NV21toJPEG(
-                        YUV_420_888toNV21(image),
-                        image.getWidth(), image.getHeight());
+            int length = jpeg.remaining();
+            byte[] data;
+            int offset;
+            byte[] copy = null;
+            if (jpeg.hasArray()) {
+                data = jpeg.array();
+                offset = jpeg.arrayOffset() + jpeg.position();
             } else {
-                Log.w(TAG, "Unrecognized image format: " + image.getFormat());
+                // BitmapFactory can't read direct buffers.
+                data = copy = mBufferPool.acquire(length);
+                offset = 0;
+                jpeg.duplicate().get(copy, 0, length);
             }
-            return data;
-        }
-
-        private static byte[] YUV_420_888toNV21(Image image) {
-            byte[] nv21;
-            ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-            ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-            ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-
-            int ySize = yBuffer.remaining();
-            int uSize = uBuffer.remaining();
-            int vSize = vBuffer.remaining();
 
-            nv21 = new byte[ySize + uSize + vSize];
-
-            // U and V are swapped
-            yBuffer.get(nv21, 0, ySize);
-            vBuffer.get(nv21, ySize, vSize);
-            uBuffer.get(nv21, ySize + vSize, uSize);
-
-            return nv21;
+            try {
+                Bitmap review = ReviewDecoder.decode(data, offset, length, mImage.getWidth(), mImage.getHeight(),
+                        mReviewWidth, mReviewHeight, mOrientation, mIsReversed);
+                if (review != null) {
+                    publishProgress(review);
+                }
+            } finally {
+                mBufferPool.release(copy);
+            }
         }
+    }
 
-        private static byte[] NV21toJPEG(byte[] nv21, int width, int height) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
-            yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-            return out.toByteArray();
+    /**
+     * Returns the image as a JPEG, in a buffer from the pool, or null if the image is in a format
+     * we don't recognize.
+     */
+    @WorkerThread
+    private static ByteBuffer toJpeg(Image image, int jpegQuality, BufferPool bufferPool) {
+        if (image.getFormat() == ImageFormat.JPEG) {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            int length = buffer.remaining();
+            byte[] data = bufferPool.acquire(length);
+            buffer.get(data, 0, length);
+            return ByteBuffer.wrap(data, 0, length);
+        } else if (image.getFormat() == ImageFormat.YUV_420_888) {
+            byte[] nv21 = bufferPool.acquire(YuvConverter.getNv21Size(image.getWidth(), image.getHeight()));
+            try {
+                YuvConverter.toNv21(image, nv21);
+                // Encoded across every core, rather than on a single thread like YuvImage.
+                return new StripedJpegEncoder(jpegQuality).encode(nv21, image.getWidth(), image.getHeight(), bufferPool);
+            } finally {
+                bufferPool.release(nv21);
+            }
+        } else {
+            Log.w(TAG, "Unrecognized image format: " + image.getFormat());
+            return null;
         }
     }
 
     private static final class PictureSurface extends CameraSurface {
-        private List<Size> getSizes(StreamConfigurationMap map) {
+        private static final SizeIndex.Key ZSL_SIZES = SizeIndex.Key.forFormat(IMAGE_FORMAT_ZSL);
+        private static final SizeIndex.Key ZSL_STREAMING_SIZES = ZSL_SIZES.maxFrameDuration(ZSL_MAX_FRAME_DURATION_NANOS);
+
+        private SizeIndex getSizes(CameraInfo cameraInfo) {
+            if (mIsZeroShutterLag) {
+                SizeIndex sizes = cameraInfo.getSizeIndex(ZSL_STREAMING_SIZES);
+                if (sizes.isEmpty()) {
+                    Log.w(TAG, "Couldn't find a size that can be streamed at full frame rate");
+                    return cameraInfo.getSizeIndex(ZSL_SIZES);
+                }
+                return sizes;
+            }
+
+            SizeIndex.Key key = getSizeKey(getImageFormat(getQuality()));
+
             // Special case for high resolution images (assuming, of course, quality was set to high)
             if (getQuality() == CameraView.Quality.HIGH && Build.VERSION.SDK_INT >= 23) {
-                Size[] sizes = map.getHighResolutionOutputSizes(getImageFormat(getQuality()));
-                if (sizes != null) {
-                    List<Size> availableSizes = isRaw(getImageFormat(getQuality()))
-                            ? Arrays.asList(sizes) : filter(sizes);
-                    if (availableSizes.size() > 0) {
-                        return availableSizes;
-                    }
+                SizeIndex sizes = cameraInfo.getSizeIndex(key.highResolution());
+                if (!sizes.isEmpty()) {
+                    return sizes;
                 }
             }
 
             // Otherwise, just return the default sizes
-            Size[] sizes = map.getOutputSizes(getImageFormat(getQuality()));
-            return isRaw(getImageFormat(getQuality())) ? Arrays.asList(sizes) : filter(sizes);
+            return cameraInfo.getSizeIndex(key);
+        }
+
+        private static SizeIndex.Key getSizeKey(int imageFormat) {
+            SizeIndex.Key key = SizeIndex.Key.forFormat(imageFormat);
+            return isRaw(imageFormat) ? key : key.maxSize(Camera2Module.MAX_SUPPORTED_SIZE);
+        }
+
+        /**
+         * Returns the format of the images we'll receive. Frames streamed for zero shutter lag are
+         * always YUV, since encoding a JPEG every frame would slow down the preview.
+         */
+        private int getFormat() {
+            return mIsZeroShutterLag ? IMAGE_FORMAT_ZSL : getImageFormat(getQuality());
         }
 
         private final ImageReader.OnImageAvailableListener mOnImageAvailableListener = new ImageReader.OnImageAvailableListener() {
             @Override
-            public void onImageAvailable(final ImageReader reader) {
-                mCameraView.getBackgroundHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            if (mFile != null) {
-                                final File file = mFile;
-                                new ImageSaver(
-                                        mCameraView.getContext(),
-                                        reader.acquireLatestImage(),
-                                        mCameraView.getRelativeCameraOrientation(),
-                                        isUsingFrontFacingCamera(),
-                                        mFile) {
-                                    @UiThread
-                                    @Override
-                                    protected void onPostExecute(Void aVoid) {
-                                        showImageConfirmation(file);
-                                    }
-                                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                                mFile = null;
-                            } else {
-                                Log.w(ICameraModule.TAG, "OnImageAvailable called but no file to write to");
-                            }
-                        } catch (IllegalStateException e) {
-                            Log.e(TAG, "Failed to save image", e);
-                        }
-                    }
-                });
+            public void onImageAvailable(ImageReader reader) {
+                if (!mIsZeroShutterLag) {
+                    // With zero shutter lag, every frame lands here. It's recorded once we pick one.
+                    mCameraView.getCameraMetrics().record(CameraMetrics.Milestone.IMAGE_AVAILABLE);
+                }
+                acquireImages();
+            }
+        };
+
+        // Called when a saved image is closed, freeing up room in the ImageReader.
+        private final Runnable mAcquireImagesRunnable = new Runnable() {
+            @Override
+            public void run() {
+                acquireImages();
+            }
+        };
+
+        private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+                onPictureStarted(request, timestamp);
+            }
+
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                mCameraView.getCameraMetrics().record(CameraMetrics.Milestone.CAPTURE_COMPLETED);
+                onPictureCompleted(request);
+            }
+
+            @Override
+            public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+                Log.w(TAG, "Failed to capture picture. Reason: " + failure.getReason());
+                onPictureFailed(request, failure);
             }
         };
 
         private final CameraSurface mPreviewSurface;
+        private final boolean mIsZeroShutterLag;
         private ImageReader mImageReader;
-        private File mFile;
 
-        PictureSurface(Camera2Module camera2Module, CameraSurface previewSurface) {
+        // Captures the camera hasn't finished with, keyed by the request that was sent to it.
+        // CaptureRequest overrides equals() to compare settings, and every request in a burst has
+        // the same settings, so these are compared by identity instead.
+        private final Map<CaptureRequest, PendingCapture> mPendingRequests = new IdentityHashMap<>();
+
+        // Captures that have started, keyed by their sensor timestamp. Images from the ImageReader
+        // carry the same timestamp, which is how we know which file they belong to.
+        private final Map<Long, PendingCapture> mPendingCaptures = new HashMap<>();
+
+        // Images that arrived before we heard their capture start, keyed by timestamp. With zero
+        // shutter lag, this is also the ring of recent frames that pictures are taken from.
+        private final TreeMap<Long, Image> mUnclaimedImages = new TreeMap<>();
+
+        // How many images are being written to disk. They still count against MAX_IMAGES.
+        private int mSavingCount;
+
+        // A reader that was closed while images from it were still being saved. Their buffers
+        // belong to the reader, so it's only closed once the last of them is done.
+        @Nullable
+        private ImageReader mClosingImageReader;
+
+        PictureSurface(Camera2Module camera2Module, CameraSurface previewSurface, boolean zeroShutterLag) {
             super(camera2Module);
             mPreviewSurface = previewSurface;
+            mIsZeroShutterLag = zeroShutterLag;
         }
 
         @Override
-        void initialize(StreamConfigurationMap map) {
-            super.initialize(chooseSize(getSizes(map), mPreviewSurface.mSize));
-            mImageReader = ImageReader.newInstance(getWidth(), getHeight(), getImageFormat(getQuality()), 1 /* maxImages */);
+        void initialize(CameraInfo cameraInfo) {
+            super.initialize(chooseSize(getSizes(cameraInfo), mPreviewSurface.mSize));
+            mImageReader = ImageReader.newInstance(getWidth(), getHeight(), getFormat(), MAX_IMAGES);
             mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mCameraView.getBackgroundHandler());
         }
 
-        void initializePicture(File file) {
-            mFile = file;
-            if (mFile.exists()) {
+        synchronized void addPendingCapture(CaptureRequest request, PendingCapture capture) {
+            deleteExistingFile(capture);
+            mPendingRequests.put(request, capture);
+        }
+
+        private static void deleteExistingFile(PendingCapture capture) {
+            if (capture.mFile != null && capture.mFile.exists()) {
                 Log.w(TAG, "File already exists. Deleting.");
-                mFile.delete();
+                capture.mFile.delete();
+            }
+        }
+
+        synchronized void removePendingCapture(CaptureRequest request) {
+            mPendingRequests.remove(request);
+        }
+
+        /**
+         * Saves the frame closest to the given sensor timestamp for the capture.
+         *
+         * @return False if there's no frame to take, in which case a new one should be captured.
+         */
+        synchronized boolean takeZeroShutterLagPicture(PendingCapture capture, long timestamp) {
+            if (!mPendingRequests.isEmpty()) {
+                // Some of our frames may belong to those captures.
+                return false;
+            }
+
+            Map.Entry<Long, Image> floor = mUnclaimedImages.floorEntry(timestamp);
+            Map.Entry<Long, Image> ceiling = mUnclaimedImages.ceilingEntry(timestamp);
+            Map.Entry<Long, Image> closest;
+            if (floor == null) {
+                closest = ceiling;
+            } else if (ceiling == null) {
+                closest = floor;
+            } else {
+                closest = timestamp - floor.getKey() <= ceiling.getKey() - timestamp ? floor : ceiling;
+            }
+            if (closest == null) {
+                if (DEBUG) Log.d(TAG, "No frames to take a picture from");
+                return false;
+            }
+            if (Math.abs(closest.getKey() - timestamp) > ZSL_MAX_TIMESTAMP_SKEW_NANOS) {
+                Log.w(TAG, "Sensor timestamps don't match our clock. Using the newest frame");
+                closest = mUnclaimedImages.lastEntry();
+            }
+
+            deleteExistingFile(capture);
+            mUnclaimedImages.remove(closest.getKey());
+            capture.mTimestamp = closest.getKey();
+            mCameraView.getCameraMetrics().record(CameraMetrics.Milestone.IMAGE_AVAILABLE);
+            save(capture, closest.getValue());
+            return true;
+        }
+
+        CameraCaptureSession.CaptureCallback getCaptureCallback() {
+            return mCaptureCallback;
+        }
+
+        private synchronized void onPictureStarted(CaptureRequest request, long timestamp) {
+            PendingCapture capture = mPendingRequests.get(request);
+            if (capture == null) {
+                return;
+            }
+
+            capture.mTimestamp = timestamp;
+            Image image = mUnclaimedImages.remove(timestamp);
+            if (image != null) {
+                save(capture, image);
+            } else {
+                mPendingCaptures.put(timestamp, capture);
+            }
+        }
+
+        private synchronized void onPictureCompleted(CaptureRequest request) {
+            mPendingRequests.remove(request);
+        }
+
+        private synchronized void onPictureFailed(CaptureRequest request, CaptureFailure failure) {
+            PendingCapture capture = mPendingRequests.remove(request);
+            if (capture == null || capture.mIsSaved || failure.wasImageCaptured()) {
+                // Only the metadata was lost. The image is (or will be) saved as usual.
+                return;
+            }
+
+            mPendingCaptures.remove(capture.mTimestamp);
+            onFailure(capture);
+        }
+
+        /**
+         * Lets whoever asked for the capture know that it won't arrive.
+         */
+        void onFailure(PendingCapture capture) {
+            if (capture.mSink != null) {
+                capture.mSink.onFailure();
+            } else {
+                mCameraView.onImageFailure(capture.mFile);
+            }
+        }
+
+        /**
+         * Pulls every available image out of the ImageReader and pairs it with its capture.
+         * Called on the background thread.
+         */
+        private synchronized void acquireImages() {
+            while (mImageReader != null) {
+                Image image;
+                try {
+                    image = mImageReader.acquireNextImage();
+                } catch (IllegalStateException e) {
+                    // We're holding onto MAX_IMAGES already. We'll try again once one is saved.
+                    if (DEBUG) Log.d(TAG, "Waiting for an image to be saved before acquiring more");
+                    return;
+                }
+                if (image == null) {
+                    return;
+                }
+
+                PendingCapture capture = mPendingCaptures.remove(image.getTimestamp());
+                if (capture != null) {
+                    save(capture, image);
+                    continue;
+                }
+
+                // We haven't heard that this capture started yet. Hold onto the image until we do,
+                // but don't let images we'll never claim (eg. from a failed capture) pile up.
+                mUnclaimedImages.put(image.getTimestamp(), image);
+                while (mUnclaimedImages.size() > getMaxUnclaimedImages(mIsZeroShutterLag, mSavingCount)) {
+                    if (!mIsZeroShutterLag) {
+                        Log.w(TAG, "Dropping an image that doesn't belong to any capture");
+                    }
+                    mUnclaimedImages.pollFirstEntry().getValue().close();
+                }
             }
         }
 
+        private void save(final PendingCapture capture, Image image) {
+            capture.mIsSaved = true;
+            mSavingCount++;
+
+            if (capture.mSink != null) {
+                deliver(capture.mSink, image);
+                return;
+            }
+
+            // Pictures in a burst aren't confirmed, so there's nothing to review.
+            boolean review = !capture.mIsBurst && mCameraView.isImageConfirmationEnabled();
+            int reviewWidth = review ? mCameraView.getWidth() : 0;
+            int reviewHeight = review ? mCameraView.getHeight() : 0;
+            new ImageSaver(
+                    mCameraView.getContext(),
+                    mCameraView.getCameraMetrics(),
+                    image,
+                    mCameraView.getRelativeCameraOrientation(),
+                    isUsingFrontFacingCamera(),
+                    capture.mFile,
+                    mCameraView.getJpegQuality(),
+                    reviewWidth,
+                    reviewHeight) {
+                @UiThread
+                @Override
+                protected void onProgressUpdate(Bitmap... reviews) {
+                    mCameraView.showImageReview(capture.mFile, reviews[0]);
+                }
+
+                @UiThread
+                @Override
+                protected void onPostExecute(Boolean success) {
+                    onImageSaved();
+
+                    // The image has been closed, so there may be room for another.
+                    mCameraView.post(mAcquireImagesRunnable);
+
+                    if (!success) {
+                        mCameraView.onImageFailure(capture.mFile);
+                    } else if (capture.mIsBurst) {
+                        mCameraView.onImageCaptured(capture.mFile);
+                    } else {
+                        showImageConfirmation(capture.mFile);
+                    }
+                }
+            }.executeOnExecutor(mCameraView.getEncodeExecutor());
+        }
+
+        /**
+         * Called once an image has been saved and closed. Closes the reader if it was waiting on
+         * this image.
+         */
+        private synchronized void onImageSaved() {
+            mSavingCount--;
+            if (mSavingCount == 0 && mClosingImageReader != null) {
+                mClosingImageReader.close();
+                mClosingImageReader = null;
+            }
+        }
+
+        /**
+         * Encodes the image, if it isn't a JPEG already, and hands it to the sink. The bytes are
+         * copied out of the ImageReader, since closing the camera would pull them out from under
+         * the sink, and so that the camera can have the image back right away.
+         */
+        private void deliver(final CaptureSink sink, final Image image) {
+            final int orientation = mCameraView.getRelativeCameraOrientation();
+            final boolean reversed = isUsingFrontFacingCamera();
+            final int jpegQuality = mCameraView.getJpegQuality();
+            final BufferPool bufferPool = BufferPool.getDefault(getContext());
+            mCameraView.getEncodeExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer encoded;
+                    try {
+                        encoded = toJpeg(image, jpegQuality, bufferPool);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        // eg. an unsupported row stride, or no room for the encoded picture.
+                        Log.e(TAG, "Failed to encode the image", e);
+                        encoded = null;
+                    } finally {
+                        image.close();
+                        onImageSaved();
+                        mCameraView.post(mAcquireImagesRunnable);
+                    }
+
+                    if (encoded == null) {
+                        sink.onFailure();
+                        return;
+                    }
+                    final ByteBuffer jpeg = encoded;
+                    sink.onCaptured(new CapturedImage(jpeg, orientation, reversed) {
+                        @Override
+                        protected void onRelease() {
+                            bufferPool.release(jpeg.array());
+                        }
+                    });
+                }
+            });
+        }
+
         @Override
         Surface getSurface() {
             return mImageReader.getSurface();
@@ -299,13 +779,73 @@ class PictureSession extends PreviewSession {
 
         @Override
         void close() {
-            if (mImageReader != null) {
-                mImageReader.close();
-                mImageReader = null;
+            // Captures that haven't been saved yet never will be. A capture that has finished but
+            // is still waiting on its image is only in mPendingCaptures.
+            Set<PendingCapture> dropped = Collections.newSetFromMap(new IdentityHashMap<PendingCapture, Boolean>());
+            synchronized (this) {
+                for (Image image : mUnclaimedImages.values()) {
+                    image.close();
+                }
+                mUnclaimedImages.clear();
+
+                dropped.addAll(mPendingRequests.values());
+                dropped.addAll(mPendingCaptures.values());
+                mPendingRequests.clear();
+                mPendingCaptures.clear();
+
+                if (mImageReader != null) {
+                    if (mSavingCount > 0) {
+                        mClosingImageReader = mImageReader;
+                    } else {
+                        mImageReader.close();
+                    }
+                    mImageReader = null;
+                }
+            }
+
+            // Reporting a failure frees the picture's slot in the CameraView's capture queue, which
+            // may submit the next picture, so we do it without holding our lock.
+            for (PendingCapture capture : dropped) {
+                if (!capture.mIsSaved) {
+                    onFailure(capture);
+                }
             }
         }
     }
 
+    /**
+     * A picture we've asked the camera for, and the file it will be saved to.
+     */
+    private static final class PendingCapture {
+        // Where the picture is saved to, unless it's handed to mSink instead.
+        @Nullable
+        final File mFile;
+
+        @Nullable
+        final CaptureSink mSink;
+
+        // If true, the picture is part of a burst and skips confirmation.
+        final boolean mIsBurst;
+
+        // The sensor timestamp, once the capture has started.
+        long mTimestamp = -1;
+
+        // If true, the image arrived and is being written to disk.
+        boolean mIsSaved;
+
+        PendingCapture(@NonNull File file, boolean isBurst) {
+            mFile = file;
+            mSink = null;
+            mIsBurst = isBurst;
+        }
+
+        PendingCapture(@NonNull CaptureSink sink) {
+            mFile = null;
+            mSink = sink;
+            mIsBurst = false;
+        }
+    }
+
     private static int getImageFormat(CameraView.Quality quality) {
         switch (quality) {
             case MAX:
@@ -315,6 +855,23 @@ class PictureSession extends PreviewSession {
         }
     }
 
+    /**
+     * Returns how many unclaimed images a PictureSurface can hold onto while savingCount images
+     * are being saved. With zero shutter lag, frames arrive continuously, so we leave room in the
+     * ImageReader for the next frame and for a capture that's in flight, and give up frames while
+     * pictures are being saved. Once only one slot is left, every frame is dropped as it arrives
+     * so that the camera can keep streaming.
+     */
+    static int getMaxUnclaimedImages(boolean zeroShutterLag, int savingCount) {
+        if (zeroShutterLag) {
+            if (savingCount >= MAX_IMAGES - 1) {
+                return 0;
+            }
+            return Math.max(1, MAX_IMAGES - 2 - savingCount);
+        }
+        return MAX_IMAGES - 1;
+    }
+
     private static boolean isRaw(int imageFormat) {
         switch (imageFormat) {
             case ImageFormat.YUV_420_888:
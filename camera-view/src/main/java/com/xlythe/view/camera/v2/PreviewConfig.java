@@ -0,0 +1,62 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.Matrix;
+import android.support.annotation.NonNull;
+import android.util.Size;
+
+import java.util.Locale;
+
+/**
+ * The preview size and transform for a camera, given the size and rotation of the view it's being
+ * drawn into. These are cached per camera so that switching between cameras doesn't have to
+ * recompute them, and so that we can compute them for the other camera before the user switches.
+ */
+@TargetApi(21)
+final class PreviewConfig {
+    private final String mCameraId;
+    private final int mViewWidth;
+    private final int mViewHeight;
+    private final int mDisplayRotation;
+    private final Size mPreviewSize;
+    private final Matrix mTransform;
+
+    PreviewConfig(String cameraId, int viewWidth, int viewHeight, int displayRotation, Size previewSize, Matrix transform) {
+        mCameraId = cameraId;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mDisplayRotation = displayRotation;
+        mPreviewSize = previewSize;
+        mTransform = new Matrix(transform);
+    }
+
+    /**
+     * Returns true if this config was computed for the given camera and view.
+     */
+    boolean matches(String cameraId, int viewWidth, int viewHeight, int displayRotation) {
+        return mCameraId.equals(cameraId)
+                && mViewWidth == viewWidth
+                && mViewHeight == viewHeight
+                && mDisplayRotation == displayRotation;
+    }
+
+    @NonNull
+    Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Returns the matrix to apply to the TextureView. The returned Matrix is a copy, so callers
+     * may modify it.
+     */
+    @NonNull
+    Matrix getTransform() {
+        return new Matrix(mTransform);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "PreviewConfig{id=%s, view=%dx%d, rotation=%d, preview=%s}",
+                mCameraId, mViewWidth, mViewHeight, mDisplayRotation, mPreviewSize);
+    }
+}
@@ -6,15 +6,11 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import static com.xlythe.view.camera.ICameraModule.DEBUG;
@@ -22,8 +18,19 @@ import static com.xlythe.view.camera.ICameraModule.TAG;
 
 @TargetApi(21)
 class PreviewSession extends SessionImpl {
+    private static final SizeIndex.Key PREVIEW_SIZES =
+            SizeIndex.Key.forClass(SurfaceTexture.class).maxSize(Camera2Module.MAX_SUPPORTED_SIZE);
+
     private final PreviewSurface mPreviewSurface;
 
+    private final CaptureRequestTemplate mPreviewRequest = new CaptureRequestTemplate(CameraDevice.TEMPLATE_PREVIEW) {
+        @Override
+        void onCreate(@NonNull CaptureRequest.Builder builder) {
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            builder.addTarget(mPreviewSurface.getSurface());
+        }
+    };
+
     PreviewSession(Camera2Module camera2Module) {
         super(camera2Module);
         mPreviewSurface = new PreviewSurface(camera2Module);
@@ -34,33 +41,37 @@ class PreviewSession extends SessionImpl {
     }
 
     @Override
-    public void initialize(@NonNull StreamConfigurationMap map) throws CameraAccessException {
-        mPreviewSurface.initialize(map);
-        transformPreview(mPreviewSurface.getWidth(), mPreviewSurface.getHeight());
+    public void initialize(@NonNull CameraInfo cameraInfo) throws CameraAccessException {
+        // The preview size and transform are usually precomputed, so this is cheap.
+        PreviewConfig config = getPreviewConfig();
+        mPreviewSurface.initialize(config.getPreviewSize());
+        transformPreview(config);
     }
 
-    private CaptureRequest createCaptureRequest(@NonNull CameraDevice device) throws CameraAccessException {
-        CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-        builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-        if (mMeteringRectangle != null) {
-            builder.set(CaptureRequest.CONTROL_AE_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
-            builder.set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
-        }
-        if (mCropRegion != null) {
-            builder.set(CaptureRequest.SCALER_CROP_REGION, mCropRegion);
+    /**
+     * Returns the smallest preview size that's at least as large as the view, so that the preview
+     * never has to be scaled up.
+     */
+    static Size chooseOptimalSize(CameraInfo cameraInfo, int viewWidth, int viewHeight) {
+        SizeIndex index = cameraInfo.getSizeIndex(PREVIEW_SIZES);
+        if (DEBUG) {
+            Log.d(TAG, "Choosing a preview size from " + index);
         }
-        builder.addTarget(mPreviewSurface.getSurface());
-        return builder.build();
+        return index.chooseOptimalSize(viewWidth, viewHeight);
+    }
+
+    private CaptureRequest createCaptureRequest(@NonNull CameraDevice device) throws CameraAccessException {
+        return mPreviewRequest.build(device, mMeteringRectangle, mCropRegion);
     }
 
     @Override
     public void onAvailable(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
-        session.setRepeatingRequest(createCaptureRequest(device), null /* callback */, getBackgroundHandler());
+        session.setRepeatingRequest(createCaptureRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
     }
 
     @Override
     public void onInvalidate(@NonNull CameraDevice device, @NonNull CameraCaptureSession session) throws CameraAccessException {
-        session.setRepeatingRequest(createCaptureRequest(device), null /* callback */, getBackgroundHandler());
+        session.setRepeatingRequest(createCaptureRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
     }
 
     @NonNull
@@ -72,31 +83,6 @@ class PreviewSession extends SessionImpl {
     }
 
     private static final class PreviewSurface extends CameraSurface {
-        private static Size chooseOptimalSize(List<Size> choices, int viewWidth, int viewHeight) {
-            // These sizes are all larger than our view port, so we won't have to scale the image up.
-            List<Size> availableSizes = new ArrayList<>(choices.size());
-            for (Size size : choices) {
-                if (size.getWidth() >= viewWidth && size.getHeight() >= viewHeight) {
-                    availableSizes.add(size);
-                }
-            }
-
-            if (availableSizes.isEmpty()) {
-                Log.e(TAG, "Couldn't find a suitable preview size");
-                availableSizes.add(Collections.max(choices, new CompareSizesByArea()));
-            }
-
-            if (DEBUG) {
-                Log.d(TAG, "Found available preview sizes: " + availableSizes);
-            }
-
-            return Collections.min(availableSizes, new CompareSizesByArea());
-        }
-
-        private List<Size> getSizes(StreamConfigurationMap map) {
-            return filter(map.getOutputSizes(SurfaceTexture.class));
-        }
-
         private Surface mSurface;
 
         PreviewSurface(Camera2Module cameraView) {
@@ -104,8 +90,13 @@ class PreviewSession extends SessionImpl {
         }
 
         @Override
-        void initialize(StreamConfigurationMap map) {
-            super.initialize(chooseOptimalSize(getSizes(map), mCameraView.getWidth(), mCameraView.getHeight()));
+        void initialize(CameraInfo cameraInfo) {
+            initialize(chooseOptimalSize(cameraInfo, mCameraView.getWidth(), mCameraView.getHeight()));
+        }
+
+        @Override
+        void initialize(Size size) {
+            super.initialize(size);
 
             SurfaceTexture texture = mCameraView.getSurfaceTexture();
             texture.setDefaultBufferSize(getWidth(), getHeight());
@@ -0,0 +1,110 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Coalesces changes to the repeating request. Gestures like pinch-to-zoom can fire several times
+ * per frame, and rebuilding the request each time floods the HAL's request queue. Instead, we hold
+ * on to the latest crop region and metering rectangle and apply them at most once per frame.
+ *
+ * Once an update is applied, further updates wait until {@link #onFrameCompleted()} is called by
+ * the repeating request's capture callback.
+ */
+@TargetApi(21)
+class RequestUpdateScheduler {
+    interface Target {
+        /**
+         * Called on the camera thread with the latest values. A null value hasn't changed since
+         * the last update.
+         */
+        void onUpdate(@Nullable Rect cropRegion, @Nullable MeteringRectangle meteringRectangle);
+    }
+
+    private final Executor mExecutor;
+    private final Target mTarget;
+
+    @Nullable
+    private Rect mPendingCropRegion;
+    @Nullable
+    private MeteringRectangle mPendingMeteringRectangle;
+
+    /**
+     * If true, we've applied an update and haven't seen a frame since.
+     */
+    private boolean mAwaitingFrame;
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            apply();
+        }
+    };
+
+    RequestUpdateScheduler(@NonNull Executor executor, @NonNull Target target) {
+        mExecutor = executor;
+        mTarget = target;
+    }
+
+    void setCropRegion(@NonNull Rect cropRegion) {
+        synchronized (this) {
+            mPendingCropRegion = cropRegion;
+            if (mAwaitingFrame) {
+                // The next frame will pick it up.
+                return;
+            }
+        }
+        mExecutor.execute(mApplyRunnable);
+    }
+
+    void setMeteringRectangle(@NonNull MeteringRectangle meteringRectangle) {
+        synchronized (this) {
+            mPendingMeteringRectangle = meteringRectangle;
+            if (mAwaitingFrame) {
+                // The next frame will pick it up.
+                return;
+            }
+        }
+        mExecutor.execute(mApplyRunnable);
+    }
+
+    /**
+     * Called from the camera thread every time a frame from the repeating request completes.
+     */
+    void onFrameCompleted() {
+        synchronized (this) {
+            mAwaitingFrame = false;
+        }
+        apply();
+    }
+
+    /**
+     * Drops any pending updates. Called when the camera closes, since frames will stop arriving.
+     */
+    synchronized void reset() {
+        mPendingCropRegion = null;
+        mPendingMeteringRectangle = null;
+        mAwaitingFrame = false;
+    }
+
+    private void apply() {
+        Rect cropRegion;
+        MeteringRectangle meteringRectangle;
+        synchronized (this) {
+            if (mAwaitingFrame || (mPendingCropRegion == null && mPendingMeteringRectangle == null)) {
+                return;
+            }
+            cropRegion = mPendingCropRegion;
+            meteringRectangle = mPendingMeteringRectangle;
+            mPendingCropRegion = null;
+            mPendingMeteringRectangle = null;
+            mAwaitingFrame = true;
+        }
+        mTarget.onUpdate(cropRegion, meteringRectangle);
+    }
+}
@@ -0,0 +1,67 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decodes a picture, still in memory, into a bitmap just large enough to fill the confirmation
+ * screen. JPEG decoders can downscale by powers of two while decoding, which skips most of the
+ * work, so this is far cheaper than loading the saved file at full resolution.
+ */
+@TargetApi(21)
+final class ReviewDecoder {
+    private ReviewDecoder() {}
+
+    /**
+     * @param width       The width of the JPEG, before rotation.
+     * @param height      The height of the JPEG, before rotation.
+     * @param viewWidth   The width of the view the bitmap will be shown in.
+     * @param viewHeight  The height of the view the bitmap will be shown in.
+     * @param orientation How far the picture needs to be rotated, in degrees, to appear upright.
+     * @param flip        If true, the picture is flipped horizontally after it's rotated.
+     * @return The upright bitmap, or null if the JPEG couldn't be decoded.
+     */
+    @Nullable
+    static Bitmap decode(@NonNull byte[] jpeg, int offset, int length, int width, int height,
+                         int viewWidth, int viewHeight, int orientation, boolean flip) {
+        // Once rotated sideways, the picture's width lines up with the view's height.
+        boolean sideways = orientation % 180 != 0;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(
+                sideways ? height : width, sideways ? width : height, viewWidth, viewHeight);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, offset, length, options);
+        if (bitmap == null || (orientation % 360 == 0 && !flip)) {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postRotate(orientation);
+        if (flip) {
+            matrix.postScale(-1, 1);
+        }
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    /**
+     * Returns the largest power of two the picture can be divided by while still covering the
+     * view.
+     */
+    static int getSampleSize(int width, int height, int viewWidth, int viewHeight) {
+        int sampleSize = 1;
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= viewWidth && height / (sampleSize * 2) >= viewHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
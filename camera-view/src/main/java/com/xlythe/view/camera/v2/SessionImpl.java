@@ -1,12 +1,11 @@
 package com.xlythe.view.camera.v2;
 
-import android.Manifest;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.location.Location;
 import android.os.Handler;
 import android.support.annotation.NonNull;
@@ -15,13 +14,12 @@ import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.xlythe.view.camera.CameraMetrics;
 import com.xlythe.view.camera.CameraView;
-import com.xlythe.view.camera.LocationProvider;
-import com.xlythe.view.camera.PermissionChecker;
+import com.xlythe.view.camera.LocationCache;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -30,9 +28,6 @@ import static com.xlythe.view.camera.ICameraModule.TAG;
 
 @TargetApi(21)
 abstract class SessionImpl implements Camera2Module.Session {
-    private static final long STALE_LOCATION_MILLIS = 2 * 60 * 60 * 1000;
-    private static final long GPS_TIMEOUT_MILLIS = 10;
-
     private final Camera2Module mCamera2Module;
 
     @Nullable
@@ -45,8 +40,13 @@ abstract class SessionImpl implements Camera2Module.Session {
         mCamera2Module = camera2Module;
     }
 
-    void transformPreview(int width, int height) throws CameraAccessException {
-        mCamera2Module.transformPreview(width, height);
+    @NonNull
+    PreviewConfig getPreviewConfig() throws CameraAccessException {
+        return mCamera2Module.getPreviewConfig();
+    }
+
+    void transformPreview(@NonNull PreviewConfig config) {
+        mCamera2Module.transformPreview(config);
     }
 
     @NonNull
@@ -54,6 +54,18 @@ abstract class SessionImpl implements Camera2Module.Session {
         return mCamera2Module.getBackgroundHandler();
     }
 
+    /**
+     * The callback that every repeating request should be made with.
+     */
+    @NonNull
+    CameraCaptureSession.CaptureCallback getRepeatingCaptureCallback() {
+        return mCamera2Module.getRepeatingCaptureCallback();
+    }
+
+    CameraMetrics getCameraMetrics() {
+        return mCamera2Module.getCameraMetrics();
+    }
+
     boolean hasFlash() {
         return mCamera2Module.hasFlash();
     }
@@ -62,6 +74,19 @@ abstract class SessionImpl implements Camera2Module.Session {
         return mCamera2Module.getFlash();
     }
 
+    int getJpegQuality() {
+        return mCamera2Module.getJpegQuality();
+    }
+
+    @Nullable
+    Size getSupportedThumbnailSize() {
+        return mCamera2Module.getSupportedThumbnailSize();
+    }
+
+    long getSensorTimestamp() {
+        return mCamera2Module.getSensorTimestamp();
+    }
+
     int getRelativeCameraOrientation() {
         return mCamera2Module.getRelativeCameraOrientation();
     }
@@ -70,6 +95,10 @@ abstract class SessionImpl implements Camera2Module.Session {
         return mCamera2Module.getOnImageCapturedListener();
     }
 
+    void onImageFailure(File file) {
+        mCamera2Module.onImageFailure(file);
+    }
+
     CameraView.OnVideoCapturedListener getOnVideoCapturedListener() {
         return mCamera2Module.getOnVideoCapturedListener();
     }
@@ -123,7 +152,7 @@ abstract class SessionImpl implements Camera2Module.Session {
             return mCameraView.getQuality();
         }
 
-        abstract void initialize(StreamConfigurationMap map);
+        abstract void initialize(CameraInfo cameraInfo);
 
         void initialize(Size size) {
             if (DEBUG) {
@@ -165,110 +194,23 @@ abstract class SessionImpl implements Camera2Module.Session {
             }
         }
 
-        Size chooseSize(List<Size> choices, Size recommendedSize) {
-            if (DEBUG) {
-                Log.d(TAG, "Choosing from sizes " + choices);
-            }
-            List<Size> availableSizes;
-            switch (getQuality()) {
-                case LOW:
-                    availableSizes = getSizes(choices, CameraView.Quality.LOW, recommendedSize);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a low quality size with the same aspect ratio as the preview");
-                    availableSizes = getSizes(choices, CameraView.Quality.LOW);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a low quality size");
-                case MEDIUM:
-                    availableSizes = getSizes(choices, CameraView.Quality.MEDIUM, recommendedSize);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a medium quality size with the same aspect ratio as the preview");
-                    availableSizes = getSizes(choices, CameraView.Quality.MEDIUM);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a medium quality size");
-                case HIGH:
-                    availableSizes = getSizes(choices, CameraView.Quality.HIGH, recommendedSize);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a high quality size with the same aspect ratio as the preview");
-                    availableSizes = getSizes(choices, CameraView.Quality.HIGH);
-                    if (!availableSizes.isEmpty()) {
-                        return Collections.max(availableSizes, new CompareSizesByArea());
-                    }
-                    if (DEBUG) Log.e(TAG, "Couldn't find a high quality size");
-                case MAX:
-                    return Collections.max(choices, new CompareSizesByArea());
-                default:
-                    Log.e(TAG, "Couldn't find a suitable size");
-                    return Collections.max(choices, new CompareSizesByArea());
-            }
-        }
-
-        static List<Size> getSizes(List<Size> choices, CameraView.Quality quality) {
-            return getSizes(choices, quality, null);
-        }
-
-        static List<Size> getSizes(List<Size> choices, CameraView.Quality quality, @Nullable Size recommendedSize) {
-            List<Size> availableSizes = new ArrayList<>(choices.size());
-            for (Size size : choices) {
-                if (quality == CameraView.Quality.MEDIUM && size.getHeight() > 720) {
-                    continue;
-                }
-                if (quality == CameraView.Quality.LOW && size.getHeight() > 420) {
-                    continue;
-                }
-
-                if (recommendedSize == null) {
-                    availableSizes.add(size);
-                } else if (sameAspectRatio(size, recommendedSize)) {
-                    // Only look at sizes that match the aspect ratio of the preview, because that's what
-                    // the user sees when they take the picture.
-                    availableSizes.add(size);
-                }
-            }
+        /**
+         * Picks a size from the index that suits the current quality, preferring the aspect ratio
+         * of the recommended size. See {@link SizeIndex#chooseSize(CameraView.Quality, Size)}.
+         */
+        Size chooseSize(SizeIndex index, Size recommendedSize) {
             if (DEBUG) {
-                Log.d(TAG, "Found available picture sizes: " + availableSizes);
+                Log.d(TAG, "Choosing from sizes " + index);
             }
-            return availableSizes;
+            return index.chooseSize(getQuality(), recommendedSize);
         }
 
-        static boolean sameAspectRatio(Size a, Size b) {
-            return 1000 * a.getWidth() / a.getHeight() == 1000 * b.getWidth() / b.getHeight();
-        }
-
-        static List<Size> filter(Size[] sizes) {
-            return filter(sizes, Camera2Module.MAX_SUPPORTED_SIZE);
-        }
-
-        static List<Size> filter(Size[] sizes, Size maxSize) {
-            List<Size> availableSizes = new ArrayList<>(sizes.length);
-            for (Size size : sizes) {
-                if (size.getWidth() > maxSize.getWidth()
-                        || size.getHeight() > maxSize.getHeight()) {
-                    continue;
-                }
-                availableSizes.add(size);
-            }
-            return availableSizes;
-        }
-
-        @SuppressWarnings({"MissingPermission"})
+        /**
+         * Returns the latest location, if it's fresh enough. Never waits on GPS.
+         */
         @Nullable
         static Location getLocation(Context context) {
-            if (PermissionChecker.hasPermissions(context, Manifest.permission.ACCESS_FINE_LOCATION)) {
-                // Our GPS timeout is purposefully low. We're not intending to wait until GPS is acquired
-                // but we want a last known location for the next time a picture is taken.
-                return LocationProvider.getGPSLocation(context, STALE_LOCATION_MILLIS, GPS_TIMEOUT_MILLIS);
-            }
-            return null;
+            return LocationCache.getDefault(context).getLatest();
         }
     }
 }
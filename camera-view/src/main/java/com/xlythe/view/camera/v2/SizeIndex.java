@@ -0,0 +1,346 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The output sizes of a single stream (eg. the preview, or JPEGs), sorted by area and grouped by
+ * aspect ratio. Sessions are created every time we toggle cameras or start and stop recording, so
+ * rather than filter and sort the {@link StreamConfigurationMap} each time, we build an index once
+ * per camera (see {@link CameraInfo#getSizeIndex(Key)}) and answer size queries from it.
+ */
+@TargetApi(21)
+final class SizeIndex {
+    // The tallest size allowed at each quality. Quality.HIGH and Quality.MAX have no limit.
+    private static final int MAX_HEIGHT_LOW = 420;
+    private static final int MAX_HEIGHT_MEDIUM = 720;
+
+    // The qualities to try, in order, when asked for a size at each quality.
+    private static final CameraView.Quality[] FALLBACKS_LOW = {
+            CameraView.Quality.LOW, CameraView.Quality.MEDIUM, CameraView.Quality.HIGH };
+    private static final CameraView.Quality[] FALLBACKS_MEDIUM = {
+            CameraView.Quality.MEDIUM, CameraView.Quality.HIGH };
+    private static final CameraView.Quality[] FALLBACKS_HIGH = { CameraView.Quality.HIGH };
+    private static final CameraView.Quality[] FALLBACKS_MAX = {};
+
+    private final Group mAll;
+    private final Map<Integer, Group> mGroups = new HashMap<>();
+
+    SizeIndex(@NonNull Size[] sizes) {
+        this(Arrays.asList(sizes));
+    }
+
+    SizeIndex(@NonNull Collection<Size> sizes) {
+        Size[] sorted = sizes.toArray(new Size[sizes.size()]);
+        Arrays.sort(sorted, new SessionImpl.CameraSurface.CompareSizesByArea());
+        mAll = new Group(sorted);
+
+        Map<Integer, List<Size>> groups = new HashMap<>();
+        for (Size size : sorted) {
+            List<Size> group = groups.get(getAspectRatio(size));
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(getAspectRatio(size), group);
+            }
+            group.add(size);
+        }
+        for (Map.Entry<Integer, List<Size>> entry : groups.entrySet()) {
+            List<Size> group = entry.getValue();
+            mGroups.put(entry.getKey(), new Group(group.toArray(new Size[group.size()])));
+        }
+    }
+
+    /**
+     * Sizes with the same aspect ratio (to three decimal places) share a key.
+     */
+    static int getAspectRatio(@NonNull Size size) {
+        return 1000 * size.getWidth() / size.getHeight();
+    }
+
+    boolean isEmpty() {
+        return mAll.mSizes.length == 0;
+    }
+
+    /**
+     * Returns every size, from smallest to largest.
+     */
+    @NonNull
+    List<Size> getSizes() {
+        return Collections.unmodifiableList(Arrays.asList(mAll.mSizes));
+    }
+
+    /**
+     * Returns the largest size allowed at the given quality, or null if there isn't one.
+     */
+    @Nullable
+    Size getLargest(@NonNull CameraView.Quality quality) {
+        return mAll.getLargest(quality);
+    }
+
+    /**
+     * Returns the largest size allowed at the given quality with the same aspect ratio as the
+     * given size, or null if there isn't one.
+     */
+    @Nullable
+    Size getLargest(@NonNull CameraView.Quality quality, @NonNull Size aspectRatio) {
+        Group group = mGroups.get(getAspectRatio(aspectRatio));
+        return group == null ? null : group.getLargest(quality);
+    }
+
+    /**
+     * Returns the largest size allowed at the given quality. Sizes that match the aspect ratio of
+     * the recommended size (usually the preview, since that's what the user sees) are preferred.
+     * If nothing fits, the quality is raised one step at a time until something does. Quality.MAX
+     * always picks the largest size, whatever its aspect ratio.
+     *
+     * @throws IllegalStateException if the index is empty.
+     */
+    @NonNull
+    Size chooseSize(@NonNull CameraView.Quality quality, @Nullable Size recommendedSize) {
+        if (isEmpty()) {
+            throw new IllegalStateException("There are no sizes to choose from");
+        }
+
+        CameraView.Quality[] fallbacks;
+        switch (quality) {
+            case LOW:
+                fallbacks = FALLBACKS_LOW;
+                break;
+            case MEDIUM:
+                fallbacks = FALLBACKS_MEDIUM;
+                break;
+            case HIGH:
+                fallbacks = FALLBACKS_HIGH;
+                break;
+            default:
+                fallbacks = FALLBACKS_MAX;
+                break;
+        }
+
+        for (CameraView.Quality tier : fallbacks) {
+            Size size = recommendedSize == null ? null : getLargest(tier, recommendedSize);
+            if (size == null) {
+                size = getLargest(tier);
+            }
+            if (size != null) {
+                return size;
+            }
+        }
+        return mAll.getLargest(CameraView.Quality.MAX);
+    }
+
+    /**
+     * Returns the smallest size that's at least as large as the view, so that it never has to be
+     * scaled up. If none are large enough, the largest size is returned instead.
+     *
+     * @throws IllegalStateException if the index is empty.
+     */
+    @NonNull
+    Size chooseOptimalSize(int viewWidth, int viewHeight) {
+        if (isEmpty()) {
+            throw new IllegalStateException("There are no sizes to choose from");
+        }
+
+        // Anything smaller than the view's area can't cover it, so we skip straight past those.
+        Size[] sizes = mAll.mSizes;
+        long minArea = (long) viewWidth * viewHeight;
+        int low = 0;
+        int high = sizes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getArea(sizes[mid]) < minArea) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // Sizes are sorted by area, so the first one that covers the view is the smallest.
+        for (int i = low; i < sizes.length; i++) {
+            if (sizes[i].getWidth() >= viewWidth && sizes[i].getHeight() >= viewHeight) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        return "SizeIndex" + Arrays.toString(mAll.mSizes);
+    }
+
+    private static long getArea(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    /**
+     * Sizes sorted by area, along with the largest size at each quality.
+     */
+    private static final class Group {
+        final Size[] mSizes;
+
+        @Nullable
+        final Size mLargestLow;
+        @Nullable
+        final Size mLargestMedium;
+
+        Group(Size[] sizes) {
+            mSizes = sizes;
+            mLargestLow = findLargest(sizes, MAX_HEIGHT_LOW);
+            mLargestMedium = findLargest(sizes, MAX_HEIGHT_MEDIUM);
+        }
+
+        private static Size findLargest(Size[] sizes, int maxHeight) {
+            for (int i = sizes.length - 1; i >= 0; i--) {
+                if (sizes[i].getHeight() <= maxHeight) {
+                    return sizes[i];
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        Size getLargest(CameraView.Quality quality) {
+            switch (quality) {
+                case LOW:
+                    return mLargestLow;
+                case MEDIUM:
+                    return mLargestMedium;
+                default:
+                    return mSizes.length == 0 ? null : mSizes[mSizes.length - 1];
+            }
+        }
+    }
+
+    /**
+     * Describes which sizes of the {@link StreamConfigurationMap} an index holds. Keys are compared
+     * by value, so they're best kept as constants.
+     */
+    static final class Key {
+        // Either an ImageFormat, or the class the stream is consumed by.
+        @Nullable
+        private final Class<?> mOutputClass;
+        private final int mFormat;
+
+        // If true, only the sizes that can't be streamed at 20fps or more are included.
+        private final boolean mIsHighResolution;
+
+        // If set, larger sizes are left out.
+        @Nullable
+        private final Size mMaxSize;
+
+        // If set, sizes that can't be streamed at least this quickly are left out.
+        private final long mMaxFrameDurationNanos;
+
+        static Key forFormat(int format) {
+            return new Key(null, format, false, null, 0);
+        }
+
+        static Key forClass(@NonNull Class<?> outputClass) {
+            return new Key(outputClass, 0, false, null, 0);
+        }
+
+        private Key(@Nullable Class<?> outputClass, int format, boolean highResolution, @Nullable Size maxSize, long maxFrameDurationNanos) {
+            mOutputClass = outputClass;
+            mFormat = format;
+            mIsHighResolution = highResolution;
+            mMaxSize = maxSize;
+            mMaxFrameDurationNanos = maxFrameDurationNanos;
+        }
+
+        /**
+         * Returns a key for the sizes returned by
+         * {@link StreamConfigurationMap#getHighResolutionOutputSizes(int)}. These are only
+         * available on Android M and above, and only for formats.
+         */
+        Key highResolution() {
+            return new Key(mOutputClass, mFormat, true, mMaxSize, mMaxFrameDurationNanos);
+        }
+
+        Key maxSize(@NonNull Size maxSize) {
+            return new Key(mOutputClass, mFormat, mIsHighResolution, maxSize, mMaxFrameDurationNanos);
+        }
+
+        Key maxFrameDuration(long maxFrameDurationNanos) {
+            return new Key(mOutputClass, mFormat, mIsHighResolution, mMaxSize, maxFrameDurationNanos);
+        }
+
+        @NonNull
+        SizeIndex createIndex(@Nullable StreamConfigurationMap map) {
+            Size[] sizes = null;
+            if (map != null) {
+                if (mIsHighResolution) {
+                    if (Build.VERSION.SDK_INT >= 23 && mOutputClass == null) {
+                        sizes = map.getHighResolutionOutputSizes(mFormat);
+                    }
+                } else if (mOutputClass != null) {
+                    sizes = map.getOutputSizes(mOutputClass);
+                } else {
+                    sizes = map.getOutputSizes(mFormat);
+                }
+            }
+            if (sizes == null) {
+                return new SizeIndex(new Size[0]);
+            }
+
+            List<Size> availableSizes = new ArrayList<>(sizes.length);
+            for (Size size : sizes) {
+                if (mMaxSize != null
+                        && (size.getWidth() > mMaxSize.getWidth() || size.getHeight() > mMaxSize.getHeight())) {
+                    continue;
+                }
+                if (mMaxFrameDurationNanos > 0 && getOutputMinFrameDuration(map, size) > mMaxFrameDurationNanos) {
+                    continue;
+                }
+                availableSizes.add(size);
+            }
+            return new SizeIndex(availableSizes);
+        }
+
+        private long getOutputMinFrameDuration(StreamConfigurationMap map, Size size) {
+            return mOutputClass != null
+                    ? map.getOutputMinFrameDuration(mOutputClass, size)
+                    : map.getOutputMinFrameDuration(mFormat, size);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(mOutputClass, key.mOutputClass)
+                    && mFormat == key.mFormat
+                    && mIsHighResolution == key.mIsHighResolution
+                    && Objects.equals(mMaxSize, key.mMaxSize)
+                    && mMaxFrameDurationNanos == key.mMaxFrameDurationNanos;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mOutputClass, mFormat, mIsHighResolution, mMaxSize, mMaxFrameDurationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Key{output=%s, highResolution=%s, maxSize=%s, maxFrameDuration=%d}",
+                    mOutputClass != null ? mOutputClass.getSimpleName() : mFormat, mIsHighResolution, mMaxSize, mMaxFrameDurationNanos);
+        }
+    }
+}
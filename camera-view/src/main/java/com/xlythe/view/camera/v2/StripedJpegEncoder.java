@@ -0,0 +1,625 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.support.annotation.NonNull;
+
+import com.xlythe.view.camera.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes NV21 frames into baseline JPEGs using every core. {@link android.graphics.YuvImage}
+ * encodes on a single thread, which dominates the time it takes to save a full resolution
+ * picture.
+ *
+ * The frame is cut into horizontal stripes of whole MCU (16x16 pixel) rows. Every stripe is a
+ * restart interval, so its entropy coded data doesn't depend on any other stripe and they can all
+ * be encoded at once on a {@link ForkJoinPool}. Once every stripe is done, they're stitched
+ * together, separated by restart markers, in a single output buffer sized to fit. Every buffer
+ * comes from a {@link BufferPool}, so encoding picture after picture doesn't allocate.
+ *
+ * Chroma is subsampled 2x2 (4:2:0), which is what NV21 already holds, so no resampling is needed.
+ */
+@TargetApi(21)
+final class StripedJpegEncoder {
+    // Stripes per thread. More stripes balance the load better, at the cost of a couple of bytes
+    // per restart marker.
+    private static final int STRIPES_PER_THREAD = 4;
+
+    // The restart interval is stored as an unsigned short.
+    private static final int MAX_RESTART_INTERVAL = 0xFFFF;
+
+    private static final int MCU_SIZE = 16;
+
+    private static ForkJoinPool sPool;
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    // Maps the zigzag order coefficients are written in to their natural (row major) index.
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // The example quantization tables from the JPEG spec (Annex K.1), in natural order.
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    // The typical Huffman tables from the JPEG spec (Annex K.3). For each, the number of codes of
+    // each length from 1 to 16 bits, followed by the symbols in order of increasing code length.
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    // Scale factors for the AAN DCT, which leaves each coefficient off by a known factor that we
+    // fold into quantization.
+    private static final double[] AAN_SCALE_FACTORS = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private final int mQuality;
+
+    // Quantization tables in natural order, as written to the file.
+    private final int[] mLuminanceQuantization;
+    private final int[] mChrominanceQuantization;
+
+    // What to multiply each DCT output by to quantize it.
+    private final float[] mLuminanceDivisors;
+    private final float[] mChrominanceDivisors;
+
+    private final HuffmanTable mDcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final HuffmanTable mAcLuminance = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final HuffmanTable mDcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final HuffmanTable mAcChrominance = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /**
+     * @param quality From 1 to 100, as in {@link android.graphics.YuvImage#compressToJpeg}.
+     */
+    StripedJpegEncoder(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be between 1 and 100, but was " + quality);
+        }
+        mQuality = quality;
+        mLuminanceQuantization = scale(LUMINANCE_QUANTIZATION, quality);
+        mChrominanceQuantization = scale(CHROMINANCE_QUANTIZATION, quality);
+        mLuminanceDivisors = toDivisors(mLuminanceQuantization);
+        mChrominanceDivisors = toDivisors(mChrominanceQuantization);
+    }
+
+    int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Encodes an NV21 frame, laid out as produced by {@link YuvConverter}.
+     *
+     * @param pool Where to get buffers from.
+     * @return A buffer positioned at the start of the JPEG and limited to its end. It wraps an
+     * array from the pool, which the caller should release once they're done with it.
+     */
+    @NonNull
+    ByteBuffer encode(@NonNull byte[] nv21, int width, int height, @NonNull BufferPool pool) {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException(String.format("Invalid size %dx%d", width, height));
+        }
+        if (nv21.length < YuvConverter.getNv21Size(width, height)) {
+            throw new IllegalArgumentException("NV21 buffer is too small for " + width + "x" + height);
+        }
+
+        int mcusPerRow = (width + MCU_SIZE - 1) / MCU_SIZE;
+        int mcuRows = (height + MCU_SIZE - 1) / MCU_SIZE;
+
+        ForkJoinPool forkJoinPool = getPool();
+        int stripeTarget = forkJoinPool.getParallelism() * STRIPES_PER_THREAD;
+        int rowsPerStripe = Math.max(1, (mcuRows + stripeTarget - 1) / stripeTarget);
+        rowsPerStripe = Math.max(1, Math.min(rowsPerStripe, MAX_RESTART_INTERVAL / mcusPerRow));
+        int stripeCount = (mcuRows + rowsPerStripe - 1) / rowsPerStripe;
+
+        Frame frame = new Frame(nv21, width, height, mcusPerRow, mcuRows, rowsPerStripe);
+        byte[][] stripes = new byte[stripeCount][];
+        int[] stripeLengths = new int[stripeCount];
+        try {
+            forkJoinPool.invoke(new EncodeStripes(frame, pool, stripes, stripeLengths, 0, stripeCount));
+            return concat(createHeader(width, height, mcusPerRow * rowsPerStripe), stripes, stripeLengths, pool);
+        } finally {
+            for (byte[] stripe : stripes) {
+                pool.release(stripe);
+            }
+        }
+    }
+
+    /**
+     * Stitches the header and the encoded stripes together into a single JPEG.
+     */
+    private static ByteBuffer concat(byte[] header, byte[][] stripes, int[] stripeLengths, BufferPool pool) {
+        int stripeCount = stripes.length;
+        int length = header.length + 2 /* EOI */;
+        for (int i = 0; i < stripeCount; i++) {
+            length += stripeLengths[i];
+        }
+        length += 2 * (stripeCount - 1); // Restart markers between stripes.
+
+        byte[] out = pool.acquire(length);
+        int offset = 0;
+        System.arraycopy(header, 0, out, offset, header.length);
+        offset += header.length;
+        for (int i = 0; i < stripeCount; i++) {
+            if (i > 0) {
+                out[offset++] = (byte) 0xFF;
+                out[offset++] = (byte) (0xD0 + ((i - 1) & 7)); // RST0 to RST7, in a cycle
+            }
+            System.arraycopy(stripes[i], 0, out, offset, stripeLengths[i]);
+            offset += stripeLengths[i];
+        }
+        out[offset++] = (byte) 0xFF;
+        out[offset++] = (byte) 0xD9; // EOI
+        return ByteBuffer.wrap(out, 0, offset);
+    }
+
+    /**
+     * Everything up to (and including) the start of scan: SOI, JFIF, the quantization tables, the
+     * frame, the Huffman tables and the restart interval.
+     */
+    private byte[] createHeader(int width, int height, int restartInterval) {
+        ByteBuffer header = ByteBuffer.allocate(1024);
+
+        header.put((byte) 0xFF).put((byte) 0xD8); // SOI
+
+        // JFIF 1.01, no density or thumbnail.
+        header.put((byte) 0xFF).put((byte) 0xE0).putShort((short) 16);
+        header.put(new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        header.put((byte) 0xFF).put((byte) 0xDB).putShort((short) (2 + 2 * 65)); // DQT
+        putQuantizationTable(header, 0, mLuminanceQuantization);
+        putQuantizationTable(header, 1, mChrominanceQuantization);
+
+        header.put((byte) 0xFF).put((byte) 0xC0).putShort((short) (8 + 3 * 3)); // SOF0
+        header.put((byte) 8).putShort((short) height).putShort((short) width).put((byte) 3);
+        header.put((byte) 1).put((byte) 0x22).put((byte) 0); // Y, 2x2 sampling, table 0
+        header.put((byte) 2).put((byte) 0x11).put((byte) 1); // Cb
+        header.put((byte) 3).put((byte) 0x11).put((byte) 1); // Cr
+
+        int huffmanLength = 2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length;
+        header.put((byte) 0xFF).put((byte) 0xC4).putShort((short) huffmanLength); // DHT
+        putHuffmanTable(header, 0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        putHuffmanTable(header, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        putHuffmanTable(header, 0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        putHuffmanTable(header, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        header.put((byte) 0xFF).put((byte) 0xDD).putShort((short) 4).putShort((short) restartInterval); // DRI
+
+        header.put((byte) 0xFF).put((byte) 0xDA).putShort((short) (6 + 2 * 3)).put((byte) 3); // SOS
+        header.put((byte) 1).put((byte) 0x00); // Y uses DC table 0, AC table 0
+        header.put((byte) 2).put((byte) 0x11); // Cb uses DC table 1, AC table 1
+        header.put((byte) 3).put((byte) 0x11); // Cr
+        header.put((byte) 0).put((byte) 63).put((byte) 0); // Baseline: the whole spectrum at once
+
+        return Arrays.copyOf(header.array(), header.position());
+    }
+
+    private static void putQuantizationTable(ByteBuffer buffer, int id, int[] table) {
+        buffer.put((byte) id);
+        for (int i = 0; i < 64; i++) {
+            buffer.put((byte) table[ZIGZAG[i]]);
+        }
+    }
+
+    private static void putHuffmanTable(ByteBuffer buffer, int id, int[] bits, int[] values) {
+        buffer.put((byte) id);
+        for (int count : bits) {
+            buffer.put((byte) count);
+        }
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+    }
+
+    /**
+     * Scales a quantization table to the given quality, the same way libjpeg does.
+     */
+    private static int[] scale(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    private static float[] toDivisors(int[] table) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                divisors[row * 8 + col] = (float) (1.0 / (table[row * 8 + col] * AAN_SCALE_FACTORS[row] * AAN_SCALE_FACTORS[col] * 8.0));
+            }
+        }
+        return divisors;
+    }
+
+    /**
+     * The frame being encoded, and how it's cut into stripes.
+     */
+    private static final class Frame {
+        final byte[] mNv21;
+        final int mWidth;
+        final int mHeight;
+        final int mChromaWidth;
+        final int mChromaHeight;
+        final int mMcusPerRow;
+        final int mMcuRows;
+        final int mRowsPerStripe;
+
+        Frame(byte[] nv21, int width, int height, int mcusPerRow, int mcuRows, int rowsPerStripe) {
+            mNv21 = nv21;
+            mWidth = width;
+            mHeight = height;
+            mChromaWidth = (width + 1) / 2;
+            mChromaHeight = (height + 1) / 2;
+            mMcusPerRow = mcusPerRow;
+            mMcuRows = mcuRows;
+            mRowsPerStripe = rowsPerStripe;
+        }
+    }
+
+    /**
+     * Encodes a range of stripes, splitting the range in half until there's one stripe left.
+     */
+    private final class EncodeStripes extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Frame mFrame;
+        private final BufferPool mPool;
+        private final byte[][] mStripes;
+        private final int[] mStripeLengths;
+        private final int mStart;
+        private final int mEnd;
+
+        EncodeStripes(Frame frame, BufferPool pool, byte[][] stripes, int[] stripeLengths, int start, int end) {
+            mFrame = frame;
+            mPool = pool;
+            mStripes = stripes;
+            mStripeLengths = stripeLengths;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > 1) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new EncodeStripes(mFrame, mPool, mStripes, mStripeLengths, mStart, middle),
+                        new EncodeStripes(mFrame, mPool, mStripes, mStripeLengths, middle, mEnd));
+                return;
+            }
+
+            // Roughly a byte per pixel. The writer grows if that isn't enough.
+            BitWriter writer = new BitWriter(mPool, mFrame.mWidth * MCU_SIZE * mFrame.mRowsPerStripe);
+            try {
+                encodeStripe(mFrame, mStart, writer);
+            } finally {
+                // Handed over even if encoding failed, so that the buffer finds its way back to the
+                // pool.
+                mStripes[mStart] = writer.mBytes;
+            }
+            mStripeLengths[mStart] = writer.mLength;
+        }
+    }
+
+    private void encodeStripe(Frame frame, int stripe, BitWriter writer) {
+        float[] block = new float[64];
+        int[] coefficients = new int[64];
+
+        // Every stripe starts a restart interval, which resets the DC predictions.
+        int yDc = 0;
+        int cbDc = 0;
+        int crDc = 0;
+
+        int firstRow = stripe * frame.mRowsPerStripe;
+        int lastRow = Math.min(firstRow + frame.mRowsPerStripe, frame.mMcuRows);
+        for (int mcuRow = firstRow; mcuRow < lastRow; mcuRow++) {
+            for (int mcuCol = 0; mcuCol < frame.mMcusPerRow; mcuCol++) {
+                int x = mcuCol * MCU_SIZE;
+                int y = mcuRow * MCU_SIZE;
+
+                // Four luma blocks, then one each for Cb and Cr.
+                for (int i = 0; i < 4; i++) {
+                    loadLumaBlock(frame, x + (i & 1) * 8, y + (i >> 1) * 8, block);
+                    quantize(block, mLuminanceDivisors, coefficients);
+                    yDc = encodeBlock(writer, coefficients, yDc, mDcLuminance, mAcLuminance);
+                }
+
+                // NV21 stores chroma as V then U, and Cb is U.
+                loadChromaBlock(frame, x / 2, y / 2, 1, block);
+                quantize(block, mChrominanceDivisors, coefficients);
+                cbDc = encodeBlock(writer, coefficients, cbDc, mDcChrominance, mAcChrominance);
+
+                loadChromaBlock(frame, x / 2, y / 2, 0, block);
+                quantize(block, mChrominanceDivisors, coefficients);
+                crDc = encodeBlock(writer, coefficients, crDc, mDcChrominance, mAcChrominance);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Loads an 8x8 block of luma, centered around 0. Pixels past the edge repeat the last pixel.
+     */
+    private static void loadLumaBlock(Frame frame, int x, int y, float[] block) {
+        byte[] nv21 = frame.mNv21;
+        for (int row = 0; row < 8; row++) {
+            int rowOffset = Math.min(y + row, frame.mHeight - 1) * frame.mWidth;
+            for (int col = 0; col < 8; col++) {
+                block[row * 8 + col] = (nv21[rowOffset + Math.min(x + col, frame.mWidth - 1)] & 0xFF) - 128;
+            }
+        }
+    }
+
+    /**
+     * Loads an 8x8 block of chroma, centered around 0.
+     *
+     * @param channel 0 for V (Cr), 1 for U (Cb).
+     */
+    private static void loadChromaBlock(Frame frame, int x, int y, int channel, float[] block) {
+        byte[] nv21 = frame.mNv21;
+        int start = frame.mWidth * frame.mHeight + channel;
+        for (int row = 0; row < 8; row++) {
+            int rowOffset = start + Math.min(y + row, frame.mChromaHeight - 1) * frame.mChromaWidth * 2;
+            for (int col = 0; col < 8; col++) {
+                block[row * 8 + col] = (nv21[rowOffset + Math.min(x + col, frame.mChromaWidth - 1) * 2] & 0xFF) - 128;
+            }
+        }
+    }
+
+    /**
+     * Applies the forward DCT (the AAN algorithm, as in libjpeg's jfdctflt.c) and quantizes the
+     * result. Coefficients are left in natural order.
+     */
+    private static void quantize(float[] data, float[] divisors, int[] out) {
+        // Rows
+        for (int i = 0; i < 64; i += 8) {
+            dct(data, i, 1);
+        }
+        // Columns
+        for (int i = 0; i < 8; i++) {
+            dct(data, i, 8);
+        }
+        for (int i = 0; i < 64; i++) {
+            // Round to the nearest integer, halves away from zero.
+            out[i] = (int) (data[i] * divisors[i] + 16384.5f) - 16384;
+        }
+    }
+
+    private static void dct(float[] d, int offset, int stride) {
+        int i0 = offset;
+        int i1 = offset + stride;
+        int i2 = offset + 2 * stride;
+        int i3 = offset + 3 * stride;
+        int i4 = offset + 4 * stride;
+        int i5 = offset + 5 * stride;
+        int i6 = offset + 6 * stride;
+        int i7 = offset + 7 * stride;
+
+        float tmp0 = d[i0] + d[i7];
+        float tmp7 = d[i0] - d[i7];
+        float tmp1 = d[i1] + d[i6];
+        float tmp6 = d[i1] - d[i6];
+        float tmp2 = d[i2] + d[i5];
+        float tmp5 = d[i2] - d[i5];
+        float tmp3 = d[i3] + d[i4];
+        float tmp4 = d[i3] - d[i4];
+
+        // Even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+
+        d[i0] = tmp10 + tmp11;
+        d[i4] = tmp10 - tmp11;
+
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[i2] = tmp13 + z1;
+        d[i6] = tmp13 - z1;
+
+        // Odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+
+        d[i5] = z13 + z2;
+        d[i3] = z13 - z2;
+        d[i1] = z11 + z4;
+        d[i7] = z11 - z4;
+    }
+
+    /**
+     * Huffman codes a quantized block.
+     *
+     * @return The block's DC coefficient, which the next block of the same component is coded
+     * relative to.
+     */
+    private static int encodeBlock(BitWriter writer, int[] coefficients, int previousDc, HuffmanTable dcTable, HuffmanTable acTable) {
+        int dc = coefficients[0];
+        int diff = dc - previousDc;
+        int category = category(diff);
+        dcTable.write(writer, category);
+        if (category != 0) {
+            writer.write(diff < 0 ? diff - 1 : diff, category);
+        }
+
+        int zeroes = 0;
+        for (int i = 1; i < 64; i++) {
+            int coefficient = coefficients[ZIGZAG[i]];
+            if (coefficient == 0) {
+                zeroes++;
+                continue;
+            }
+            while (zeroes > 15) {
+                acTable.write(writer, 0xF0); // ZRL: 16 zeroes in a row
+                zeroes -= 16;
+            }
+            category = category(coefficient);
+            acTable.write(writer, (zeroes << 4) | category);
+            writer.write(coefficient < 0 ? coefficient - 1 : coefficient, category);
+            zeroes = 0;
+        }
+        if (zeroes > 0) {
+            acTable.write(writer, 0x00); // EOB
+        }
+        return dc;
+    }
+
+    /**
+     * Returns the number of bits needed for the magnitude of the value.
+     */
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * A Huffman table, expanded from its spec form into a code and length per symbol.
+     */
+    private static final class HuffmanTable {
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code;
+                    mLengths[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        void write(BitWriter writer, int symbol) {
+            writer.write(mCodes[symbol], mLengths[symbol]);
+        }
+    }
+
+    /**
+     * Packs bits into bytes, most significant first, stuffing a zero after every 0xFF so that it
+     * isn't mistaken for a marker.
+     */
+    private static final class BitWriter {
+        private final BufferPool mPool;
+
+        byte[] mBytes;
+        int mLength;
+
+        // Bits waiting to be written, right aligned.
+        private int mBuffer;
+        private int mBufferedBits;
+
+        BitWriter(BufferPool pool, int initialCapacity) {
+            mPool = pool;
+            mBytes = pool.acquire(initialCapacity);
+        }
+
+        void write(int value, int bits) {
+            mBuffer = (mBuffer << bits) | (value & ((1 << bits) - 1));
+            mBufferedBits += bits;
+            while (mBufferedBits >= 8) {
+                mBufferedBits -= 8;
+                writeByte((mBuffer >> mBufferedBits) & 0xFF);
+            }
+        }
+
+        /**
+         * Pads the last byte with ones, as required at the end of a restart interval.
+         */
+        void flush() {
+            if (mBufferedBits > 0) {
+                write(0x7F, 8 - mBufferedBits);
+            }
+        }
+
+        private void writeByte(int value) {
+            if (mLength + 2 > mBytes.length) {
+                byte[] bytes = mPool.acquire(mBytes.length * 2);
+                System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                mPool.release(mBytes);
+                mBytes = bytes;
+            }
+            mBytes[mLength++] = (byte) value;
+            if (value == 0xFF) {
+                mBytes[mLength++] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.xlythe.view.camera.CameraView;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.xlythe.view.camera.ICameraModule.DEBUG;
+import static com.xlythe.view.camera.ICameraModule.TAG;
+
+/**
+ * Splits a single recording into segments. Once a segment is nearly full, the recorder is handed
+ * the next file with {@link MediaRecorder#setNextOutputFile(File)} and switches to it between two
+ * frames, so nothing is dropped and the camera session is left alone. Each segment is handed to
+ * the {@link CameraView.OnVideoSegmentListener} as soon as the recorder lets go of it.
+ *
+ * The recorder can only roll over on file size, so segments with a duration are given the number
+ * of bytes that the encoder's bit rate would fill in that time.
+ */
+@TargetApi(26)
+class VideoSegmenter implements MediaRecorder.OnInfoListener {
+    private final Camera2Module mCamera2Module;
+    private final CameraView.FileProvider mFileProvider;
+    private final CameraView.OnVideoSegmentListener mListener;
+
+    // The size at which we move on to the next segment, or INDEFINITE_VIDEO_SIZE to never do so.
+    private final long mSegmentSize;
+
+    // The segment being recorded, and its index.
+    private File mFile;
+    private int mIndex;
+
+    // The segment the recorder will move on to once the current one is full.
+    private File mNextFile;
+
+    // If true, every segment has been reported (or the recording failed) and we have nothing
+    // left to say.
+    private boolean mIsFinished;
+
+    // If true, the recorder ran out of room and stopped writing on its own.
+    private boolean mIsFull;
+
+    VideoSegmenter(@NonNull Camera2Module camera2Module,
+                   @NonNull CameraView.FileProvider fileProvider,
+                   @NonNull CameraView.OnVideoSegmentListener listener) {
+        mCamera2Module = camera2Module;
+        mFileProvider = fileProvider;
+        mListener = listener;
+        mFile = fileProvider.getFile(0);
+
+        CamcorderProfile profile = VideoSession.getProfile(camera2Module.getQuality());
+        mSegmentSize = getSegmentSize(
+                camera2Module.getVideoSegmentSize(),
+                camera2Module.getVideoSegmentDuration(),
+                profile.videoBitRate + profile.audioBitRate);
+    }
+
+    /**
+     * Returns the number of bytes a segment is allowed to grow to. If both a size and a duration
+     * are given, whichever is reached first wins.
+     *
+     * @param bitRate The combined audio and video bit rate, in bits per second.
+     */
+    static long getSegmentSize(long maxSize, long maxDurationMillis, int bitRate) {
+        long segmentSize = maxSize > 0 ? maxSize : CameraView.INDEFINITE_VIDEO_SIZE;
+        if (maxDurationMillis > 0 && bitRate > 0) {
+            long durationSize = Math.max(1, maxDurationMillis * bitRate / 8 / 1000);
+            if (segmentSize == CameraView.INDEFINITE_VIDEO_SIZE || durationSize < segmentSize) {
+                segmentSize = durationSize;
+            }
+        }
+        return segmentSize;
+    }
+
+    long getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * Returns the segment being recorded.
+     */
+    synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Listens for when the recorder's segment fills up. This replaces the recording's max duration
+     * and size, so the recording only ends once it's stopped.
+     */
+    synchronized void attach(@NonNull MediaRecorder mediaRecorder) {
+        mediaRecorder.setMaxDuration(CameraView.INDEFINITE_VIDEO_DURATION);
+        mediaRecorder.setMaxFileSize(mSegmentSize);
+        mediaRecorder.setOnInfoListener(this);
+    }
+
+    @Override
+    public synchronized void onInfo(MediaRecorder mr, int what, int extra) {
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                File nextFile = mFileProvider.getFile(mIndex + 1);
+                try {
+                    mr.setNextOutputFile(nextFile);
+                    mNextFile = nextFile;
+                } catch (IOException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to set the next segment. Recording will stop once " + mFile + " is full", e);
+                }
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                if (DEBUG) Log.d(TAG, "Segment " + mIndex + " saved to " + mFile);
+                mCamera2Module.onVideoSegmentCaptured(mListener, mFile, mIndex);
+                mFile = mNextFile;
+                mNextFile = null;
+                mIndex++;
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                // We didn't hand over the next file in time, so the recorder has stopped writing.
+                // The file isn't finished until the recorder is stopped, so we end the recording
+                // through the CameraView, as if it was stopped by hand. The segment is reported
+                // once it's saved.
+                Log.w(TAG, "Segment " + mIndex + " is full, but there's no segment to move on to");
+                mIsFull = true;
+                mCamera2Module.stopRecordingLater(this);
+                break;
+        }
+    }
+
+    /**
+     * Called once the recorder has stopped. The last segment is reported if it was saved.
+     */
+    synchronized void onStopped(boolean success) {
+        if (mIsFinished) {
+            return;
+        }
+
+        mIsFinished = true;
+        // Once full, the recorder may complain about being stopped, but what it recorded so far
+        // is still good.
+        if (success || mIsFull) {
+            mCamera2Module.onVideoSegmentCaptured(mListener, mFile, mIndex);
+        } else {
+            mCamera2Module.onVideoSegmentFailure(mListener);
+        }
+    }
+
+    /**
+     * Returns true once the recording has ended and the last segment has been reported.
+     */
+    synchronized boolean isFinished() {
+        return mIsFinished;
+    }
+
+    /**
+     * Called if the recording couldn't be started.
+     */
+    void onFailure() {
+        onStopped(false /* success */);
+    }
+}
@@ -7,12 +7,12 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.location.Location;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -33,37 +33,47 @@ class VideoSession extends PreviewSession {
 
     private final VideoSurface mVideoSurface;
 
+    private final CaptureRequestTemplate mRecordRequest = new CaptureRequestTemplate(CameraDevice.TEMPLATE_RECORD) {
+        @Override
+        void onCreate(@NonNull CaptureRequest.Builder builder) {
+            builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            builder.addTarget(getPreviewSurface().getSurface());
+            builder.addTarget(mVideoSurface.getSurface());
+        }
+    };
+
     VideoSession(Camera2Module camera2Module, File file) {
         super(camera2Module);
-        mVideoSurface = new VideoSurface(camera2Module, file, getPreviewSurface());
+        mVideoSurface = new VideoSurface(camera2Module, file, null /* segmenter */, getPreviewSurface());
+    }
+
+    /**
+     * Records a video that's split into segments, which requires Android O and above.
+     */
+    VideoSession(Camera2Module camera2Module, VideoSegmenter segmenter) {
+        super(camera2Module);
+        mVideoSurface = new VideoSurface(camera2Module, null /* file */, segmenter, getPreviewSurface());
     }
 
     @Override
-    public void initialize(@NonNull StreamConfigurationMap map) throws CameraAccessException {
-        super.initialize(map);
-        mVideoSurface.initialize(map);
+    public void initialize(@NonNull CameraInfo cameraInfo) throws CameraAccessException {
+        super.initialize(cameraInfo);
+        mVideoSurface.initialize(cameraInfo);
         if (!mVideoSurface.mIsInitialized) {
-            CameraView.OnVideoCapturedListener l = getOnVideoCapturedListener();
-            if (l != null) {
-                l.onFailure();
+            if (mVideoSurface.mSegmenter != null) {
+                mVideoSurface.mSegmenter.onFailure();
+            } else {
+                CameraView.OnVideoCapturedListener l = getOnVideoCapturedListener();
+                if (l != null) {
+                    l.onFailure();
+                }
             }
             throw new CameraAccessException(CameraAccessException.CAMERA_ERROR);
         }
     }
 
     private CaptureRequest createCaptureRequest(@NonNull CameraDevice device) throws CameraAccessException {
-        CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-        builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-        if (mMeteringRectangle != null) {
-            builder.set(CaptureRequest.CONTROL_AE_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
-            builder.set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[]{mMeteringRectangle});
-        }
-        if (mCropRegion != null) {
-            builder.set(CaptureRequest.SCALER_CROP_REGION, mCropRegion);
-        }
-        builder.addTarget(getPreviewSurface().getSurface());
-        builder.addTarget(mVideoSurface.getSurface());
-        return builder.build();
+        return mRecordRequest.build(device, mMeteringRectangle, mCropRegion);
     }
 
     @Override
@@ -77,6 +87,7 @@ class VideoSession extends PreviewSession {
         session.setRepeatingRequest(createCaptureRequest(device), new CameraCaptureSession.CaptureCallback() {
             @Override
             public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                getRepeatingCaptureCallback().onCaptureCompleted(session, request, result);
                 if (mVideoSurface.mAwaitingRecording) {
                     mVideoSurface.mAwaitingRecording = false;
                     mVideoSurface.startRecording();
@@ -97,7 +108,7 @@ class VideoSession extends PreviewSession {
             return;
         }
 
-        session.setRepeatingRequest(createCaptureRequest(device), null /* callback */, getBackgroundHandler());
+        session.setRepeatingRequest(createCaptureRequest(device), getRepeatingCaptureCallback(), getBackgroundHandler());
     }
 
     @Override
@@ -116,76 +127,61 @@ class VideoSession extends PreviewSession {
     }
 
     private static final class VideoSurface extends CameraSurface {
-        private List<Size> getSizes(StreamConfigurationMap map) {
-            Size[] sizes = map.getOutputSizes(MediaRecorder.class);
+        private static final SizeIndex.Key SIZES =
+                SizeIndex.Key.forClass(MediaRecorder.class).maxSize(Camera2Module.MAX_SUPPORTED_SIZE);
+        private static final SizeIndex.Key SIZES_MAX =
+                SizeIndex.Key.forClass(MediaRecorder.class).maxSize(MAX_SUPPORTED_SIZE);
+
+        private SizeIndex getSizes(CameraInfo cameraInfo) {
             if (getQuality() == CameraView.Quality.MAX
                     && CamcorderProfile.hasProfile(CamcorderProfile.QUALITY_2160P)) {
-                return filter(sizes, MAX_SUPPORTED_SIZE);
+                return cameraInfo.getSizeIndex(SIZES_MAX);
             }
-            return filter(sizes);
+            return cameraInfo.getSizeIndex(SIZES);
         }
 
         private boolean mIsRecordingVideo;
         private boolean mIsInitialized;
         private boolean mAwaitingRecording;
 
+        // Used before Android M. A new recorder (and surface) is created for every recording.
         private MediaRecorder mMediaRecorder;
 
-        @NonNull
+        // Used on Android M and above. The surface is shared across recordings.
+        private PersistentVideoRecorder mPersistentVideoRecorder;
+
+        // Either the file we're recording to, or the segmenter that picks the files for us.
+        @Nullable
         private final File mFile;
+        @Nullable
+        private final VideoSegmenter mSegmenter;
         private final CameraSurface mPreviewSurface;
 
-        VideoSurface(Camera2Module cameraView, @NonNull File file, CameraSurface previewSurface) {
+        VideoSurface(Camera2Module cameraView, @Nullable File file, @Nullable VideoSegmenter segmenter, CameraSurface previewSurface) {
             super(cameraView);
             mFile = file;
+            mSegmenter = segmenter;
             mPreviewSurface = previewSurface;
         }
 
         @Override
-        void initialize(StreamConfigurationMap map) {
-            super.initialize(chooseSize(getSizes(map), mPreviewSurface.mSize));
+        void initialize(CameraInfo cameraInfo) {
+            super.initialize(chooseSize(getSizes(cameraInfo), mPreviewSurface.mSize));
 
-            try {
-                mMediaRecorder = new MediaRecorder();
-                mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-                mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-                switch (mCameraView.getQuality()) {
-                    case MAX:
-                        // Fall-through
-                    case HIGH:
-                        mMediaRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH));
-                        break;
-                    case MEDIUM:
-                        mMediaRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_720P));
-                        break;
-                    case LOW:
-                        mMediaRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_LOW));
-                        break;
-                }
-                mMediaRecorder.setOutputFile(mFile.getAbsolutePath());
-                mMediaRecorder.setMaxDuration((int) mCameraView.getMaxVideoDuration());
-                mMediaRecorder.setMaxFileSize(mCameraView.getMaxVideoSize());
-                mMediaRecorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
-                    @Override
-                    public void onInfo(MediaRecorder mr, int what, int extra) {
-                        switch (what) {
-                            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
-                                Log.w(TAG, "Max duration for recording reached");
-                                break;
-                            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
-                                Log.w(TAG, "Max filesize for recording reached");
-                                break;
-                        }
-                    }
-                });
-                mMediaRecorder.setVideoSize(getWidth(), getHeight());
-                mMediaRecorder.setOrientationHint(mCameraView.getRelativeCameraOrientation());
-
-                Location location = getLocation(getContext());
-                if (location != null) {
-                    mMediaRecorder.setLocation((float) location.getLatitude(), (float) location.getLongitude());
-                }
+            if (mSegmenter != null) {
+                mPersistentVideoRecorder = mCameraView.getVideoRecorder(mSize);
+                mIsInitialized = mPersistentVideoRecorder.prepare(mSegmenter);
+                return;
+            }
+
+            if (Build.VERSION.SDK_INT >= 23) {
+                mPersistentVideoRecorder = mCameraView.getVideoRecorder(mSize);
+                mIsInitialized = mPersistentVideoRecorder.prepare(mFile);
+                return;
+            }
 
+            try {
+                mMediaRecorder = createMediaRecorder(mCameraView, mFile, mSize);
                 mMediaRecorder.prepare();
                 mIsInitialized = true;
             } catch (IOException e) {
@@ -195,6 +191,9 @@ class VideoSession extends PreviewSession {
 
         @Override
         Surface getSurface() {
+            if (mPersistentVideoRecorder != null) {
+                return mPersistentVideoRecorder.getSurface();
+            }
             return mMediaRecorder.getSurface();
         }
 
@@ -203,6 +202,12 @@ class VideoSession extends PreviewSession {
         }
 
         void startRecording() {
+            if (mPersistentVideoRecorder != null) {
+                mIsRecordingVideo = mPersistentVideoRecorder.start();
+                mIsInitialized = mIsRecordingVideo;
+                return;
+            }
+
             if (mMediaRecorder == null) {
                 Log.w(TAG, "Cannot record. Failed to initialize.");
                 return;
@@ -221,7 +226,14 @@ class VideoSession extends PreviewSession {
         }
 
         void stopRecording() {
-            if (mIsRecordingVideo) {
+            if (mIsRecordingVideo && mPersistentVideoRecorder != null) {
+                mIsRecordingVideo = false;
+                mPersistentVideoRecorder.stop();
+                if (mSegmenter == null) {
+                    // Segmented recordings report their last segment as soon as the recorder stops.
+                    showVideoConfirmation(mFile);
+                }
+            } else if (mIsRecordingVideo) {
                 mIsRecordingVideo = false;
                 try {
                     mMediaRecorder.stop();
@@ -236,10 +248,69 @@ class VideoSession extends PreviewSession {
 
         @Override
         void close() {
+            if (mPersistentVideoRecorder != null) {
+                // The surface belongs to the camera, so we only discard our recording.
+                mPersistentVideoRecorder.reset();
+                mPersistentVideoRecorder = null;
+            }
             if (mMediaRecorder != null) {
                 mMediaRecorder.release();
                 mMediaRecorder = null;
             }
+            if (mSegmenter != null) {
+                // Does nothing if the last segment was already reported. Otherwise, the recording
+                // never started.
+                mSegmenter.onFailure();
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link MediaRecorder} that records from a surface of the given size. The recorder
+     * still needs to be prepared before it can be used.
+     */
+    static MediaRecorder createMediaRecorder(Camera2Module cameraView, File file, Size size) {
+        MediaRecorder mediaRecorder = new MediaRecorder();
+        mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mediaRecorder.setProfile(getProfile(cameraView.getQuality()));
+        mediaRecorder.setOutputFile(file.getAbsolutePath());
+        mediaRecorder.setMaxDuration((int) cameraView.getMaxVideoDuration());
+        mediaRecorder.setMaxFileSize(cameraView.getMaxVideoSize());
+        mediaRecorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+            @Override
+            public void onInfo(MediaRecorder mr, int what, int extra) {
+                switch (what) {
+                    case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+                        Log.w(TAG, "Max duration for recording reached");
+                        break;
+                    case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                        Log.w(TAG, "Max filesize for recording reached");
+                        break;
+                }
+            }
+        });
+        mediaRecorder.setVideoSize(size.getWidth(), size.getHeight());
+        mediaRecorder.setOrientationHint(cameraView.getRelativeCameraOrientation());
+
+        Location location = CameraSurface.getLocation(cameraView.getContext());
+        if (location != null) {
+            mediaRecorder.setLocation((float) location.getLatitude(), (float) location.getLongitude());
+        }
+        return mediaRecorder;
+    }
+
+    /**
+     * Returns the profile that videos are encoded with at the given quality.
+     */
+    static CamcorderProfile getProfile(CameraView.Quality quality) {
+        switch (quality) {
+            case MEDIUM:
+                return CamcorderProfile.get(CamcorderProfile.QUALITY_720P);
+            case LOW:
+                return CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
+            default:
+                return CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
         }
     }
 }
@@ -0,0 +1,169 @@
+package com.xlythe.view.camera.v2;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Converts {@link ImageFormat#YUV_420_888} images into NV21, which is what
+ * {@link StripedJpegEncoder} and {@link android.graphics.YuvImage} expect. YUV_420_888 only
+ * promises that the planes exist; rows may be padded and samples may be spaced apart, so we honor
+ * the row and pixel stride of every plane.
+ *
+ * Nothing is allocated per frame. The caller hands us the output array, sized with
+ * {@link #getNv21Size(int, int)}, and is free to reuse it.
+ */
+@TargetApi(21)
+final class YuvConverter {
+    private YuvConverter() {}
+
+    /**
+     * Returns the number of bytes an NV21 image of the given size takes up: a full resolution Y
+     * plane, followed by interleaved V and U samples at half resolution.
+     */
+    static int getNv21Size(int width, int height) {
+        return width * height + 2 * chromaSize(width) * chromaSize(height);
+    }
+
+    /**
+     * Writes the image into out as NV21.
+     *
+     * @throws IllegalArgumentException if the image isn't YUV_420_888, or out is too small.
+     */
+    static void toNv21(@NonNull Image image, @NonNull byte[] out) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Expected YUV_420_888, but the image format was " + image.getFormat());
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        // The U and V planes are guaranteed to share a row and pixel stride.
+        toNv21(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                out);
+    }
+
+    /**
+     * Writes the given planes into out as NV21. Each buffer is read from its current position, and
+     * its position is left untouched.
+     */
+    static void toNv21(int width, int height,
+                       @NonNull ByteBuffer y, int yRowStride, int yPixelStride,
+                       @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride,
+                       @NonNull byte[] out) {
+        if (out.length < getNv21Size(width, height)) {
+            throw new IllegalArgumentException(String.format("Output is too small. Expected at least %d bytes, but was %d",
+                    getNv21Size(width, height), out.length));
+        }
+
+        copyPlane(y, width, height, yRowStride, yPixelStride, out, 0);
+
+        int offset = width * height;
+        int chromaWidth = chromaSize(width);
+        int chromaHeight = chromaSize(height);
+        if (isInterleavedNv21(u, v, uvPixelStride)) {
+            copyInterleavedChroma(u, v, chromaWidth, chromaHeight, uvRowStride, out, offset);
+        } else {
+            copyChroma(u, v, chromaWidth, chromaHeight, uvRowStride, uvPixelStride, out, offset);
+        }
+    }
+
+    private static int chromaSize(int size) {
+        return (size + 1) / 2;
+    }
+
+    /**
+     * Copies a single plane, dropping any padding between rows or samples.
+     */
+    private static void copyPlane(ByteBuffer plane, int width, int height, int rowStride, int pixelStride, byte[] out, int offset) {
+        int start = plane.position();
+        try {
+            if (pixelStride == 1 && rowStride == width) {
+                // No padding at all, so the plane is already exactly what we want.
+                plane.get(out, offset, width * height);
+                return;
+            }
+
+            for (int row = 0; row < height; row++) {
+                int rowStart = start + row * rowStride;
+                if (pixelStride == 1) {
+                    plane.position(rowStart);
+                    plane.get(out, offset, width);
+                    offset += width;
+                } else {
+                    for (int col = 0; col < width; col++) {
+                        out[offset++] = plane.get(rowStart + col * pixelStride);
+                    }
+                }
+            }
+        } finally {
+            plane.position(start);
+        }
+    }
+
+    /**
+     * Returns true if the V and U planes are views into the same VUVU... memory, one byte apart,
+     * which is how many devices lay out YUV_420_888 under the hood. We check by changing the
+     * second byte of V and seeing if the first byte of U changes along with it.
+     */
+    private static boolean isInterleavedNv21(ByteBuffer u, ByteBuffer v, int pixelStride) {
+        if (pixelStride != 2 || v.remaining() < 2 || u.remaining() < 1) {
+            return false;
+        }
+
+        int index = v.position() + 1;
+        byte original = v.get(index);
+        byte probe = (byte) ~original;
+        try {
+            v.put(index, probe);
+        } catch (ReadOnlyBufferException e) {
+            return false;
+        }
+        boolean interleaved = u.get(u.position()) == probe;
+        v.put(index, original);
+        return interleaved;
+    }
+
+    /**
+     * Copies chroma that's already laid out as VUVU..., a row at a time.
+     */
+    private static void copyInterleavedChroma(ByteBuffer u, ByteBuffer v, int chromaWidth, int chromaHeight, int rowStride, byte[] out, int offset) {
+        int start = v.position();
+        int rowLength = 2 * chromaWidth;
+        try {
+            for (int row = 0; row < chromaHeight; row++) {
+                int rowStart = start + row * rowStride;
+                // The V plane stops at the last V sample, so the very last U sample isn't in it.
+                int length = Math.min(rowLength, v.limit() - rowStart);
+                v.position(rowStart);
+                v.get(out, offset, length);
+                if (length < rowLength) {
+                    out[offset + rowLength - 1] = u.get(u.position() + row * rowStride + rowLength - 2);
+                }
+                offset += rowLength;
+            }
+        } finally {
+            v.position(start);
+        }
+    }
+
+    /**
+     * Copies chroma sample by sample, interleaving V and U as we go.
+     */
+    private static void copyChroma(ByteBuffer u, ByteBuffer v, int chromaWidth, int chromaHeight, int rowStride, int pixelStride, byte[] out, int offset) {
+        int uStart = u.position();
+        int vStart = v.position();
+        for (int row = 0; row < chromaHeight; row++) {
+            int rowOffset = row * rowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int sample = rowOffset + col * pixelStride;
+                out[offset++] = v.get(vStart + sample);
+                out[offset++] = u.get(uStart + sample);
+            }
+        }
+    }
+}
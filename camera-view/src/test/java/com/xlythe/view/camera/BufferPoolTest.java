@@ -0,0 +1,140 @@
+package com.xlythe.view.camera;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class BufferPoolTest {
+    private static final int KB = 1024;
+
+    BufferPool pool;
+
+    @Before
+    public void setup() {
+        pool = new BufferPool(100 * KB);
+    }
+
+    @Test
+    public void sizeClasses() {
+        assertEquals(4 * KB, BufferPool.getSizeClass(0));
+        assertEquals(4 * KB, BufferPool.getSizeClass(4 * KB));
+        assertEquals(5 * KB, BufferPool.getSizeClass(4 * KB + 1));
+        assertEquals(8 * KB, BufferPool.getSizeClass(8 * KB));
+        assertEquals(10 * KB, BufferPool.getSizeClass(8 * KB + 1));
+        assertEquals(12 * 1024 * KB, BufferPool.getSizeClass(12 * 1000 * 1000));
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        byte[] buffer = pool.acquire(9 * KB);
+        assertEquals(10 * KB, buffer.length);
+        assertEquals(1, pool.getMissCount());
+
+        pool.release(buffer);
+        assertEquals(10 * KB, pool.getSize());
+
+        // Anything in the same size class gets the same buffer back.
+        assertSame(buffer, pool.acquire(10 * KB));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getSize());
+
+        // Nothing left, so this one's new.
+        assertNotSame(buffer, pool.acquire(10 * KB));
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void differentSizeClassMisses() {
+        pool.release(pool.acquire(10 * KB));
+        assertEquals(20 * KB, pool.acquire(20 * KB).length);
+        assertEquals(0, pool.getHitCount());
+        assertEquals(10 * KB, pool.getSize());
+    }
+
+    @Test
+    public void ignoresForeignBuffers() {
+        pool.release(new byte[9 * KB]);
+        pool.release(new byte[100]);
+        pool.release(null);
+        assertEquals(0, pool.getSize());
+
+        pool.release(new byte[8 * KB]);
+        assertEquals(8 * KB, pool.getSize());
+    }
+
+    @Test
+    public void evictsOldestPastCap() {
+        byte[] first = new byte[64 * KB];
+        byte[] second = new byte[40 * KB];
+        pool.release(first);
+        pool.release(second);
+
+        // Both don't fit under 100KB, so the first one was let go.
+        assertEquals(40 * KB, pool.getSize());
+        assertSame(second, pool.acquire(40 * KB));
+        assertNotSame(first, pool.acquire(64 * KB));
+
+        // Larger than the cap, so it's never kept.
+        pool.release(new byte[128 * KB]);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void setMaxSizeTrims() {
+        pool.release(new byte[32 * KB]);
+        pool.release(new byte[48 * KB]);
+        pool.setMaxSize(50 * KB);
+        assertEquals(48 * KB, pool.getSize());
+    }
+
+    @Test
+    public void trimMemory() {
+        pool.release(new byte[16 * KB]);
+        pool.release(new byte[16 * KB]);
+        pool.release(new byte[16 * KB]);
+        pool.release(new byte[16 * KB]);
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(48 * KB, pool.getSize());
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(16 * KB, pool.getSize());
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void outputStream() throws IOException {
+        BufferPool.PooledOutputStream stream = new BufferPool.PooledOutputStream(pool, 4 * KB);
+        byte[] data = new byte[6 * KB];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        stream.write(data, 0, 3 * KB);
+        stream.write(data, 3 * KB, 3 * KB);
+        stream.write(42);
+        assertEquals(6 * KB + 1, stream.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream.writeTo(out);
+        byte[] expected = Arrays.copyOf(data, data.length + 1);
+        expected[data.length] = 42;
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        // Growing gave the first buffer back, and closing gives back the second.
+        assertEquals(4 * KB, pool.getSize());
+        stream.close();
+        assertTrue(pool.getSize() > 4 * KB);
+    }
+}
@@ -0,0 +1,200 @@
+package com.xlythe.view.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class CaptureQueueTest {
+    final List<CaptureQueue.Request> submitted = new ArrayList<>();
+    final List<CaptureQueue.Request> dropped = new ArrayList<>();
+    CaptureQueue queue;
+
+    @Before
+    public void setup() {
+        queue = new CaptureQueue(new CaptureQueue.Callback() {
+            @Override
+            public void onSubmit(CaptureQueue.Request request) {
+                synchronized (submitted) {
+                    submitted.add(request);
+                }
+            }
+
+            @Override
+            public void onDropped(CaptureQueue.Request request) {
+                dropped.add(request);
+            }
+        });
+        queue.setMaxInFlight(2);
+    }
+
+    @Test
+    public void submitsImmediately() {
+        CaptureQueue.Request request = request("a");
+        assertTrue(queue.offer(request));
+        assertEquals(1, submitted.size());
+        assertSame(request, submitted.get(0));
+        assertEquals(1, queue.size());
+
+        assertSame(request, queue.complete(request.getFile()));
+        assertEquals(0, queue.size());
+        assertNull(queue.complete(request.getFile()));
+    }
+
+    @Test
+    public void reject() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.REJECT);
+        assertTrue(queue.offer(request("a")));
+        assertTrue(queue.offer(request("b")));
+        assertFalse(queue.offer(request("c")));
+        assertEquals(2, submitted.size());
+
+        // Completing a request makes room for another.
+        queue.complete(new File("a"));
+        assertTrue(queue.offer(request("c")));
+        assertEquals(3, submitted.size());
+    }
+
+    @Test
+    public void dropOldest() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.DROP_OLDEST);
+        assertTrue(queue.offer(request("a")));
+        assertTrue(queue.offer(request("b")));
+
+        // Waits for room.
+        assertTrue(queue.offer(request("c")));
+        assertTrue(queue.offer(request("d")));
+        assertEquals(2, submitted.size());
+        assertEquals(0, dropped.size());
+
+        // Too many waiting, so the oldest waiting request is dropped.
+        assertTrue(queue.offer(request("e")));
+        assertEquals(1, dropped.size());
+        assertEquals(new File("c"), dropped.get(0).getFile());
+        assertEquals(4, queue.size());
+
+        // Waiting requests are submitted in order as room frees up.
+        queue.complete(new File("a"));
+        assertEquals(3, submitted.size());
+        assertEquals(new File("d"), submitted.get(2).getFile());
+        queue.complete(new File("b"));
+        assertEquals(4, submitted.size());
+        assertEquals(new File("e"), submitted.get(3).getFile());
+    }
+
+    @Test
+    public void block() throws InterruptedException {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.BLOCK);
+        assertTrue(queue.offer(request("a")));
+        assertTrue(queue.offer(request("b")));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer(request("c"));
+                latch.countDown();
+            }
+        });
+        thread.start();
+
+        // Still blocked, since nothing has finished.
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+
+        queue.complete(new File("a"));
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        synchronized (submitted) {
+            assertEquals(3, submitted.size());
+            assertEquals(new File("c"), submitted.get(2).getFile());
+        }
+    }
+
+    @Test
+    public void raisingTheLimitSubmitsWaitingRequests() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.DROP_OLDEST);
+        queue.offer(request("a"));
+        queue.offer(request("b"));
+        queue.offer(request("c"));
+        assertEquals(2, submitted.size());
+
+        queue.setMaxInFlight(3);
+        assertEquals(3, submitted.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateFile() {
+        queue.offer(request("a"));
+        queue.offer(request("a"));
+    }
+
+    @Test
+    public void clear() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.DROP_OLDEST);
+        queue.offer(request("a"));
+        queue.offer(request("b"));
+        queue.offer(request("c"));
+
+        List<CaptureQueue.Request> cleared = queue.clear();
+        assertEquals(3, cleared.size());
+        assertEquals(0, queue.size());
+        assertNull(queue.complete(new File("a")));
+    }
+
+    @Test
+    public void droppedCaptureFreesItsSlot() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.REJECT);
+
+        // Every time the camera is toggled, the pictures in flight are dropped and reported as
+        // failed. That has to free their slots, or the queue would fill up for good.
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(request("a" + i)));
+            assertTrue(queue.offer(request("b" + i)));
+            assertFalse(queue.offer(request("c" + i)));
+
+            assertNotNull(queue.complete(new File("a" + i)));
+            assertNotNull(queue.complete(new File("b" + i)));
+            assertEquals(0, queue.size());
+        }
+        assertEquals(10, submitted.size());
+    }
+
+    @Test
+    public void droppedCaptureSubmitsWaitingRequest() {
+        queue.setBackpressurePolicy(CaptureQueue.BackpressurePolicy.DROP_OLDEST);
+        queue.offer(request("a"));
+        queue.offer(request("b"));
+        queue.offer(request("c"));
+        assertEquals(2, submitted.size());
+
+        // "b" is dropped mid-flight, so "c" takes its place.
+        assertNotNull(queue.complete(new File("b")));
+        assertEquals(3, submitted.size());
+        assertEquals(new File("c"), submitted.get(2).getFile());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void metadata() {
+        Object tag = new Object();
+        long before = System.currentTimeMillis();
+        CaptureQueue.Request request = request("a").setTag(tag);
+        assertSame(tag, request.getTag());
+        assertTrue(request.getRequestTime() >= before);
+        assertNull(request.getListener());
+    }
+
+    private static CaptureQueue.Request request(String name) {
+        return new CaptureQueue.Request(new File(name), null);
+    }
+}
@@ -0,0 +1,67 @@
+package com.xlythe.view.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class CapturedImageTest {
+    private int releaseCount;
+
+    private CapturedImage create(ByteBuffer buffer) {
+        return new CapturedImage(buffer, 90, true) {
+            @Override
+            protected void onRelease() {
+                releaseCount++;
+            }
+        };
+    }
+
+    @Test
+    public void metadata() {
+        CapturedImage image = create(ByteBuffer.allocate(4));
+        assertEquals(90, image.getOrientation());
+        assertTrue(image.isFlippedHorizontally());
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void bufferIsReadOnly() {
+        create(ByteBuffer.allocate(4)).getBuffer().put((byte) 1);
+    }
+
+    @Test
+    public void buffersAreIndependent() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+        data.position(1);
+        CapturedImage image = create(data);
+
+        ByteBuffer first = image.getBuffer();
+        assertEquals(2, first.get());
+        assertEquals(3, first.get());
+
+        ByteBuffer second = image.getBuffer();
+        assertEquals(3, second.remaining());
+        assertEquals(2, second.get());
+    }
+
+    @Test
+    public void releasesOnce() {
+        CapturedImage image = create(ByteBuffer.allocate(4));
+        assertFalse(image.isReleased());
+        image.release();
+        image.release();
+        assertTrue(image.isReleased());
+        assertEquals(1, releaseCount);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void bufferAfterRelease() {
+        CapturedImage image = create(ByteBuffer.allocate(4));
+        image.release();
+        image.getBuffer();
+    }
+}
@@ -0,0 +1,97 @@
+package com.xlythe.view.camera;
+
+import android.os.Process;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk=23, constants = BuildConfig.class)
+public class EncodeExecutorTest {
+    EncodeExecutor executor;
+
+    @Before
+    public void setup() throws Exception {
+        ShadowLog.stream = System.out;
+        executor = new EncodeExecutor(1, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    @Test
+    public void runsTasks() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void queueDepth() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+        };
+        Runnable quick = new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        };
+
+        executor.execute(blocking);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        // With a single thread, the second task waits behind the first.
+        executor.execute(quick);
+        assertEquals(2, executor.getQueueDepth());
+        assertEquals(2, executor.getMaxQueueDepth());
+
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+
+        // The count drops just after the task returns, so give it a moment.
+        for (int i = 0; i < 100 && executor.getQueueDepth() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(2, executor.getMaxQueueDepth());
+        assertEquals(2, executor.getQueueLatency().getCount());
+        assertEquals(2, executor.getTaskLatency().getCount());
+
+        executor.resetMetrics();
+        assertEquals(0, executor.getMaxQueueDepth());
+        assertEquals(0, executor.getQueueLatency().getCount());
+        assertEquals(0, executor.getTaskLatency().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPoolSize() {
+        new EncodeExecutor(0, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+}
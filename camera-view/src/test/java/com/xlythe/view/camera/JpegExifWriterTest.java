@@ -0,0 +1,142 @@
+package com.xlythe.view.camera;
+
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk=23, constants = BuildConfig.class)
+public class JpegExifWriterTest {
+    // A JPEG stripped down to its markers: SOI, a JFIF header, the start of a scan and EOI.
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            (byte) 0xFF, (byte) 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00, 0x3F, 0x00, 0x12, 0x34, 0x56, 0x78,
+            (byte) 0xFF, (byte) 0xD9
+    };
+
+    @Before
+    public void setup() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void defaults() throws IOException {
+        Exif exif = new Exif(new ByteArrayInputStream(write(new JpegExifWriter(), JPEG)));
+        assertEquals(0, exif.getRotation());
+        assertEquals(false, exif.isFlippedHorizontally());
+        assertEquals(false, exif.isFlippedVertically());
+        assertEquals(-1, exif.getTimestamp());
+        assertEquals(null, exif.getLocation());
+    }
+
+    @Test
+    public void rotate() throws IOException {
+        for (int degrees : new int[] {0, 90, 180, 270}) {
+            Exif exif = new Exif(new ByteArrayInputStream(write(new JpegExifWriter().setRotation(degrees), JPEG)));
+            assertEquals(degrees, exif.getRotation());
+            assertEquals(false, exif.isFlippedHorizontally());
+        }
+
+        Exif exif = new Exif(new ByteArrayInputStream(write(new JpegExifWriter().setRotation(-90), JPEG)));
+        assertEquals(270, exif.getRotation());
+    }
+
+    @Test
+    public void flipAndRotate() throws IOException {
+        // Should match rotating and then flipping with Exif.
+        for (int degrees : new int[] {0, 90, 180, 270}) {
+            Exif expected = new Exif(new MockExifInterface().asMock());
+            expected.rotate(degrees);
+            expected.flipHorizontally();
+
+            Exif exif = new Exif(new ByteArrayInputStream(write(
+                    new JpegExifWriter().setRotation(degrees).setFlippedHorizontally(true), JPEG)));
+            assertEquals(expected.getRotation(), exif.getRotation());
+            assertEquals(expected.isFlippedHorizontally(), exif.isFlippedHorizontally());
+            assertEquals(expected.isFlippedVertically(), exif.isFlippedVertically());
+        }
+    }
+
+    @Test
+    public void timestamp() throws IOException {
+        long timestamp = System.currentTimeMillis() / 1000 * 1000;
+        Exif exif = new Exif(new ByteArrayInputStream(write(new JpegExifWriter().setTimestamp(timestamp), JPEG)));
+        assertEquals(timestamp, exif.getTimestamp());
+    }
+
+    @Test
+    public void location() throws IOException {
+        Location location = new Location("TEST");
+        location.setLatitude(22.3);
+        location.setLongitude(114);
+        location.setTime(System.currentTimeMillis() / 1000 * 1000);
+
+        Exif exif = new Exif(new ByteArrayInputStream(write(new JpegExifWriter().setLocation(location), JPEG)));
+        assertEquals(location, exif.getLocation());
+    }
+
+    @Test
+    public void imageDataIsUnchanged() throws IOException {
+        byte[] jpeg = write(new JpegExifWriter().setRotation(90), JPEG);
+
+        // Everything after the start of the image follows our exif segment, untouched.
+        byte[] tail = Arrays.copyOfRange(jpeg, jpeg.length - (JPEG.length - 2), jpeg.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(JPEG, 2, JPEG.length), tail));
+        assertEquals((byte) 0xFF, jpeg[0]);
+        assertEquals((byte) 0xD8, jpeg[1]);
+        assertEquals((byte) 0xFF, jpeg[2]);
+        assertEquals((byte) 0xE1, jpeg[3]);
+    }
+
+    @Test
+    public void replacesExistingExif() throws IOException {
+        long timestamp = System.currentTimeMillis() / 1000 * 1000;
+        byte[] first = write(new JpegExifWriter().setRotation(90).setTimestamp(timestamp), JPEG);
+        byte[] second = write(new JpegExifWriter().setRotation(180), first);
+
+        // Only one exif segment, with the new orientation and the old timestamp.
+        assertEquals(first.length, second.length);
+        Exif exif = new Exif(new ByteArrayInputStream(second));
+        assertEquals(180, exif.getRotation());
+        assertEquals(timestamp, exif.getTimestamp());
+    }
+
+    @Test
+    public void directBuffer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(JPEG.length);
+        buffer.put(JPEG);
+        buffer.flip();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JpegExifWriter().setRotation(270).write(buffer, Channels.newChannel(out));
+        assertEquals(270, new Exif(new ByteArrayInputStream(out.toByteArray())).getRotation());
+        assertTrue(Arrays.equals(write(new JpegExifWriter().setRotation(270), JPEG), out.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void notAJpeg() throws IOException {
+        write(new JpegExifWriter(), new byte[] {0x12, 0x34, 0x56, 0x78});
+    }
+
+    private static byte[] write(JpegExifWriter writer, byte[] jpeg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(jpeg, out);
+        return out.toByteArray();
+    }
+}
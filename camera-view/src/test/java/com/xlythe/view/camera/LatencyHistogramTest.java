@@ -0,0 +1,90 @@
+package com.xlythe.view.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    LatencyHistogram histogram;
+
+    @Before
+    public void setup() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void empty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void singleValue() {
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(250));
+        assertEquals(1, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), histogram.getMin());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), histogram.getMax());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), histogram.getPercentile(50));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), histogram.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(25), histogram.getPercentile(50));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(50), histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentiles() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), histogram.getMin());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getMax());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500500), histogram.getMean());
+        assertWithinPercent(TimeUnit.MILLISECONDS.toNanos(500), histogram.getPercentile(50), 4);
+        assertWithinPercent(TimeUnit.MILLISECONDS.toNanos(900), histogram.getPercentile(90), 4);
+        assertWithinPercent(TimeUnit.MILLISECONDS.toNanos(990), histogram.getPercentile(99), 4);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesNeverUnderReport() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertTrue(histogram.getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(histogram.getPercentile(99) >= TimeUnit.MILLISECONDS.toNanos(990));
+    }
+
+    @Test
+    public void negativeValuesAreClamped() {
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void reset() {
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    private static void assertWithinPercent(long expected, long actual, double percent) {
+        assertTrue(String.format("Expected %d to be within %s%% of %d", actual, percent, expected),
+                Math.abs(actual - expected) <= expected * percent / 100);
+    }
+}
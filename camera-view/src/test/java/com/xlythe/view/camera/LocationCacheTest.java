@@ -0,0 +1,93 @@
+package com.xlythe.view.camera;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk=23, constants = BuildConfig.class)
+public class LocationCacheTest {
+    LocationCache cache;
+
+    @Before
+    public void setup() {
+        cache = new LocationCache(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void emptyByDefault() {
+        assertNull(cache.getLatest());
+    }
+
+    @Test
+    public void remembersLocation() {
+        Location location = createLocation(0, 10);
+        cache.offer(location);
+        assertSame(location, cache.getLatest());
+    }
+
+    @Test
+    public void ignoresStaleLocations() {
+        cache.offer(createLocation(10 * 60 * 1000, 10));
+        assertNull(cache.getLatest(5 * 60 * 1000));
+
+        cache.setMaxAge(5 * 60 * 1000);
+        assertNull(cache.getLatest());
+    }
+
+    @Test
+    public void ignoresInaccurateLocations() {
+        cache.setMaxAccuracy(50);
+        cache.offer(createLocation(0, 100));
+        assertNull(cache.getLatest());
+    }
+
+    @Test
+    public void prefersAccurateLocations() {
+        Location accurate = createLocation(10 * 1000, 5);
+        cache.offer(accurate);
+        cache.offer(createLocation(0, 100));
+        assertSame(accurate, cache.getLatest());
+    }
+
+    @Test
+    public void prefersMuchNewerLocations() {
+        cache.offer(createLocation(10 * 60 * 1000, 5));
+        Location newer = createLocation(0, 100);
+        cache.offer(newer);
+        assertSame(newer, cache.getLatest());
+    }
+
+    @Test
+    public void isBetterLocation() {
+        assertTrue(LocationCache.isBetterLocation(createLocation(0, 10), createLocation(1000, 10)));
+        assertFalse(LocationCache.isBetterLocation(createLocation(1000, 10), createLocation(0, 10)));
+        assertFalse(LocationCache.isBetterLocation(createLocation(0, 10), createLocation(0, 10)));
+    }
+
+    @Test
+    public void unbalancedStop() {
+        // Shouldn't throw.
+        cache.stop();
+    }
+
+    private static Location createLocation(long ageMillis, float accuracy) {
+        Location location = new Location(LocationManager.GPS_PROVIDER);
+        location.setTime(System.currentTimeMillis() - ageMillis);
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos() - ageMillis * 1000000);
+        location.setAccuracy(accuracy);
+        return location;
+    }
+}
@@ -0,0 +1,35 @@
+package com.xlythe.view.camera.v2;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class PictureSessionTest {
+    @Test
+    public void zeroShutterLagLeavesRoomForTheNextFrame() {
+        for (int saving = 0; saving <= PictureSession.MAX_IMAGES; saving++) {
+            int unclaimed = PictureSession.getMaxUnclaimedImages(true, saving);
+            assertTrue("Held " + (saving + unclaimed) + " images while saving " + saving,
+                    unclaimed == 0 || saving + unclaimed <= PictureSession.MAX_IMAGES - 1);
+        }
+    }
+
+    @Test
+    public void zeroShutterLagKeepsAFrameWhileThereIsRoom() {
+        for (int saving = 0; saving < PictureSession.MAX_IMAGES - 1; saving++) {
+            assertTrue(PictureSession.getMaxUnclaimedImages(true, saving) >= 1);
+        }
+    }
+
+    @Test
+    public void zeroShutterLagDropsFramesWhileSavingIsFull() {
+        assertEquals(0, PictureSession.getMaxUnclaimedImages(true, PictureSession.MAX_IMAGES - 1));
+        assertEquals(0, PictureSession.getMaxUnclaimedImages(true, PictureSession.MAX_IMAGES));
+    }
+
+    @Test
+    public void withoutZeroShutterLag() {
+        assertEquals(PictureSession.MAX_IMAGES - 1, PictureSession.getMaxUnclaimedImages(false, 0));
+    }
+}
@@ -0,0 +1,31 @@
+package com.xlythe.view.camera.v2;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ReviewDecoderTest {
+    @Test
+    public void sampleSizeCoversView() {
+        // A quarter of 4000x3000 is 1000x750, which is too narrow for 1080x720, so we stop at half.
+        assertEquals(2, ReviewDecoder.getSampleSize(4000, 3000, 1080, 720));
+        assertEquals(4, ReviewDecoder.getSampleSize(4000, 3000, 1000, 750));
+        assertEquals(8, ReviewDecoder.getSampleSize(4000, 3000, 320, 240));
+    }
+
+    @Test
+    public void sampleSizeLimitedByEitherDimension() {
+        // Plenty of room horizontally, but the height would drop below the view's.
+        assertEquals(1, ReviewDecoder.getSampleSize(4000, 1000, 500, 600));
+    }
+
+    @Test
+    public void smallerThanView() {
+        assertEquals(1, ReviewDecoder.getSampleSize(640, 480, 1920, 1080));
+    }
+
+    @Test
+    public void unknownViewSize() {
+        assertEquals(1, ReviewDecoder.getSampleSize(4000, 3000, 0, 0));
+    }
+}
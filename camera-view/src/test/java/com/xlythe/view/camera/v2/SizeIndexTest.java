@@ -0,0 +1,140 @@
+package com.xlythe.view.camera.v2;
+
+import android.util.Size;
+
+import com.xlythe.view.camera.BuildConfig;
+import com.xlythe.view.camera.CameraView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk=23, constants = BuildConfig.class)
+public class SizeIndexTest {
+    // A typical back camera, deliberately out of order.
+    private static final Size[] SIZES = {
+            new Size(1920, 1080),
+            new Size(320, 240),
+            new Size(4032, 3024),
+            new Size(640, 480),
+            new Size(1280, 720),
+            new Size(720, 480),
+            new Size(3264, 2448),
+            new Size(1440, 1080),
+            new Size(176, 144),
+            new Size(640, 360),
+    };
+
+    private final SizeIndex index = new SizeIndex(SIZES);
+
+    private static final Size PREVIEW_4_3 = new Size(1440, 1080);
+    private static final Size PREVIEW_16_9 = new Size(1920, 1080);
+
+    @Test
+    public void sortedByArea() {
+        List<Size> sizes = index.getSizes();
+        assertEquals(SIZES.length, sizes.size());
+        for (int i = 1; i < sizes.size(); i++) {
+            long previous = (long) sizes.get(i - 1).getWidth() * sizes.get(i - 1).getHeight();
+            long current = (long) sizes.get(i).getWidth() * sizes.get(i).getHeight();
+            assertTrue(previous <= current);
+        }
+    }
+
+    @Test
+    public void largestPerQuality() {
+        assertEquals(new Size(4032, 3024), index.getLargest(CameraView.Quality.MAX));
+        assertEquals(new Size(4032, 3024), index.getLargest(CameraView.Quality.HIGH));
+        assertEquals(new Size(1280, 720), index.getLargest(CameraView.Quality.MEDIUM));
+        assertEquals(new Size(640, 360), index.getLargest(CameraView.Quality.LOW));
+    }
+
+    @Test
+    public void largestPerAspectRatio() {
+        assertEquals(new Size(1920, 1080), index.getLargest(CameraView.Quality.HIGH, PREVIEW_16_9));
+        assertEquals(new Size(640, 480), index.getLargest(CameraView.Quality.MEDIUM, PREVIEW_4_3));
+        assertEquals(new Size(320, 240), index.getLargest(CameraView.Quality.LOW, PREVIEW_4_3));
+        assertNull(index.getLargest(CameraView.Quality.HIGH, new Size(2000, 1000)));
+    }
+
+    @Test
+    public void chooseSizeMatchesAspectRatio() {
+        assertEquals(new Size(4032, 3024), index.chooseSize(CameraView.Quality.HIGH, PREVIEW_4_3));
+        assertEquals(new Size(1920, 1080), index.chooseSize(CameraView.Quality.HIGH, PREVIEW_16_9));
+        assertEquals(new Size(1280, 720), index.chooseSize(CameraView.Quality.MEDIUM, PREVIEW_16_9));
+        assertEquals(new Size(640, 360), index.chooseSize(CameraView.Quality.LOW, PREVIEW_16_9));
+    }
+
+    @Test
+    public void chooseSizeIgnoresAspectRatioWhenNothingMatches() {
+        // Nothing is 2:1, so the largest size at the quality wins.
+        assertEquals(new Size(1280, 720), index.chooseSize(CameraView.Quality.MEDIUM, new Size(2000, 1000)));
+        assertEquals(new Size(1280, 720), index.chooseSize(CameraView.Quality.MEDIUM, null));
+    }
+
+    @Test
+    public void chooseSizeFallsBackToHigherQuality() {
+        SizeIndex index = new SizeIndex(new Size[] { new Size(1920, 1080), new Size(1280, 720) });
+        assertEquals(new Size(1280, 720), index.chooseSize(CameraView.Quality.LOW, PREVIEW_16_9));
+
+        index = new SizeIndex(new Size[] { new Size(1920, 1080), new Size(4000, 3000) });
+        assertEquals(new Size(1920, 1080), index.chooseSize(CameraView.Quality.LOW, PREVIEW_16_9));
+    }
+
+    @Test
+    public void chooseSizeMaxIgnoresAspectRatio() {
+        assertEquals(new Size(4032, 3024), index.chooseSize(CameraView.Quality.MAX, PREVIEW_16_9));
+    }
+
+    @Test
+    public void chooseOptimalSize() {
+        assertEquals(new Size(1920, 1080), index.chooseOptimalSize(1920, 1080));
+        assertEquals(new Size(720, 480), index.chooseOptimalSize(700, 400));
+        // 1440x1080 has enough area, but isn't wide enough.
+        assertEquals(new Size(1920, 1080), index.chooseOptimalSize(1500, 1000));
+        assertEquals(new Size(176, 144), index.chooseOptimalSize(0, 0));
+    }
+
+    @Test
+    public void chooseOptimalSizeFallsBackToLargest() {
+        assertEquals(new Size(4032, 3024), index.chooseOptimalSize(5000, 5000));
+        assertEquals(new Size(4032, 3024), index.chooseOptimalSize(10000, 100));
+    }
+
+    @Test
+    public void empty() {
+        SizeIndex index = new SizeIndex(new Size[0]);
+        assertTrue(index.isEmpty());
+        assertNull(index.getLargest(CameraView.Quality.HIGH));
+        assertFalse(this.index.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void chooseFromEmpty() {
+        new SizeIndex(new Size[0]).chooseSize(CameraView.Quality.HIGH, null);
+    }
+
+    @Test
+    public void keys() {
+        SizeIndex.Key key = SizeIndex.Key.forFormat(256).maxSize(new Size(1920, 1080));
+        assertEquals(key, SizeIndex.Key.forFormat(256).maxSize(new Size(1920, 1080)));
+        assertEquals(key.hashCode(), SizeIndex.Key.forFormat(256).maxSize(new Size(1920, 1080)).hashCode());
+        assertFalse(key.equals(SizeIndex.Key.forFormat(256)));
+        assertFalse(key.equals(key.highResolution()));
+        assertFalse(SizeIndex.Key.forFormat(256).equals(SizeIndex.Key.forClass(Object.class)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutableSizes() {
+        index.getSizes().set(0, new Size(1, 1));
+    }
+}
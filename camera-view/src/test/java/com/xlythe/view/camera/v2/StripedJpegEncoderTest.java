@@ -0,0 +1,141 @@
+package com.xlythe.view.camera.v2;
+
+import com.xlythe.view.camera.BufferPool;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+public class StripedJpegEncoderTest {
+    private final BufferPool pool = new BufferPool(64 * 1024 * 1024);
+
+    @Test
+    public void decodes() throws IOException {
+        assertRoundTrips(64, 48);
+    }
+
+    @Test
+    public void partialMcus() throws IOException {
+        // Neither dimension is a multiple of 16, and the chroma planes have an odd size.
+        assertRoundTrips(37, 21);
+    }
+
+    @Test
+    public void manyStripes() throws IOException {
+        // Tall enough for one MCU row per stripe, so there are more restart markers than RST0-7.
+        assertRoundTrips(32, 16 * 40);
+    }
+
+    @Test
+    public void restartMarkers() {
+        int width = 32;
+        int height = 16 * 40;
+        ByteBuffer jpeg = new StripedJpegEncoder(90).encode(createFrame(width, height), width, height, pool);
+
+        int markers = 0;
+        for (int i = jpeg.position(); i < jpeg.limit() - 1; i++) {
+            if ((jpeg.get(i) & 0xFF) == 0xFF && (jpeg.get(i + 1) & 0xF8) == 0xD0) {
+                assertEquals(0xD0 + (markers & 7), jpeg.get(i + 1) & 0xFF);
+                markers++;
+            }
+        }
+        assertTrue(markers > 0);
+    }
+
+    @Test
+    public void outputComesFromPool() {
+        ByteBuffer jpeg = new StripedJpegEncoder(90).encode(createFrame(64, 48), 64, 48, pool);
+        assertEquals(0, jpeg.position());
+        assertEquals((byte) 0xFF, jpeg.get(0));
+        assertEquals((byte) 0xD8, jpeg.get(1));
+        assertEquals((byte) 0xFF, jpeg.get(jpeg.limit() - 2));
+        assertEquals((byte) 0xD9, jpeg.get(jpeg.limit() - 1));
+
+        // The stripes went back to the pool, and once the output does too, encoding again
+        // doesn't need to allocate anything.
+        pool.release(jpeg.array());
+        pool.resetStatistics();
+        jpeg = new StripedJpegEncoder(90).encode(createFrame(64, 48), 64, 48, pool);
+        assertEquals(0, pool.getMissCount());
+        assertTrue(pool.getHitCount() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidQuality() {
+        new StripedJpegEncoder(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inputTooSmall() {
+        new StripedJpegEncoder(90).encode(new byte[10], 64, 48, pool);
+    }
+
+    private void assertRoundTrips(int width, int height) throws IOException {
+        byte[] nv21 = createFrame(width, height);
+        ByteBuffer jpeg = new StripedJpegEncoder(100).encode(nv21, width, height, pool);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg.array(), jpeg.position(), jpeg.remaining()));
+        assertNotNull(image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+
+        int chromaWidth = (width + 1) / 2;
+        long error = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int chroma = width * height + ((y / 2) * chromaWidth + x / 2) * 2;
+                int[] expected = toRgb(nv21[y * width + x] & 0xFF, nv21[chroma + 1] & 0xFF, nv21[chroma] & 0xFF);
+                int actual = image.getRGB(x, y);
+                error += Math.abs(((actual >> 16) & 0xFF) - expected[0]);
+                error += Math.abs(((actual >> 8) & 0xFF) - expected[1]);
+                error += Math.abs((actual & 0xFF) - expected[2]);
+            }
+        }
+        // At quality 100, the only loss is rounding and chroma upsampling.
+        double averageError = (double) error / (width * height * 3);
+        assertTrue("Average error was " + averageError, averageError < 3);
+    }
+
+    private static int[] toRgb(int y, int cb, int cr) {
+        return new int[] {
+                clamp(Math.round(y + 1.402f * (cr - 128))),
+                clamp(Math.round(y - 0.344136f * (cb - 128) - 0.714136f * (cr - 128))),
+                clamp(Math.round(y + 1.772f * (cb - 128)))
+        };
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * A smooth NV21 gradient, like a camera frame, so that the encoder's loss stays small.
+     */
+    private static byte[] createFrame(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        byte[] nv21 = new byte[YuvConverter.getNv21Size(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) (40 + 160 * x / width + 40 * y / height);
+            }
+        }
+        int i = width * height;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                nv21[i++] = (byte) (110 + 40 * y / chromaHeight); // V
+                nv21[i++] = (byte) (150 - 40 * x / chromaWidth); // U
+            }
+        }
+        return nv21;
+    }
+}
@@ -0,0 +1,54 @@
+package com.xlythe.view.camera.v2;
+
+import com.xlythe.view.camera.CameraView;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class VideoSegmenterTest {
+    // 8Mbps of video and 128kbps of audio, which fills 1,016,000 bytes a second.
+    private static final int BIT_RATE = 8000000 + 128000;
+
+    @Test
+    public void noSegments() {
+        assertEquals(CameraView.INDEFINITE_VIDEO_SIZE, VideoSegmenter.getSegmentSize(
+                CameraView.INDEFINITE_VIDEO_SIZE, CameraView.INDEFINITE_VIDEO_DURATION, BIT_RATE));
+    }
+
+    @Test
+    public void sizeOnly() {
+        assertEquals(5000000, VideoSegmenter.getSegmentSize(
+                5000000, CameraView.INDEFINITE_VIDEO_DURATION, BIT_RATE));
+    }
+
+    @Test
+    public void durationOnly() {
+        assertEquals(10160000, VideoSegmenter.getSegmentSize(
+                CameraView.INDEFINITE_VIDEO_SIZE, 10000, BIT_RATE));
+    }
+
+    @Test
+    public void smallerOfSizeAndDuration() {
+        // 10 seconds fills more than 5MB, so the size wins.
+        assertEquals(5000000, VideoSegmenter.getSegmentSize(5000000, 10000, BIT_RATE));
+
+        // 2 seconds fills less than 5MB, so the duration wins.
+        assertEquals(2032000, VideoSegmenter.getSegmentSize(5000000, 2000, BIT_RATE));
+    }
+
+    @Test
+    public void longDurationsDoNotOverflow() {
+        // A day of video.
+        assertEquals(87782400000L, VideoSegmenter.getSegmentSize(
+                CameraView.INDEFINITE_VIDEO_SIZE, 24L * 60 * 60 * 1000, BIT_RATE));
+    }
+
+    @Test
+    public void unknownBitRate() {
+        // Without a bit rate, the duration can't be converted and is ignored.
+        assertEquals(CameraView.INDEFINITE_VIDEO_SIZE, VideoSegmenter.getSegmentSize(
+                CameraView.INDEFINITE_VIDEO_SIZE, 10000, 0));
+        assertEquals(5000000, VideoSegmenter.getSegmentSize(5000000, 10000, 0));
+    }
+}
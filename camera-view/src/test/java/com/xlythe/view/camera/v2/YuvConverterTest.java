@@ -0,0 +1,239 @@
+package com.xlythe.view.camera.v2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class YuvConverterTest {
+    // Filler for padding, so that copying padding by mistake shows up in the output.
+    private static final byte PADDING = (byte) 0xEE;
+
+    @Test
+    public void nv21Size() {
+        assertEquals(4 * 2 + 2 * 2 * 1, YuvConverter.getNv21Size(4, 2));
+        assertEquals(5 * 3 + 2 * 3 * 2, YuvConverter.getNv21Size(5, 3));
+    }
+
+    @Test
+    public void planar() {
+        // Like I420: every plane tightly packed.
+        assertConverts(new Layout(8, 6, 8, 1, 4, 1, false));
+    }
+
+    @Test
+    public void paddedRows() {
+        assertConverts(new Layout(8, 6, 16, 1, 12, 1, false));
+    }
+
+    @Test
+    public void semiPlanar() {
+        // Like NV21: U and V share memory, one byte apart.
+        assertConverts(new Layout(8, 6, 8, 1, 8, 2, true));
+    }
+
+    @Test
+    public void semiPlanarWithPaddedRows() {
+        assertConverts(new Layout(8, 6, 16, 1, 16, 2, true));
+    }
+
+    @Test
+    public void pixelStrideWithoutSharedMemory() {
+        // The planes have a pixel stride of 2, but they're separate buffers, so the bytes in between
+        // are padding rather than the other plane's samples.
+        assertConverts(new Layout(8, 6, 8, 1, 8, 2, false));
+    }
+
+    @Test
+    public void readOnlySemiPlanar() {
+        Layout layout = new Layout(8, 6, 8, 1, 8, 2, true);
+        layout.y = layout.y.asReadOnlyBuffer();
+        layout.u = layout.u.asReadOnlyBuffer();
+        layout.v = layout.v.asReadOnlyBuffer();
+        assertConverts(layout);
+    }
+
+    @Test
+    public void lumaPixelStride() {
+        assertConverts(new Layout(8, 6, 16, 2, 8, 2, true));
+    }
+
+    @Test
+    public void oddSize() {
+        assertConverts(new Layout(7, 5, 7, 1, 4, 1, false));
+        assertConverts(new Layout(7, 5, 8, 1, 8, 2, true));
+        assertConverts(new Layout(7, 5, 9, 1, 10, 2, false));
+    }
+
+    @Test
+    public void leavesBuffersUntouched() {
+        Layout layout = new Layout(8, 6, 16, 1, 16, 2, true);
+        byte[] u = copy(layout.u);
+        byte[] v = copy(layout.v);
+        int uPosition = layout.u.position();
+        int vPosition = layout.v.position();
+        int yPosition = layout.y.position();
+
+        assertConverts(layout);
+        assertTrue(Arrays.equals(u, copy(layout.u)));
+        assertTrue(Arrays.equals(v, copy(layout.v)));
+        assertEquals(uPosition, layout.u.position());
+        assertEquals(vPosition, layout.v.position());
+        assertEquals(yPosition, layout.y.position());
+    }
+
+    @Test
+    public void reusesLargerOutput() {
+        Layout layout = new Layout(8, 6, 8, 1, 4, 1, false);
+        byte[] out = new byte[YuvConverter.getNv21Size(8, 6) + 10];
+        Arrays.fill(out, PADDING);
+        convert(layout, out);
+        assertTrue(Arrays.equals(layout.expected(), Arrays.copyOf(out, layout.expected().length)));
+        assertEquals(PADDING, out[out.length - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        Layout layout = new Layout(8, 6, 8, 1, 4, 1, false);
+        convert(layout, new byte[YuvConverter.getNv21Size(8, 6) - 1]);
+    }
+
+    private static void assertConverts(Layout layout) {
+        byte[] out = new byte[YuvConverter.getNv21Size(layout.width, layout.height)];
+        convert(layout, out);
+        assertTrue(layout.toString(), Arrays.equals(layout.expected(), out));
+    }
+
+    private static void convert(Layout layout, byte[] out) {
+        YuvConverter.toNv21(layout.width, layout.height,
+                layout.y, layout.yRowStride, layout.yPixelStride,
+                layout.u, layout.v, layout.uvRowStride, layout.uvPixelStride,
+                out);
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte luma(int x, int y) {
+        return (byte) (x * 7 + y * 13);
+    }
+
+    private static byte u(int x, int y) {
+        return (byte) (100 + x * 3 + y * 5);
+    }
+
+    private static byte v(int x, int y) {
+        return (byte) (200 + x * 11 + y * 2);
+    }
+
+    /**
+     * Synthetic YUV_420_888 planes, laid out like a camera might.
+     */
+    private static class Layout {
+        final int width;
+        final int height;
+        final int yRowStride;
+        final int yPixelStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final boolean interleaved;
+        ByteBuffer y;
+        ByteBuffer u;
+        ByteBuffer v;
+
+        Layout(int width, int height, int yRowStride, int yPixelStride, int uvRowStride, int uvPixelStride, boolean interleaved) {
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.yPixelStride = yPixelStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.interleaved = interleaved;
+
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+
+            // Like a real Image, the last row stops at the last sample.
+            byte[] luma = new byte[(height - 1) * yRowStride + (width - 1) * yPixelStride + 1];
+            Arrays.fill(luma, PADDING);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    luma[row * yRowStride + col * yPixelStride] = luma(col, row);
+                }
+            }
+            // Start partway into the array, to make sure we respect the buffer's position.
+            y = offset(luma, 3);
+
+            int chromaLength = (chromaHeight - 1) * uvRowStride + (chromaWidth - 1) * uvPixelStride + 1;
+            if (interleaved) {
+                // VUVU..., with V starting one byte before U.
+                byte[] vu = new byte[chromaLength + 1];
+                Arrays.fill(vu, PADDING);
+                for (int row = 0; row < chromaHeight; row++) {
+                    for (int col = 0; col < chromaWidth; col++) {
+                        vu[row * uvRowStride + col * uvPixelStride] = v(col, row);
+                        vu[row * uvRowStride + col * uvPixelStride + 1] = u(col, row);
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(vu);
+                buffer.limit(chromaLength);
+                v = buffer.slice();
+                buffer.limit(chromaLength + 1).position(1);
+                u = buffer.slice();
+            } else {
+                byte[] uBytes = new byte[chromaLength];
+                byte[] vBytes = new byte[chromaLength];
+                Arrays.fill(uBytes, PADDING);
+                Arrays.fill(vBytes, PADDING);
+                for (int row = 0; row < chromaHeight; row++) {
+                    for (int col = 0; col < chromaWidth; col++) {
+                        uBytes[row * uvRowStride + col * uvPixelStride] = u(col, row);
+                        vBytes[row * uvRowStride + col * uvPixelStride] = v(col, row);
+                    }
+                }
+                u = offset(uBytes, 1);
+                v = offset(vBytes, 2);
+            }
+        }
+
+        private static ByteBuffer offset(byte[] bytes, int offset) {
+            byte[] padded = new byte[bytes.length + offset];
+            Arrays.fill(padded, PADDING);
+            System.arraycopy(bytes, 0, padded, offset, bytes.length);
+            ByteBuffer buffer = ByteBuffer.wrap(padded);
+            buffer.position(offset);
+            return buffer;
+        }
+
+        byte[] expected() {
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            byte[] nv21 = new byte[width * height + 2 * chromaWidth * chromaHeight];
+            int i = 0;
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    nv21[i++] = luma(col, row);
+                }
+            }
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    nv21[i++] = v(col, row);
+                    nv21[i++] = u(col, row);
+                }
+            }
+            return nv21;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Layout{%dx%d, y=%d/%d, uv=%d/%d, interleaved=%s}",
+                    width, height, yRowStride, yPixelStride, uvRowStride, uvPixelStride, interleaved);
+        }
+    }
+}